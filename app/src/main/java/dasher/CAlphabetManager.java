@@ -25,11 +25,20 @@
 
 package dasher;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static dasher.CDasherModel.NORMALIZATION;
 
@@ -46,7 +55,7 @@ import static dasher.CDasherModel.NORMALIZATION;
  *
  */
 
-public class CAlphabetManager<C> {
+public class CAlphabetManager<C> implements CDasherNode.BatchPreparer {
 	
 	/**
 	 * Pointer to the LanguageModel used in determining the
@@ -61,7 +70,17 @@ public class CAlphabetManager<C> {
 	 */
     private CNodeCreationManager m_pNCManager;
     
-    void ChangeNCManager(CNodeCreationManager newMgr) {this.m_pNCManager = newMgr;}
+    void ChangeNCManager(CNodeCreationManager newMgr) {
+    	//nodes keep their probabilities, but the old NCManager's cache will no longer be used
+    	if (m_pNCManager!=null) m_pNCManager.clearProbCache();
+    	this.m_pNCManager = newMgr;
+    }
+    
+    /** Holds the cumulative probabilities for all our nodes' children (see {@link CAlphNode#GetProbInfo()}) */
+    private final CProbArena m_ProbArena;
+    
+    /** Gets the arena holding our nodes' probabilities, e.g. to report its occupancy */
+    public CProbArena getProbArena() {return m_ProbArena;}
     /**
      * Pointer to the current Alphabet, used to find out what a
      * given character looks like typed (for the purposes
@@ -71,6 +90,9 @@ public class CAlphabetManager<C> {
     
     protected final CAlphabetMap m_AlphabetMap;
     
+    /** Reused by {@link #GetRoot} to read the symbols preceding the root */
+    private final CAlphabetMap.SymbolCursor m_Cursor;
+    
     private int getColour(CDasherNode parent, SGroupInfo group, int phase) {
     	if (group!=null) {
     		if (group.bVisible) return group.iColour;
@@ -93,6 +115,9 @@ public class CAlphabetManager<C> {
     	
     	m_Alphabet = LanguageModel.getAlphabet();
     	m_AlphabetMap = m_Alphabet.makeMap();
+    	m_Cursor = m_AlphabetMap.new SymbolCursor();
+    	//room for the control node, whether or not control mode is on
+    	m_ProbArena = new CProbArena(m_Alphabet.GetNumberSymbols()+2);
     	
     	//ACL TODO: CSFS wrote that repeated requests to CAlphIO.AlphInfo (then CAlphabet)::GetColour,
     	// GetSpaceSymbol and GetDisplayText, were taking up 5% of our runtime; and hence, he cached
@@ -100,10 +125,247 @@ public class CAlphabetManager<C> {
     	// but ought to check that this is efficient enough...
     }
 
-    public int TrainStream(InputStream FileIn, int iTotalBytes, int iOffset,
+    /**
+     * Trains our language model from a stream.
+     * @param cache File in which to cache the symbols decoded from the stream
+     * (see {@link CSymbolCache}), or null not to
+     * @return Number of bytes read (plus iOffset)
+     */
+    public int TrainStream(InputStream FileIn, File cache, int iTotalBytes, int iOffset,
 			 CDasherInterfaceBase.ProgressNotifier prog) throws IOException {
-		return m_AlphabetMap.TrainStream(m_LanguageModel, FileIn, iTotalBytes, iOffset, prog);
+		if (m_LanguageModel instanceof CPPMLanguageModel) {
+			//we train models before use (i.e. before any nodes hold contexts), so pruning is safe.
+			CPPMLanguageModel ppm = (CPPMLanguageModel)m_LanguageModel;
+			ppm.setPruneWhileLearning(true);
+			try {
+				final int iThreads = (int)m_Interface.GetLongParameter(Elp_parameters.LP_TRAIN_THREADS);
+				if (iThreads>1)
+					return m_AlphabetMap.TrainStreamParallel(ppm, FileIn, cache, iTotalBytes, iOffset, prog, iThreads);
+				return m_AlphabetMap.TrainStream(ppm, FileIn, cache, iTotalBytes, iOffset, prog);
+			} finally {
+				ppm.setPruneWhileLearning(false);
+			}
+		}
+		return m_AlphabetMap.TrainStream(m_LanguageModel, FileIn, cache, iTotalBytes, iOffset, prog);
 	}
+
+    /** The language model used to size child nodes (i.e. that which {@link #TrainStream} trains) */
+    /*package*/ CLanguageModel<C> getLanguageModel() {return m_LanguageModel;}
+    
+    /** Number of symbol node contexts computed from the LM, during the current frame */
+    private int m_iContextsComputed;
+    /** Number of symbol nodes deleted without ever computing their context, during the current frame */
+    private int m_iContextsSaved;
+    private int m_iLastFrameComputed, m_iLastFrameSaved;
+    
+    /** Called at the end of each frame, to update the per-frame counts of contexts computed &amp; saved,
+     * and let the language model do any housekeeping */
+    /*package*/ void endFrame() {
+    	m_iLastFrameComputed = m_iContextsComputed; m_iContextsComputed = 0;
+    	m_iLastFrameSaved = m_iContextsSaved; m_iContextsSaved = 0;
+    	synchronized (m_PrefetchLock) {
+    		m_LanguageModel.endFrame();
+    	}
+    	if (!m_Placeholders.isEmpty()) relayoutPlaceholders();
+    	if (m_Prefetched.size()>PREFETCH_KEEP) {
+    		//discard those computed but not (yet) needed; we're probably not going that way after all
+    		for (Iterator<Prefetched> it=m_Prefetched.values().iterator(); it.hasNext();) {
+    			final Prefetched p = it.next();
+    			if (p!=PENDING) {it.remove(); m_ProbArena.release(p.slot); m_iPrefetchWasted++;}
+    		}
+    	}
+    }
+    
+    /** Thread on which probabilities are prefetched, shared by all AlphabetManagers */
+    private static final ExecutorService PREFETCHER = new ThreadPoolExecutor(0, 1, 5, TimeUnit.SECONDS,
+    		new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "Dasher prefetch");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    
+    /** Probabilities computed in the background for a context (the arena slot, to which this holds
+     * a reference), with the model version and NCManager used */
+    private static class Prefetched {
+    	final int slot;
+    	final int iVersion;
+    	final CNodeCreationManager nc;
+    	Prefetched(int slot, int iVersion, CNodeCreationManager nc) {this.slot=slot; this.iVersion=iVersion; this.nc=nc;}
+    }
+    /** Marks a context in {@link #m_Prefetched} whose probabilities have yet to be computed */
+    private static final Prefetched PENDING = new Prefetched(-1, 0, null);
+    /** Max number of entries in {@link #m_Prefetched} before unused ones are discarded */
+    private static final int PREFETCH_KEEP = 64;
+    
+    /** Probabilities prefetched for contexts, and not yet used; or {@link #PENDING} */
+    private final ConcurrentHashMap<C,Prefetched> m_Prefetched = new ConcurrentHashMap<C,Prefetched>();
+    /** Held by the prefetcher while reading the LM, and by the frame thread while the LM
+     * does its end-of-frame housekeeping (e.g. reallocating) */
+    private final Object m_PrefetchLock = new Object();
+    private int m_iPrefetchIssued, m_iPrefetchHits, m_iPrefetchLate, m_iPrefetchWasted;
+    
+    /**
+     * Starts computing, on a background thread, the probabilities for those of the specified nodes
+     * which are ours and do not have them (and whose contexts are not in the NCManager's cache),
+     * so they need not be computed in the frame in which the node is expanded. Only done for
+     * models which are {@link CLanguageModel#isSafeForConcurrentReads() safe} to read while
+     * the frame thread learns (as it does, without {@link #m_PrefetchLock}, when nodes are committed).
+     */
+    public void prefetchChildren(List<CDasherNode> nodes) {
+    	if (!m_LanguageModel.isSafeForConcurrentReads()) return;
+    	final List<C> contexts = new ArrayList<C>(nodes.size());
+    	for (CDasherNode n : nodes) {
+    		CAlphNode a = checkCast(n);
+    		if (a==null || a.ChildCount()>0) continue;
+    		a = a.probInfoOwner();
+    		if (a.probInfo!=-1) continue;
+    		final C ctx = a.getContext();
+    		if (!m_pNCManager.hasCachedProbs(m_LanguageModel, ctx) && m_Prefetched.putIfAbsent(ctx, PENDING)==null)
+    			contexts.add(ctx);
+    	}
+    	if (contexts.isEmpty()) return;
+    	m_iPrefetchIssued += contexts.size();
+    	final CNodeCreationManager nc = m_pNCManager;
+    	PREFETCHER.execute(new Runnable() {
+    		public void run() {
+    			final long[] scratch = new long[nc.numProbs()];
+    			for (C ctx : contexts) {
+    				if (m_Prefetched.get(ctx)!=PENDING) continue; //needed already, so computed in the frame
+    				final Prefetched p;
+    				synchronized (m_PrefetchLock) {
+    					final int iVersion = m_LanguageModel.GetVersion();
+    					p = new Prefetched(nc.computeCumulativeProbs(m_LanguageModel, ctx, scratch), iVersion, nc);
+    				}
+    				if (!m_Prefetched.replace(ctx, PENDING, p)) m_ProbArena.release(p.slot); //needed meanwhile
+    			}
+    		}
+    	});
+    }
+    
+    /**
+     * Takes the probabilities prefetched for a context, if they are ready and still valid,
+     * and puts them in the NCManager's cache.
+     * @return the arena slot holding the probabilities, with a reference for the caller;
+     * or -1 if there are none
+     */
+    private int takePrefetched(C ctx) {
+    	if (m_Prefetched.isEmpty()) return -1;
+    	final Prefetched p = m_Prefetched.remove(ctx);
+    	if (p==null) return -1;
+    	if (p==PENDING) {
+    		m_iPrefetchLate++;
+    		return -1;
+    	}
+    	if (p.nc!=m_pNCManager || p.iVersion!=m_LanguageModel.GetVersion()) {
+    		m_ProbArena.release(p.slot);
+    		return -1;
+    	}
+    	m_iPrefetchHits++;
+    	m_pNCManager.cacheCumulativeProbs(m_LanguageModel, ctx, p.slot, p.iVersion);
+    	return p.slot;
+    }
+    
+    /** Number of contexts whose probabilities have been prefetched */
+    public int getPrefetchIssued() {return m_iPrefetchIssued;}
+    
+    /** Number of prefetched contexts whose probabilities were ready when a node needed them */
+    public int getPrefetchHits() {return m_iPrefetchHits;}
+    
+    /** Number of prefetched contexts needed before their probabilities had been computed */
+    public int getPrefetchLate() {return m_iPrefetchLate;}
+    
+    /** Number of prefetched contexts whose probabilities were discarded unused */
+    public int getPrefetchWasted() {return m_iPrefetchWasted;}
+    
+    /** Nodes whose children were laid out using placeholder probabilities (see
+     * {@link CLanguageModel#HasProbs(Object)}), to be laid out again when the LM has real ones */
+    private final List<CAlphNode> m_Placeholders = new ArrayList<CAlphNode>();
+    
+    /** Lays out again the children of any placeholder nodes for which the LM now has probabilities */
+    private void relayoutPlaceholders() {
+    	boolean bChanged=false;
+    	for (Iterator<CAlphNode> it=m_Placeholders.iterator(); it.hasNext();) {
+    		CAlphNode n = it.next();
+    		if (!n.m_bPlaceholder) {it.remove(); continue;} //deleted since
+    		if (!m_LanguageModel.HasProbs(n.getContext())) continue;
+    		it.remove();
+    		n.m_bPlaceholder = false;
+    		n.releaseProbInfo();
+    		bChanged |= relayoutChildren(n, null, n.GetProbInfo());
+    	}
+    	if (bChanged) m_Interface.Redraw(true);
+    }
+    
+    /**
+     * Recomputes the bounds of the existing children of a node (and of any subgroups' children),
+     * as {@link #IterateChildGroups(CAlphNode, SGroupInfo, CAlphNode)} would compute them
+     * from the specified probabilities.
+     * @return true if the bounds were changed; false if the node's children are not those
+     * IterateChildGroups would have created (e.g. it has none), in which case nothing is changed.
+     */
+    private boolean relayoutChildren(CAlphNode Node, SGroupInfo parentGroup, int probInfo) {
+    	final CProbArena probs = m_ProbArena;
+    	final int iMin,iMax;
+    	final long iRange;
+    	if (parentGroup!=null) {iMin = parentGroup.iStart; iMax = parentGroup.iEnd; iRange = probs.get(probInfo, iMax)-probs.get(probInfo, iMin);}
+    	else {iMin = 0; iMax = m_Alphabet.GetNumberSymbols(); iRange = NORMALIZATION;}
+    	final SGroupInfo firstGroup = (parentGroup==null) ? m_Alphabet.getBaseGroup() : parentGroup.Child;
+    	//First check the children are as expected...
+    	int iChild=0;
+    	SGroupInfo group = firstGroup;
+    	for (int i=iMin; i<iMax; iChild++) {
+    		if (iChild>=Node.ChildCount()) return false;
+    		//a child not yet materialized is as in our layout, so necessarily of the right type
+    		final CDasherNode child = Node.PeekChild(iChild);
+    		if (group==null || i < group.iStart) {
+    			if (child!=null && checkCast(child)==null) return false;
+    			i++;
+    		} else {
+    			if (child!=null) {
+    				final CAlphNode a = checkCast(child);
+    				if (!(a instanceof CAlphabetManager<?>.CGroupNode) || ((CGroupNode)a).m_Group!=group) return false;
+    			}
+    			i = group.iEnd;
+    			group = group.Next;
+    		}
+    	}
+    	final int iExtras = (parentGroup==null) ? probs.length(probInfo)-1-iMax : 0; //e.g. control node
+    	if (Node.ChildCount()!=iChild+iExtras) return false;
+    	//...then set their bounds. (Those not yet materialized will compute theirs from the new probabilities.)
+    	if (Node.m_Layout!=null) Node.setLayoutProbs(probInfo);
+    	iChild=0;
+    	group = firstGroup;
+    	for (int i=iMin; i<iMax; iChild++) {
+    		final boolean bSymbol = group==null || i < group.iStart;
+    		final int iStart=i, iEnd = (bSymbol) ? i+1 : group.iEnd;
+    		final CDasherNode child = Node.PeekChild(iChild);
+    		if (child!=null) {
+    			child.m_iLbnd = (int)(((probs.get(probInfo, iStart) - probs.get(probInfo, iMin)) * NORMALIZATION) / iRange);
+    			child.m_iHbnd = (int)(((probs.get(probInfo, iEnd) - probs.get(probInfo, iMin)) * NORMALIZATION) / iRange);
+    		}
+    		if (bSymbol) i++;
+    		else {
+    			if (child!=null && child.ChildCount()>0) relayoutChildren((CGroupNode)checkCast(child), group, probInfo);
+    			i = group.iEnd;
+    			group = group.Next;
+    		}
+    	}
+    	for (int i=0; i<iExtras; i++, iChild++) {
+    		final CDasherNode child = Node.ChildAtIndex(iChild);
+    		child.m_iLbnd = (int)probs.get(probInfo, iMax+i);
+    		child.m_iHbnd = (int)probs.get(probInfo, iMax+i+1);
+    	}
+    	return true;
+    }
+    
+    /** Number of symbol nodes whose (lazily-computed) context was needed, in the last complete frame */
+    public int getContextsComputedLastFrame() {return m_iLastFrameComputed;}
+    
+    /** Number of context computations saved in the last complete frame, i.e. of symbol
+     * nodes deleted without their context ever being needed */
+    public int getContextsSavedLastFrame() {return m_iLastFrameSaved;}
 	
     /**
      * Creates a new root CDasherNode with the supplied parameters. (Parent, Lower, Upper:
@@ -115,7 +377,7 @@ public class CAlphabetManager<C> {
     public CAlphNode GetRoot(Document doc, int iOffset, boolean bEnteredLast) {
     	if (iOffset < -1) throw new IllegalArgumentException("offset "+iOffset+" must be at least -1");
     	C ctx;
-    	Iterator<Integer> previousSyms = m_AlphabetMap.GetSymbolsBackwards(doc, iOffset);
+    	final CAlphabetMap.SymbolCursor previousSyms = m_Cursor.reset(doc, iOffset);
 		if (bEnteredLast) {
     		if (previousSyms.hasNext()) {
 	    		int iSym = previousSyms.next();
@@ -175,9 +437,28 @@ public class CAlphabetManager<C> {
 			strTrainfileContext.setLength(0);
 		}
 		intf.WriteTrainFile(m_Alphabet.GetTrainingFile(),strTrainfileBuffer.toString());
+		if (m_RecordedText!=null) m_RecordedText.append(strTrainfileBuffer);
 		strTrainfileBuffer.setLength(0);
 	}
 	
+	/** If non-null, a copy of all text written to the training file; see {@link #recordTrainText()} */
+	private StringBuilder m_RecordedText;
+	
+	/**
+	 * Starts keeping a copy of all text written to the training file, e.g. while our LM is
+	 * a placeholder for one still training, so the latter can learn it too.
+	 */
+	/*package*/ void recordTrainText() {
+		m_RecordedText = new StringBuilder();
+	}
+	
+	/** Gets the text recorded since {@link #recordTrainText()}, and stops recording */
+	/*package*/ String takeRecordedText() {
+		final String s = (m_RecordedText==null) ? "" : m_RecordedText.toString();
+		m_RecordedText = null;
+		return s;
+	}
+	
 	private boolean isValidDelim(char c) {
 		if (c==m_Alphabet.ctxChar) return false;
 		for (int i=0; i<strTrainfileContext.length(); i++)
@@ -196,38 +477,48 @@ public class CAlphabetManager<C> {
 		return null;
 	}
 	
-    abstract class CAlphNode extends CDasherNode {
+    abstract class CAlphNode extends CDasherNode implements CDasherNode.LazyChildren {
     	
     	protected final CAlphabetManager<C> mgr() {return CAlphabetManager.this;}
     	protected CDasherInterfaceBase getIntf() {return CAlphabetManager.this.m_Interface;}
-    	private long[] probInfo;
+    	/** Arena slot holding the probabilities for our context, to which we hold a reference; or -1 if not computed */
+    	private int probInfo=-1;
+    	/** If our children were added lazily, the symbols and groups they represent; else null */
+    	private ChildLayout m_Layout;
+    	/** Arena slot holding the probabilities from which the bounds of our lazily-added
+    	 * children are computed (we hold a reference); or -1 if none */
+    	private int m_LayoutProbs=-1;
+    	/** Whether our children were laid out using placeholder probabilities, i.e. we are in {@link #m_Placeholders} */
+    	private boolean m_bPlaceholder;
     	private boolean m_bCommitted;
     	/**
     	 * Language model context corresponding to this node's
-    	 * position in the tree.
+    	 * position in the tree. (For a CSymbolNode whose context is still
+    	 * pending, that of its parent, instead.)
     	 */
     	private C context;
     	
+    	/** Gets the language model context corresponding to this node's position in the tree */
+    	C getContext() {return context;}
+    	
     	private CAlphNode() {}
     	@Override
-    	protected final void initNode(int iOffset, int colour, String label) {
+    	protected final void initNode(int iOffset, int colour) {
     		throw new RuntimeException("Call version with extra context arg instead");
     	}
-        void initNode(int iOffset, int Colour, C context, String label) {
-			super.initNode(iOffset, Colour, label);
+        void initNode(int iOffset, int Colour, C context) {
+			super.initNode(iOffset, Colour);
 			this.context = context;
 			this.m_bCommitted = false;
 		}
         
         @Override public int ExpectedNumChildren() {
-        	return m_Alphabet.numChildNodes();
+        	return m_Alphabet.numChildNodes()+m_pNCManager.numExtraNodes();
         }
         @Override
         public void DeleteNode() {
-        	if (probInfo!=null) {
-        		m_pNCManager.recycleProbArray(probInfo);
-        		probInfo=null;
-        	}
+        	releaseProbInfo(); //shared, via NCManager's cache - so only freed once all have finished with it
+        	m_bPlaceholder=false;
         	if (lastOutput==this) lastOutput=null;
         	if (isSeen() && !m_bCommitted) {
         		// Node will already have put itself into strTrainfileBuffer,
@@ -239,6 +530,40 @@ public class CAlphabetManager<C> {
         	m_bCommitted=false;
         }
 
+        @Override
+        public void Delete_children() {
+        	super.Delete_children();
+        	m_Layout=null;
+        	setLayoutProbs(-1);
+        }
+        
+        /** Changes the probabilities from which lazily-added children's bounds are computed, keeping a reference */
+        void setLayoutProbs(int slot) {
+        	if (slot!=-1) m_ProbArena.retain(slot);
+        	if (m_LayoutProbs!=-1) m_ProbArena.release(m_LayoutProbs);
+        	m_LayoutProbs = slot;
+        }
+
+        public long lazyChildBound(int i) {
+        	final ChildLayout l = m_Layout;
+        	final CProbArena probs = m_ProbArena;
+        	final long iMinProb = probs.get(m_LayoutProbs, l.iMin);
+        	final long iRange = (l.bGroup) ? probs.get(m_LayoutProbs, l.iMax)-iMinProb : NORMALIZATION;
+        	return ((probs.get(m_LayoutProbs, l.starts[i]) - iMinProb) * NORMALIZATION) / iRange;
+        }
+
+        public CDasherNode materializeChild(int i) {
+        	final SGroupInfo group = m_Layout.groups[i];
+        	if (group==null) {
+        		final int sym = m_Layout.starts[i];
+        		//context is computed lazily, from ours, when first needed (as mkSymbol)
+        		CSymbolNode n = allocSymbol(getOffset()+m_Alphabet.GetText(sym).length(), sym, getContext());
+        		n.m_bContextPending = true;
+        		return n;
+        	}
+        	return allocGroup(getOffset(), group, getColour(this, group, getOffset()), getContext());
+        }
+
         @Override public void Output() {
         	if (lastOutput!=null && lastOutput==Parent())
         		lastOutput=this;
@@ -259,14 +584,49 @@ public class CAlphabetManager<C> {
         	m_bCommitted |= bNv;
         }
         
-        protected long[] GetProbInfo() {
-        	if (probInfo == null) {
-	        	probInfo = m_pNCManager.GetProbs(m_LanguageModel,context);
-	        	for (int i=1; i<probInfo.length; i++)
-	        		probInfo[i]+=probInfo[i-1];
+        /**
+         * Gets the cumulative probabilities for our children, computing them if necessary.
+         * @return slot in {@link #m_ProbArena} holding them; only valid while we hold it
+         * (i.e. until we are deleted, or laid out again)
+         */
+        protected int GetProbInfo() {
+        	if (probInfo == -1) {
+        		final C ctx = getContext();
+        		final boolean bReal = m_LanguageModel.HasProbs(ctx);
+        		final int pre = takePrefetched(ctx);
+	        	setProbInfo(pre!=-1 ? pre : m_pNCManager.GetCumulativeProbs(m_LanguageModel,ctx), bReal);
         	}
         	return probInfo;
         }
+        
+        /** Releases our reference to the probabilities for our context, if we have them */
+        private void releaseProbInfo() {
+        	if (probInfo!=-1) {
+        		m_ProbArena.release(probInfo);
+        		probInfo=-1;
+        	}
+        }
+        
+        /**
+         * Stores the probabilities computed for our context
+         * @param probInfo arena slot holding them; we take over the caller's reference
+         * @param bReal whether the LM {@link CLanguageModel#HasProbs(Object) had} real
+         * probabilities for it, checked before they were computed
+         */
+        private void setProbInfo(int probInfo, boolean bReal) {
+        	this.probInfo = probInfo;
+        	if (!bReal && !m_bPlaceholder) {
+        		m_bPlaceholder = true;
+        		m_Placeholders.add(this);
+        	}
+        }
+        
+        /** The node whose {@link #probInfo} this one uses, i.e. this */
+        CAlphNode probInfoOwner() {return this;}
+        
+        @Override public CDasherNode.BatchPreparer getBatchPreparer() {
+        	return CAlphabetManager.this;
+        }
      	
         /**
 		 * Reconstructs the parent of a given node, in the case that
@@ -337,10 +697,14 @@ public class CAlphabetManager<C> {
     }
 
     class SpecialNode extends COutputNode {
+    	private final String m_strText;
 		SpecialNode(int iOffset, String string, C ctx) {
-			initNode(iOffset, 1, ctx, string);
+			initNode(iOffset, 1, ctx);
+			this.m_strText = string;
 		}
 		@Override
+		public String getDisplayText() {return m_strText;}
+		@Override
 		protected CGroupNode rebuildGroup(CAlphNode parent, SGroupInfo group, long iLbnd, long iHbnd) {
 			return CAlphabetManager.this.mkGroup(parent,group,iLbnd,iHbnd);
 		}
@@ -350,13 +714,13 @@ public class CAlphabetManager<C> {
 			return CAlphabetManager.this.mkSymbol(parent, sym, iLbnd, iHbnd);
 		}
 
-		protected String outputText() {return m_strDisplayText;}
+		protected String outputText() {return m_strText;}
 		
 		@Override
 		public CDasherNode RebuildParent() {
 			if (Parent()==null) {
 				//make a node for the previous symbol - i.e. as we'd expect our parent to be...
-				CAlphNode n = GetRoot(this, getOffset()-m_strDisplayText.length(), true);
+				CAlphNode n = GetRoot(this, getOffset()-m_strText.length(), true);
 				n.Seen(true); n.m_bCommitted=true;
 
 				//however, n won't generate us as a child. That's ok: we'll put in
@@ -367,7 +731,7 @@ public class CAlphabetManager<C> {
 				// if we were a normal symbol, but instead will contain all the
 				// sensible, normal, symbols the user could enter in our place.
 				// However, it will sit beneath our common faked-out parent...
-				CAlphNode temp = GetRoot(this, getOffset()-m_strDisplayText.length(), false);
+				CAlphNode temp = GetRoot(this, getOffset()-m_strText.length(), false);
 				temp.Reparent(n, 0, cutOff);
 				
 				//make ourselves a child too - as long as n remembers...
@@ -391,16 +755,39 @@ public class CAlphabetManager<C> {
     	private CSymbolNode() {}
     	
     	@Override
-    	final void initNode(int iOffset, int Colour, C context, String label) {
-    		throw new RuntimeException("Use (int, int, C) instead");
+    	final void initNode(int iOffset, int Colour, C context) {
+    		throw new RuntimeException("Use initSymbol(int, int, C) instead");
     	}
-    	void initNode(int iOffset, int symbol, C context) {
-			super.initNode(iOffset, m_Alphabet.GetColour(symbol, iOffset), context, m_Alphabet.GetDisplayText(symbol));
+    	
+    	/** Initializes as a node for the specified symbol, from which the colour is computed */
+    	void initSymbol(int iOffset, int symbol, C context) {
+			super.initNode(iOffset, m_Alphabet.GetColour(symbol, iOffset), context);
 			this.m_Symbol = symbol;
+			this.m_bContextPending = false;
 		}
     	
+    	/**
+    	 * If true, our context has not yet been computed, and the context field
+    	 * instead holds our parent's. Most symbol nodes are only ever drawn as boxes,
+    	 * so we wait until our context is actually needed - e.g. to populate our
+    	 * children, or to learn our symbol - before asking the LanguageModel for it.
+    	 */
+    	private boolean m_bContextPending;
+    	
+    	@Override C getContext() {
+    		if (m_bContextPending) {
+    			((CAlphNode)this).context = m_LanguageModel.ContextWithSymbol(((CAlphNode)this).context, m_Symbol);
+    			m_bContextPending = false;
+    			m_iContextsComputed++;
+    		}
+    		return ((CAlphNode)this).context;
+    	}
+    	
     	protected String outputText() {return m_Alphabet.GetText(m_Symbol);}
     	
+    	@Override
+    	public String getDisplayText() {return m_Alphabet.GetDisplayText(m_Symbol);}
+    	
     	/**
     	 * Symbol number represented by this node
     	 */
@@ -412,7 +799,7 @@ public class CAlphabetManager<C> {
         		prob *= p.Range();
         		p=p.Parent();
         		if (p==null) return prob; //shouldn't really happen, but...?
-        		prob /= p.ChildAtIndex(p.ChildCount()-1).Hbnd();
+        		prob /= p.ChildHbnd(p.ChildCount()-1);
         	} while (!(p instanceof CAlphabetManager<?>.CSymbolNode));
         	return prob;
     	}
@@ -442,7 +829,7 @@ public class CAlphabetManager<C> {
        				// get it from the document/context (as the node is being output
        				// into that document/context now, so it must exist!)
        				tempList.clear(); strTrainfileContext.setLength(0);
-       				m_LanguageModel.ContextToSymbols(checkCast(Parent()).context,tempList);
+       				m_LanguageModel.ContextToSymbols(checkCast(Parent()).getContext(),tempList);
        				for (int i=0; i<tempList.size(); i++)
        					strTrainfileContext.append(m_Alphabet.GetText(tempList.get(i)));
        			}
@@ -489,7 +876,10 @@ public class CAlphabetManager<C> {
 					// and update this node's context with the new one
 					// (assists later learning, plus in case this node
 					// ever regenerates its children)
-					((CAlphNode)this).context = m_LanguageModel.ContextLearningSymbol(parent.context, m_Symbol);
+					// (If our context was pending, this saves computing it separately.)
+					// The LM may defer the learning itself to another thread, so as not to hold up the frame.
+					((CAlphNode)this).context = m_LanguageModel.ContextLearningSymbolLater(parent.getContext(), m_Symbol);
+					m_bContextPending = false;
 				}
 			}
 			super.commit(bNv);
@@ -521,7 +911,11 @@ public class CAlphabetManager<C> {
 		@Override
 		public void DeleteNode() {
 			super.DeleteNode(); //clears Parent(), hence have to do the above first...
-			freeSymbolList.add(this);
+			if (m_bContextPending) {
+				m_iContextsSaved++;
+				m_bContextPending = false;
+			}
+			m_FreeSymbols.free(this);
 		}
 
     }
@@ -529,14 +923,19 @@ public class CAlphabetManager<C> {
     protected class CGroupNode extends CAlphNode {
     	private CGroupNode() {}
     	@Override
-    	final void initNode(int iOffset, int Colour, C context, String label) {
+    	final void initNode(int iOffset, int Colour, C context) {
     		throw new RuntimeException("Use (int, SGroupInfo, long, long, C) instead");
     	}
     	
     	void initNode(int iOffset, SGroupInfo group, int iColour, C context) {
-			super.initNode(iOffset, iColour, context, (group==null || !group.bVisible) ? "" : group.strLabel);
+			super.initNode(iOffset, iColour, context);
 			this.m_Group = group;
 		}
+    	
+    	@Override
+    	public String getDisplayText() {
+    		return (m_Group==null || !m_Group.bVisible) ? "" : m_Group.strLabel;
+    	}
 
     	@Override
     	public boolean visible() {
@@ -552,7 +951,7 @@ public class CAlphabetManager<C> {
     		IterateChildGroups(this, m_Group, null);
     		if (ChildCount()==1) {
     			//avoid colours blinking as the child entirely covers over this...
-    			CDasherNode child = Children().get(0);
+    			CDasherNode child = ChildAtIndex(0);
     			assert (child.Lbnd() == 0 && child.Hbnd() == NORMALIZATION);
     			child.setColour(Colour());
     		}
@@ -564,14 +963,19 @@ public class CAlphabetManager<C> {
 			return Parent();
     	}
     	
+    	@Override CAlphNode probInfoOwner() {
+    		final CAlphNode parent = (m_Group!=null && Parent()!=null) ? checkCast(Parent()) : null;
+    		return (parent!=null) ? parent.probInfoOwner() : this;
+    	}
+    	
     	@Override
-    	protected long[] GetProbInfo() {
+    	protected int GetProbInfo() {
     		if (m_Group!=null && (Parent() instanceof CAlphabetManager<?>.CAlphNode)) {
     			//subgroups use same probinfo as parent...
     			CAlphabetManager<?>.CAlphNode p = (CAlphabetManager<?>.CAlphNode)Parent();
     			assert p.mgr() == mgr();
     			return p.GetProbInfo();
-    			//note, long[] is still stored only in parent.
+    			//note, the slot is still referenced only by the parent.
     		}
     		return super.GetProbInfo();
     	}
@@ -598,16 +1002,50 @@ public class CAlphabetManager<C> {
 		@Override
 		public void DeleteNode() {
 			super.DeleteNode();
-			freeGroupList.add(this);
+			m_FreeGroups.free(this);
 		}
     }
 
+    /**
+     * Computes the probabilities for all the specified nodes of ours, which don't yet have
+     * them, in one batch (see {@link CNodeCreationManager#GetCumulativeProbs(CLanguageModel, List, int[])}).
+     */
+    public void prepareChildren(List<CDasherNode> nodes) {
+    	final List<CAlphNode> owners = new ArrayList<CAlphNode>(nodes.size());
+    	final List<C> contexts = new ArrayList<C>(nodes.size());
+    	final List<Boolean> real = new ArrayList<Boolean>(nodes.size());
+    	for (CDasherNode n : nodes) {
+    		CAlphNode a = checkCast(n);
+    		if (a==null || a.ChildCount()>0) continue;
+    		a = a.probInfoOwner();
+    		if (a.probInfo!=-1) continue;
+    		final C ctx = a.getContext();
+    		final int pre = takePrefetched(ctx);
+    		if (pre!=-1) {
+    			a.setProbInfo(pre, m_LanguageModel.HasProbs(ctx));
+    			continue;
+    		}
+    		owners.add(a);
+    		contexts.add(ctx);
+    		real.add(m_LanguageModel.HasProbs(ctx));
+    	}
+    	if (owners.size()<2) return; //nothing to share, leave to GetProbInfo
+    	final int[] probs = new int[owners.size()];
+    	m_pNCManager.GetCumulativeProbs(m_LanguageModel, contexts, probs);
+    	for (int i=0; i<owners.size(); i++)
+    		owners.get(i).setProbInfo(probs[i], real.get(i));
+    }
+    
     /**
      * Creates the children of a given Node, from which probabilities are extracted.
      * associated with said children and, perhaps, one child which already exists.
      * <p>
      * The probabilties supplied should not be cumulative, but should be normalised
      * such that they add up to the value of LP_NORMALIZATION.
+     * <p>
+     * Unless rebuilding around an existing child, the symbol and group children are added
+     * lazily (see {@link CDasherNode#addLazyChildren(CDasherNode, int)}): node objects are only created
+     * for those actually rendered or entered.
      * 
      * @param Node Node whose children are to be populated.
      * @param iExistingSymbol Symbol of its existing child, or -2 if there is none.
@@ -617,11 +1055,22 @@ public class CAlphabetManager<C> {
      */    
     public void IterateChildGroups( CAlphNode Node, SGroupInfo parentGroup, CAlphNode buildAround) {
     	
-    	long[] probInfo = Node.GetProbInfo();
+    	final int probInfo = Node.GetProbInfo();
+    	
+    	if (buildAround==null) {
+    		//Most children will never be rendered, so just record which symbols & groups they are
+    		final ChildLayout layout = getLayout(parentGroup);
+    		Node.m_Layout = layout;
+    		Node.setLayoutProbs(probInfo);
+    		CDasherNode.addLazyChildren(Node, layout.groups.length);
+    		if (parentGroup==null) m_pNCManager.addExtraNodes(Node, probInfo);
+    		return;
+    	}
     	
     	final int iMin,iMax; //first & last syms
     	final long iRange; //range of probabilities for all children (syms as prev, plus "extras" e.g. Control Nodes)
-    	if (parentGroup!=null) {iMin = parentGroup.iStart; iMax = parentGroup.iEnd; iRange = probInfo[iMax]-probInfo[iMin];}
+    	final CProbArena probs = m_ProbArena;
+    	if (parentGroup!=null) {iMin = parentGroup.iStart; iMax = parentGroup.iEnd; iRange = probs.get(probInfo, iMax)-probs.get(probInfo, iMin);}
     	else {iMin = 0; iMax = m_Alphabet.GetNumberSymbols(); iRange = NORMALIZATION;}
     	  
     	  // Create child nodes and add them
@@ -636,9 +1085,9 @@ public class CAlphabetManager<C> {
     	                  || i < group.iStart; //not reached next subgroup
     	    final int iStart=i, iEnd = (bSymbol) ? i+1 : group.iEnd;
 
-    	    final long iLbnd = ((probInfo[iStart] - probInfo[iMin]) * NORMALIZATION) /
+    	    final long iLbnd = ((probs.get(probInfo, iStart) - probs.get(probInfo, iMin)) * NORMALIZATION) /
     	                         iRange;
-    	    final long iHbnd = ((probInfo[iEnd] - probInfo[iMin]) * NORMALIZATION) /
+    	    final long iHbnd = ((probs.get(probInfo, iEnd) - probs.get(probInfo, iMin)) * NORMALIZATION) /
     	                         iRange;
     	    
     	    if (bSymbol) {
@@ -649,41 +1098,97 @@ public class CAlphabetManager<C> {
     	      i = group.iEnd; //make one group at a time - so move past entire group...
     	      group = group.Next;
     	    }
-    	    assert Node.Children().get(Node.ChildCount()-1)==pNewChild;
+    	    assert Node.PeekChild(Node.ChildCount()-1)==pNewChild;
     	  }
     	  if (parentGroup==null) m_pNCManager.addExtraNodes(Node, probInfo);
     }
     
+    /**
+     * The children that {@link #IterateChildGroups(CAlphNode, SGroupInfo, CAlphNode)} creates
+     * for a node in a particular group, in order: for each, its first symbol, and the group
+     * it represents (or null, for a single symbol). Depends only on the alphabet, so is
+     * computed once per group and shared by all nodes.
+     */
+    private static final class ChildLayout {
+    	/** Whether for a group (rather than the whole alphabet); if so, child bounds are relative to the group's range */
+    	final boolean bGroup;
+    	/** First & after-last symbol of the group */
+    	final int iMin, iMax;
+    	/** First symbol of each child, followed by iMax */
+    	final int[] starts;
+    	/** Group of each child, or null where the child is a symbol */
+    	final SGroupInfo[] groups;
+    	ChildLayout(boolean bGroup, int iMin, int iMax, int[] starts, SGroupInfo[] groups) {
+    		this.bGroup=bGroup; this.iMin=iMin; this.iMax=iMax; this.starts=starts; this.groups=groups;
+    	}
+    }
+    
+    /** Layouts computed so far, by parent group (null for the whole alphabet) */
+    private final Map<SGroupInfo, ChildLayout> m_Layouts = new HashMap<SGroupInfo, ChildLayout>();
+    
+    private ChildLayout getLayout(SGroupInfo parentGroup) {
+    	ChildLayout l = m_Layouts.get(parentGroup);
+    	if (l==null) {
+    		final int iMin = (parentGroup==null) ? 0 : parentGroup.iStart;
+    		final int iMax = (parentGroup==null) ? m_Alphabet.GetNumberSymbols() : parentGroup.iEnd;
+    		final List<SGroupInfo> groups = new ArrayList<SGroupInfo>();
+    		final List<Integer> starts = new ArrayList<Integer>();
+    		SGroupInfo group = (parentGroup==null) ? m_Alphabet.getBaseGroup() : parentGroup.Child;
+    		for (int i=iMin; i<iMax;) {
+    			starts.add(i);
+    			if (group==null || i < group.iStart) {
+    				groups.add(null);
+    				i++;
+    			} else {
+    				groups.add(group);
+    				i = group.iEnd;
+    				group = group.Next;
+    			}
+    		}
+    		final int[] iStarts = new int[starts.size()+1];
+    		for (int i=0; i<starts.size(); i++) iStarts[i] = starts.get(i);
+    		iStarts[starts.size()] = iMax;
+    		l = new ChildLayout(parentGroup!=null, iMin, iMax, iStarts, groups.toArray(new SGroupInfo[groups.size()]));
+    		m_Layouts.put(parentGroup, l);
+    	}
+    	return l;
+    }
+    
     /** General/utility method (e.g. for subclasses, perhaps to override)
      * to make a symbol node, as a child of another, in the default manner. 
      * @return
      */
     CDasherNode mkSymbol(CAlphNode parent, int sym, long iLbnd, long iHbnd) {
-    	CSymbolNode n = allocSymbol(parent.getOffset()+m_Alphabet.GetText(sym).length(), sym,
-    			m_LanguageModel.ContextWithSymbol(parent.context, sym));
+    	//context is computed lazily, from the parent's, when first needed
+    	CSymbolNode n = allocSymbol(parent.getOffset()+m_Alphabet.GetText(sym).length(), sym, parent.getContext());
+    	n.m_bContextPending = true;
     	n.Reparent(parent, iLbnd, iHbnd);
     	return n;
     }
     
     CGroupNode mkGroup(CAlphNode parent, SGroupInfo group, long iLbnd, long iHbnd) {
-    	CGroupNode n = allocGroup(parent.getOffset(), group, getColour(parent, group, parent.getOffset()), parent.context);
+    	CGroupNode n = allocGroup(parent.getOffset(), group, getColour(parent, group, parent.getOffset()), parent.getContext());
     	n.Reparent(parent, iLbnd, iHbnd);
     	return n;
     }
     
-    private final List<CGroupNode> freeGroupList = new ArrayList<CGroupNode>();
+    private final CNodePool.FreeList<CGroupNode> m_FreeGroups = new CNodePool.FreeList<CGroupNode>(CNodePool.SHARED, "CGroupNode") {
+    	@Override protected CGroupNode make() {return new CGroupNode();}
+    };
     
     private CGroupNode allocGroup(int iOffset, SGroupInfo group, int iColour, C ctx) {
-    	CGroupNode node = (freeGroupList.isEmpty()) ? new CGroupNode() : freeGroupList.remove(freeGroupList.size()-1);
+    	CGroupNode node = m_FreeGroups.alloc();
     	node.initNode(iOffset, group, iColour, ctx);
     	return node;
     }
 
-    private final List<CSymbolNode> freeSymbolList = new ArrayList<CSymbolNode>();
+    private final CNodePool.FreeList<CSymbolNode> m_FreeSymbols = new CNodePool.FreeList<CSymbolNode>(CNodePool.SHARED, "CSymbolNode") {
+    	@Override protected CSymbolNode make() {return new CSymbolNode();}
+    };
     
     private CSymbolNode allocSymbol(int iOffset, int sym, C ctx) {
-    	CSymbolNode node = (freeSymbolList.isEmpty()) ? new CSymbolNode() : freeSymbolList.remove(freeSymbolList.size()-1);
-    	node.initNode(iOffset, sym, ctx);
+    	CSymbolNode node = m_FreeSymbols.alloc();
+    	node.initSymbol(iOffset, sym, ctx);
     	return node;
     }
 
@@ -25,16 +25,26 @@
 
 package dasher;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PushbackReader;
-import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Map from the textual representation of alphabet symbols
@@ -47,15 +57,22 @@ public class CAlphabetMap {
 	/** The alphabet which this map represents */
 	public final CAlphIO.AlphInfo m_AlphInfo;
 	
-	private List<Integer> defaultContextSyms;
+	/** Symbols of the alphabet's default context, computed on first use */
+	private int[] defaultContextSyms;
 	public <C> C defaultContext(CLanguageModel<C> model) {
 		if (defaultContextSyms==null) {
-			defaultContextSyms = new ArrayList<Integer>();
-			GetSymbols(defaultContextSyms, m_AlphInfo.getDefaultContext());
+			final String text = m_AlphInfo.getDefaultContext();
+			final int[] syms = new int[text.length()];
+			final int len = GetSymbols(text, syms);
+			if (len==syms.length) defaultContextSyms = syms;
+			else {
+				defaultContextSyms = new int[len];
+				System.arraycopy(syms, 0, defaultContextSyms, 0, len);
+			}
 		}
 		C ctx = model.EmptyContext();
-		for (int i=0; i<defaultContextSyms.size(); i++)
-			ctx = model.ContextWithSymbol(ctx, defaultContextSyms.get(i));
+		for (int i=0; i<defaultContextSyms.length; i++)
+			ctx = model.ContextWithSymbol(ctx, defaultContextSyms[i]);
 		return ctx;
 	}
 	
@@ -64,30 +81,41 @@ public class CAlphabetMap {
 	 */
 	private int m_ParagraphSymbol=UNDEFINED;
 	
-	/**
-	 *  Map from unicode "code point" (a 32-bit int representing a single output text character),
-	 * to Dasher's internal symbol number, but <emph>only</emph> for characters outside the range 0-255.
-	 * @see #singleChars
-	 */
-	private final HashMap<Integer, Integer> multiChars = new HashMap<Integer, Integer>();
+	/** Number of bits of a code point used to index within a page of {@link #m_Pages} */
+	private static final int PAGE_BITS = 8;
+	private static final int PAGE_MASK = (1<<PAGE_BITS)-1;
 	
 	/**
-	 * Map to symbol number from output text, for symbols whose unicode value is <=255.
-	 * @see #multiChars
+	 * Map from unicode "code point" (a 32-bit int representing a single output text character),
+	 * to Dasher's internal symbol number. Two-level: indexed first by the code point's high bits,
+	 * giving a page (null if no characters in that page are mapped), then by its low
+	 * {@link #PAGE_BITS} bits, giving the symbol number or {@link #UNDEFINED}. The first page
+	 * (i.e. Latin-1) is always present, so an alphabet of n symbols in a few scripts takes
+	 * a handful of pages - and no boxing to look up.
 	 */
-	private int[] singleChars = new int[256];
+	private final int[][] m_Pages = new int[(Character.MAX_CODE_POINT>>PAGE_BITS)+1][];
 	
 	public CAlphabetMap(CAlphIO.AlphInfo alphInfo) {
 		this.m_AlphInfo = alphInfo;
-		Arrays.fill(singleChars, UNDEFINED);
+		page(0);
+	}
+	
+	/** Gets the page of {@link #m_Pages} for a code point, creating it if necessary */
+	private int[] page(int codePoint) {
+		int[] page = m_Pages[codePoint>>PAGE_BITS];
+		if (page==null) {
+			page = m_Pages[codePoint>>PAGE_BITS] = new int[PAGE_MASK+1];
+			Arrays.fill(page, UNDEFINED);
+		}
+		return page;
 	}
 	
 	public void AddParagraphSymbol(int value) {
 		if (m_ParagraphSymbol!=UNDEFINED)
 			throw new IllegalStateException("Paragraph symbol already defined as "+m_ParagraphSymbol);
-		if (singleChars['\r']!=UNDEFINED) throw new IllegalStateException("Can't add paragraph symbol, \r already defined");
-		if (singleChars['\n']!=UNDEFINED) throw new IllegalStateException("Can't add paragraph symbol, \n already defined");
-		singleChars['\n']=m_ParagraphSymbol=value;
+		if (GetSymbol('\r')!=UNDEFINED) throw new IllegalStateException("Can't add paragraph symbol, \r already defined");
+		if (GetSymbol('\n')!=UNDEFINED) throw new IllegalStateException("Can't add paragraph symbol, \n already defined");
+		page('\n')['\n']=m_ParagraphSymbol=value;
 	}
 	/**
 	 * Adds a symbol to the map.
@@ -105,19 +133,13 @@ public class CAlphabetMap {
 	public void Add(String key, int value) {
 		if (key.codePointCount(0, key.length())!=1) throw new IllegalArgumentException("Not a single character "+key);
 		if (value<0) throw new IllegalArgumentException("Illegal symbol number "+value + " for display text "+key);
-		if (key.charAt(0)<256) {
-			assert (key.length()==1);
-			if (singleChars[key.charAt(0)]!=UNDEFINED) throw new IllegalArgumentException("Char "+key.charAt(0)+" already mapped to symbol number "+singleChars[key.charAt(0)]);
-			if (key.charAt(0)=='\r' && m_ParagraphSymbol!=UNDEFINED) throw new IllegalArgumentException("Can't define \r if paragraph symbol exists");
-			singleChars[key.charAt(0)]=value;
-		} else {
-			assert (key.length()==1 && !Character.isHighSurrogate(key.charAt(0)) && !Character.isLowSurrogate(key.charAt(0)))
-				|| (key.length()==2 && Character.isSurrogatePair(key.charAt(0), key.charAt(1)));
-			int codePoint=key.codePointAt(0);
-			if (multiChars.get(codePoint)!=null)
-				throw new IllegalArgumentException("Key \""+key+"\" already mapped to symbol number "+multiChars.get(codePoint));
-			multiChars.put(codePoint, value);
-		}
+		assert (key.length()==1 && !Character.isHighSurrogate(key.charAt(0)) && !Character.isLowSurrogate(key.charAt(0)))
+			|| (key.length()==2 && Character.isSurrogatePair(key.charAt(0), key.charAt(1)));
+		final int codePoint=key.codePointAt(0);
+		if (GetSymbol(codePoint)!=UNDEFINED)
+			throw new IllegalArgumentException("Key \""+key+"\" already mapped to symbol number "+GetSymbol(codePoint));
+		if (codePoint=='\r' && m_ParagraphSymbol!=UNDEFINED) throw new IllegalArgumentException("Can't define \r if paragraph symbol exists");
+		page(codePoint)[codePoint & PAGE_MASK]=value;
 	}
 	
 	/**
@@ -127,50 +149,90 @@ public class CAlphabetMap {
 	 * @param Input String to be converted.
 	 */	
 	public void GetSymbols(Collection<Integer> Symbols, String input) {
+		final int[] syms = new int[input.length()];
+		final int len = GetSymbols(input, syms);
+		for (int i=0; i<len; i++) Symbols.add(syms[i]);
+	}
+	
+	/**
+	 * Converts a string of text into symbol identifiers, without allocating.
+	 * 
+	 * @param input String to be converted.
+	 * @param into Array to fill with symbol identifiers, from index 0; must be at least
+	 * as long as <code>input</code> (there is at most one symbol per char).
+	 * @return Number of symbols written
+	 */
+	public int GetSymbols(String input, int[] into) {
+		int len=0;
 		for (int nextIdx=0; nextIdx<input.length(); nextIdx++) {
 			char c = input.charAt(nextIdx);
 			int codePoint;
 			if (Character.isHighSurrogate(c)) {
 				if (nextIdx+1 < input.length() && Character.isLowSurrogate(input.charAt(nextIdx+1))) {
 					codePoint = input.codePointAt(nextIdx);
-					//and fallthrough to multiChars lookup
+					nextIdx++; //skip low surrogate
 				} else {
 					System.err.println("High surrogate "+c+" not followed by low surrogate, skipping");
 					continue;
 				}
 			} else if (m_ParagraphSymbol!=UNDEFINED && c=='\r') {
 				if (nextIdx+1 < input.length() && input.charAt(nextIdx+1)=='\n') {
-					Symbols.add(m_ParagraphSymbol);
+					into[len++] = m_ParagraphSymbol;
 					nextIdx++; //skip \n
 				} else {
 					System.err.println("Carriage return not followed by newline, skipping");
 				}
 				continue;
-			} else if (c<256) {
-				Symbols.add(singleChars[c]);
-				continue;
 			} else codePoint=c;
-			Integer i = multiChars.get(codePoint);
-			Symbols.add(i==null ? UNDEFINED : i);
+			into[len++] = GetSymbol(codePoint);
 		}
+		return len;
 	}
 	
 	/**
-	 * Gets an iterator returning symbols (in this alphabet), reconstructing them
-	 * from the text of the specified document going <em>backwards</em> (that is,
-	 * successive calls to <code>next()</code> will return symbols from further
-	 * and further back / longer and longer ago, in that document)
-	 * @param doc Document to symbolicate
-	 * @param iStartOffset (greatest) index of character in document to use. (I.e.
-	 * this will be the first symbol returned, or part thereof if a two-char unicode
-	 * charpoint.)
-	 * @return Iterator returning successively-longer-ago symbols from the document
+	 * Gets the symbol for a single unicode character.
+	 * @param codePoint unicode value of the character
+	 * @return symbol number, or {@link #UNDEFINED} if the character is not in the alphabet
 	 */
-	public Iterator<Integer> GetSymbolsBackwards(final Document doc, final int iStartOffset) {
-		return new Iterator<Integer>() {
-			private int pos = iStartOffset;
-			public void remove() {throw new UnsupportedOperationException();}
-			public Integer next() {
+	public int GetSymbol(int codePoint) {
+		final int[] page = m_Pages[codePoint>>PAGE_BITS];
+		return (page==null) ? UNDEFINED : page[codePoint & PAGE_MASK];
+	}
+	
+	/**
+	 * Reusable cursor returning symbols (in this alphabet), reconstructing them
+	 * from the text of a document going <em>backwards</em> (that is, successive
+	 * calls to {@link #next()} return symbols from further and further back / longer
+	 * and longer ago, in that document). Allocates nothing once constructed, except
+	 * to grow its buffer for {@link #ReadContext(int)}.
+	 */
+	public final class SymbolCursor {
+		private Document doc;
+		private int pos=-1;
+		/** Symbols read by the last call to {@link #ReadContext(int)}, most recent first */
+		private int[] m_Context = new int[8];
+		
+		/**
+		 * Positions the cursor to read symbols from a document.
+		 * @param doc Document to symbolicate
+		 * @param iStartOffset (greatest) index of character in document to use. (I.e.
+		 * this will be the first symbol returned, or part thereof if a two-char unicode
+		 * charpoint.)
+		 * @return this cursor
+		 */
+		public SymbolCursor reset(Document doc, int iStartOffset) {
+			this.doc = doc;
+			this.pos = iStartOffset;
+			return this;
+		}
+		
+		public boolean hasNext() {return pos>=0;}
+		
+		/** Reads the next (i.e. preceding) symbol, moving the cursor back past it.
+		 * @return symbol number, or {@link #UNDEFINED} if the character(s) are not in the alphabet
+		 */
+		public int next() {
+			while (true) {
 				Character cc = doc.getCharAt(pos);
 				if (cc==null) return 0; //Happens on Android when switching context (?)
 										// - due to asynchronous callbacks from OS?
@@ -181,22 +243,60 @@ public class CAlphabetMap {
 						char leading = doc.getCharAt(pos);
 						if (Character.isHighSurrogate(leading)) {
 							pos--;
-							Integer i = multiChars.get(Character.toCodePoint(leading, c));
-							return (i==null) ? UNDEFINED : i;
+							return GetSymbol(Character.toCodePoint(leading, c));
 						}
 					}
 					System.err.println("Ignoring low surrogate "+c+" as not preceded by high surrogate");
-					return next();
+					continue;
 				}
 				else if (m_ParagraphSymbol!=UNDEFINED && c=='\n') {
 					if (pos>=0 && doc.getCharAt(pos)=='\r') pos--;
 					return m_ParagraphSymbol;
 				}
-				if (c<256) return singleChars[c];
-				Integer i=multiChars.get((char)c);
-				return (i==null) ? UNDEFINED : i;
+				return GetSymbol(c);
+			}
+		}
+		
+		/**
+		 * Reads symbols into a buffer (retrieved by {@link #getContext()}), until
+		 * <code>iMax</code> have been read, a symbol not in the alphabet is reached
+		 * (which is not stored), or the start of the document.
+		 * @return Number of symbols stored
+		 */
+		public int ReadContext(int iMax) {
+			int len=0;
+			while (len<iMax && hasNext()) {
+				final int sym = next();
+				if (sym==UNDEFINED) break;
+				if (len==m_Context.length) {
+					final int[] temp = new int[len*2];
+					System.arraycopy(m_Context, 0, temp, 0, len);
+					m_Context = temp;
+				}
+				m_Context[len++] = sym;
 			}
-			public boolean hasNext() {return pos>=0;}
+			return len;
+		}
+		
+		/** Buffer filled by the last {@link #ReadContext(int)}, most recent symbol first */
+		public int[] getContext() {return m_Context;}
+	}
+	
+	/**
+	 * Gets an iterator returning symbols (in this alphabet), reconstructing them
+	 * from the text of the specified document going <em>backwards</em>. Boxes every
+	 * symbol; prefer {@link SymbolCursor}.
+	 * @param doc Document to symbolicate
+	 * @param iStartOffset (greatest) index of character in document to use.
+	 * @return Iterator returning successively-longer-ago symbols from the document
+	 * @see SymbolCursor#reset(Document, int)
+	 */
+	public Iterator<Integer> GetSymbolsBackwards(final Document doc, final int iStartOffset) {
+		final SymbolCursor cursor = new SymbolCursor().reset(doc, iStartOffset);
+		return new Iterator<Integer>() {
+			public void remove() {throw new UnsupportedOperationException();}
+			public Integer next() {return cursor.next();}
+			public boolean hasNext() {return cursor.hasNext();}
 		};
 	}
 	
@@ -212,117 +312,336 @@ public class CAlphabetMap {
 	 * a row are read as meaning that character is wanted as actual text to be
 	 * learnt.)
 	 * <p>
-	 * LockEvents will be inserted every 1KB of data read, informing
-	 * components and the interface of the progress made in reading
-	 * the file.
-	 * 
+	 * The stream is read and decoded in blocks of {@link #BLOCK_SIZE} bytes (if it
+	 * is a {@link FileInputStream}, by memory-mapping the rest of the file), with
+	 * <code>prog</code> being notified after each block.
+	 *
 	 * @param FileIn InputStream from which to read.
 	 * @param iTotalBytes Number of bytes to read.
 	 * @param iOffset Offset at which to start reading.
 	 * @return Number of bytes read
-	 * @throws IOException 
-	 */	
-	public <C> int TrainStream(CLanguageModel<C> model, InputStream FileIn, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog) throws IOException {
-		
-		class CountStream extends InputStream {
-			/*package*/ int iTotalRead;
-			private final InputStream in;
-			CountStream(InputStream in, int iStartBytes) {this.in=in; this.iTotalRead=iStartBytes;}
-			@Override public int available() throws IOException {return in.available();}
-			@Override public int read() throws IOException {
-				int res = in.read();
-				if (res != -1) iTotalRead++;
-				return res;
-			}
-			@Override public int read(byte[] buf) throws IOException {return read(buf,0,buf.length);}
-			@Override public int read(byte[] buf, int start, int len) throws IOException {
-				int res = in.read(buf,start,len);
-				if (res>0) iTotalRead+=res; //-1 = EOF
-				return res;
-			}
-			@Override public long skip(long n) throws IOException {//should never be called?
-				long res=super.skip(n);
-				if (res>0) iTotalRead+=res;
-				return res;
+	 * @throws IOException
+	 */
+	public <C> int TrainStream(final CLanguageModel<C> model, InputStream FileIn, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog) throws IOException {
+		return TrainStream(model, FileIn, null, iTotalBytes, iOffset, prog);
+	}
+	
+	/**
+	 * Trains the language model from a given InputStream, as {@link #TrainStream(CLanguageModel, InputStream, int, int, CDasherInterfaceBase.ProgressNotifier)},
+	 * but using a {@link CSymbolCache} of the symbols decoded from the stream.
+	 * @param cache File in which to cache the symbols, or null not to
+	 */
+	public <C> int TrainStream(final CLanguageModel<C> model, InputStream FileIn, File cache, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog) throws IOException {
+		return ReadSymbols(FileIn, cache, iTotalBytes, iOffset, prog, new TrainingSink() {
+			private C trainContext = model.EmptyContext();
+			public void symbols(int[] syms, int len) {
+				trainContext = Train(model, trainContext, syms, 0, len);
 			}
-		};
-		CountStream count = new CountStream(FileIn, iOffset);
-		Reader chars = new BufferedReader(new InputStreamReader(count)); //buffer just for performance
-		C trainContext = model.EmptyContext();
-		int iLastPercent = count.iTotalRead / iTotalBytes;
-		int delim=-1; //if not -1, we are in a context-switching command; chars read should be Enter'd not Learn'd.
+		});
+	}
+
+	/**
+	 * Enters a sequence of symbols, as decoded by {@link #ReadTrainingStream}, into a model.
+	 * @param ctx Context in which to start
+	 * @param syms Symbols, encoded as for {@link TrainingSink#symbols(int[], int)}
+	 * @param from index of first symbol to enter
+	 * @param to index after last symbol to enter
+	 * @return Context after the last symbol
+	 */
+	private <C> C Train(CLanguageModel<C> model, C ctx, int[] syms, int from, int to) {
+		for (int i=from; i<to; i++) {
+			final int s = syms[i];
+			if (s>=0) ctx = model.ContextLearningSymbol(ctx, s);
+			else if (s==DEFAULT_CONTEXT) ctx = defaultContext(model);
+			else ctx = model.ContextWithSymbol(ctx, ~s);
+		}
+		return ctx;
+	}
+
+	/** Marks a context-switch command in a symbol stream decoded by {@link #ReadTrainingStream};
+	 * symbols to be entered (rather than learnt) are stored as their bitwise complement */
+	/*package*/ static final int DEFAULT_CONTEXT = Integer.MIN_VALUE;
+
+	/** Number of bytes of a training stream read and decoded at once */
+	private static final int BLOCK_SIZE = 1<<16;
+
+	/** Receives the symbols decoded from a training stream by {@link CAlphabetMap#ReadTrainingStream} */
+	/*package*/ static interface TrainingSink {
+		/**
+		 * Receives the symbols decoded from one block of the stream.
+		 * @param syms Symbols of actual text, to be learnt; bitwise complements of
+		 * symbols within a context-switch command, to be entered but not learnt; and
+		 * {@link CAlphabetMap#DEFAULT_CONTEXT} where a context-switch command begins
+		 * (i.e. revert to the alphabet's default context). Only valid during the call.
+		 * @param len number of symbols (from the start of <code>syms</code>)
+		 */
+		void symbols(int[] syms, int len);
+	}
+
+	/**
+	 * Gets the symbols of a training stream, from a cache file if possible.
+	 * @param cache File in which symbols are cached, or null to decode the stream without caching
+	 * @return Number of bytes read (plus iOffset)
+	 * @see CSymbolCache
+	 */
+	private int ReadSymbols(InputStream FileIn, File cache, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog, TrainingSink sink) throws IOException {
+		return (cache==null) ? ReadTrainingStream(FileIn, iTotalBytes, iOffset, prog, sink)
+				: CSymbolCache.read(this, cache, FileIn, iTotalBytes, iOffset, prog, sink);
+	}
+	
+	/**
+	 * Decodes a training stream (in the format described in {@link #TrainStream}) into
+	 * symbols, passing them to the specified sink a block at a time.
+	 * @return Number of bytes read (plus iOffset)
+	 */
+	/*package*/ int ReadTrainingStream(InputStream FileIn, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog, TrainingSink sink) throws IOException {
+		final BlockDecoder dec = new BlockDecoder(sink);
+		long iRead = iOffset;
 		try {
-			outer: while (true) {
-				int c=chars.read();
-				int sym;
+			FileChannel ch = (FileIn instanceof FileInputStream) ? ((FileInputStream)FileIn).getChannel() : null;
+			if (ch!=null && ch.size()-ch.position() > Integer.MAX_VALUE) ch=null; //too big to map in one go
+			if (ch!=null) {
+				final long start = ch.position();
+				final ByteBuffer bytes = ch.map(FileChannel.MapMode.READ_ONLY, start, ch.size()-start);
+				ch.position(ch.size());
+				bytes.limit(0);
+				while (bytes.limit()<bytes.capacity()) {
+					//the decoder leaves any partial char at the end of a block, so extending the limit completes it
+					bytes.limit(Math.min(bytes.position()+BLOCK_SIZE, bytes.capacity()));
+					dec.decode(bytes, false);
+					notifyProgress(prog, iRead+bytes.position(), iTotalBytes);
+				}
+				dec.decode(bytes, true);
+				iRead += bytes.capacity();
+			} else {
+				final byte[] buf = new byte[BLOCK_SIZE];
+				final ByteBuffer bytes = ByteBuffer.wrap(buf);
+				bytes.limit(0);
 				while (true) {
-					//continues come here => check for -1 and then read next char
-					if (c==-1) break outer; 
-					if (m_AlphInfo.ctxChar!=null && c==m_AlphInfo.ctxChar) {
-						int n = chars.read();
-						if (n==c) {
-							//actual occurrence of character wanted.
-							sym = c;
-							break;
-						}
-						trainContext = defaultContext(model);
-						delim=n; //=> only Enter symbols until we see this
-						c=chars.read();
-					} else if (c==delim) {
-						//end of context-switch context
-						delim=-1; // => following characters will be learnt.
-						c=chars.read();
+					bytes.compact(); //keeping any partial char left from the previous block
+					final int n = FileIn.read(buf, bytes.position(), bytes.remaining());
+					if (n>0) bytes.position(bytes.position()+n);
+					bytes.flip();
+					if (n==-1) break;
+					iRead += n;
+					dec.decode(bytes, false);
+					notifyProgress(prog, iRead, iTotalBytes);
+				}
+				dec.decode(bytes, true);
+			}
+		} finally {
+			FileIn.close();
+		}
+		return (int)iRead;
+	}
+
+	private static void notifyProgress(CDasherInterfaceBase.ProgressNotifier prog, long iRead, int iTotalBytes) throws AsynchronousCloseException {
+		//an AsynchronousCloseException exits trainStream().
+		if (prog!=null) prog.notifyProgress((int)((iRead*100)/iTotalBytes));
+	}
+
+	/**
+	 * Decodes blocks of UTF-8 into chars, and maps each block of chars to symbols,
+	 * handling context-switch commands, paragraph symbols and surrogate pairs. State
+	 * (the decoder's, any char whose meaning depends on the next, and whether we are
+	 * in a context-switch command) carries over from one block to the next.
+	 */
+	private final class BlockDecoder {
+		private final TrainingSink sink;
+		private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+		/** Symbols mapped from the current block of chars; at most one per char. */
+		private final int[] syms = new int[BLOCK_SIZE];
+		/** If not -1, we are in a context-switching command; chars read should be
+		 * entered not learnt, until we see this delimiter. */
+		private int delim=-1;
+
+		BlockDecoder(TrainingSink sink) {this.sink=sink;}
+
+		/**
+		 * Decodes bytes, passing the resulting symbols to the sink.
+		 * @param bEnd true if there are no more bytes after these, i.e. everything should
+		 * be decoded and mapped; false to leave any incomplete char (or any char whose
+		 * meaning depends on the next) until the next call.
+		 */
+		void decode(ByteBuffer bytes, boolean bEnd) {
+			while (decoder.decode(bytes, chars, bEnd).isOverflow()) map(false);
+			if (bEnd) while (decoder.flush(chars).isOverflow()) map(false);
+			map(bEnd);
+		}
+
+		/** Maps the chars decoded so far to symbols, and passes them to the sink */
+		private void map(boolean bEnd) {
+			chars.flip();
+			final char[] text = chars.array();
+			final int end = chars.limit();
+			final int ctxChar = (m_AlphInfo.ctxChar==null) ? -1 : m_AlphInfo.ctxChar;
+			int len=0, i=chars.position();
+			while (i<end) {
+				final char c = text[i];
+				final int n;
+				if (i+1<end) n=text[i+1];
+				else if (bEnd) n=-1;
+				else if (c==ctxChar || Character.isHighSurrogate(c) || (c=='\r' && m_ParagraphSymbol!=UNDEFINED))
+					break; //need the next char to interpret this one
+				else n=-1; //and won't look at it
+				int sym;
+				if (c==ctxChar) {
+					i+=2;
+					if (n==c) {
+						//actual occurrence of character wanted.
+						sym = GetSymbol(c);
+					} else {
+						syms[len++] = DEFAULT_CONTEXT;
+						delim=n; //=> only enter symbols until we see this
 						continue;
-					} else if (Character.isHighSurrogate((char)c)) {
-						int n=chars.read();
-						if (Character.isLowSurrogate((char)n)) {
-							sym=Character.toCodePoint((char)c,(char)n);
-							break;
-						} else {
-							System.err.println("Skipping high surrogate char "+c+" as followed by "+n+" which is not low surrogate");
-							c=n;
-							continue;
-						}
-					} else if (c=='\r' && m_ParagraphSymbol!=UNDEFINED) {
-						int n=chars.read();
-						if (n=='\n') {
-							sym=m_ParagraphSymbol;
-							break;
-						} else {
-							System.err.println("Skipping \r as followed by "+n+" which is not \n");
-							c=n;
-							continue;
-						}
+					}
+				} else if (c==delim) {
+					//end of context-switch context
+					delim=-1; // => following characters will be learnt.
+					i++;
+					continue;
+				} else if (Character.isHighSurrogate(c)) {
+					if (n!=-1 && Character.isLowSurrogate((char)n)) {
+						sym = GetSymbol(Character.toCodePoint(c, (char)n));
+						i+=2;
 					} else {
-						if (c<256) sym=singleChars[c];
-						else {
-							Integer i=multiChars.get(c);
-							sym=(i==null) ? UNDEFINED : i;
-						}
-						break;
+						System.err.println("Skipping high surrogate char "+(int)c+" as followed by "+n+" which is not low surrogate");
+						i++;
+						continue;
 					}
+				} else if (c=='\r' && m_ParagraphSymbol!=UNDEFINED) {
+					if (n=='\n') {
+						sym = m_ParagraphSymbol;
+						i+=2;
+					} else {
+						System.err.println("Skipping \\r as followed by "+n+" which is not \\n");
+						i++;
+						continue;
+					}
+				} else {
+					sym = GetSymbol(c);
+					i++;
 				}
-				//breaks come here, with sym defined. As per C++ Dasher, we just ignore symbols not in the alphabet...
-				if (sym!=CAlphabetMap.UNDEFINED) {
-					if (delim==-1)
-						trainContext = model.ContextLearningSymbol(trainContext, sym);
-					else
-						trainContext = model.ContextWithSymbol(trainContext, sym);
-					if (prog!=null) {
-						int iNPercent = (count.iTotalRead *100)/iTotalBytes;
-						if (iNPercent != iLastPercent) {
-							iLastPercent=iNPercent;
-							prog.notifyProgress(iNPercent);
-							//an AsynchronousCloseException exits trainStream().
-						}
+				//As per C++ Dasher, we just ignore symbols not in the alphabet...
+				if (sym!=UNDEFINED) syms[len++] = (delim==-1) ? sym : ~sym;
+			}
+			chars.position(Math.min(i, end));
+			chars.compact();
+			if (len>0) sink.symbols(syms, len);
+		}
+	}
+
+	/**
+	 * Trains a PPM model from a stream using multiple threads. The stream is first
+	 * decoded into symbols (reporting progress as it goes); these are then split into
+	 * shards, each learnt into a separate trie on its own thread, and the tries merged
+	 * into the model by summing counts. Each shard begins where the preceding
+	 * {@link CPPMLanguageModel#m_iMaxOrder} symbols were all learnt, and starts from
+	 * the context of those symbols. Hence, if the model does not use update exclusion
+	 * or prune (and the stream does not use context-switch commands), the result is
+	 * identical to {@link #TrainStream}; otherwise, counts may differ slightly.
+	 * <p>
+	 * If the model is pruning while learning, each shard prunes to its share of the
+	 * limit (see {@link CPPMLanguageModel#ShardCopy(int)}), so the shards together stay
+	 * within the limit; merging them may take as much again, until the model is pruned
+	 * once all are merged in.
+	 * 
+	 * @param iThreads Number of threads (and shards) to use
+	 * @see #TrainStream(CLanguageModel, InputStream, int, int, CDasherInterfaceBase.ProgressNotifier)
+	 */
+	public int TrainStreamParallel(CPPMLanguageModel model, InputStream FileIn, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog, int iThreads) throws IOException {
+		return TrainStreamParallel(model, FileIn, null, iTotalBytes, iOffset, prog, iThreads);
+	}
+	
+	/**
+	 * Trains a PPM model from a stream using multiple threads, as {@link #TrainStreamParallel(CPPMLanguageModel, InputStream, int, int, CDasherInterfaceBase.ProgressNotifier, int)},
+	 * but using a {@link CSymbolCache} of the symbols decoded from the stream.
+	 * @param cache File in which to cache the symbols, or null not to
+	 */
+	public int TrainStreamParallel(CPPMLanguageModel model, InputStream FileIn, File cache, int iTotalBytes, int iOffset, CDasherInterfaceBase.ProgressNotifier prog, int iThreads) throws IOException {
+		class Symbols implements TrainingSink {
+			int[] syms = new int[1<<16];
+			int len;
+			public void symbols(int[] in, int n) {
+				if (len+n>syms.length) {
+					int[] temp = new int[Math.max(len*2, len+n)];
+					System.arraycopy(syms, 0, temp, 0, len);
+					syms = temp;
+				}
+				System.arraycopy(in, 0, syms, len, n);
+				len+=n;
+			}
+		};
+		final Symbols in = new Symbols();
+		final int iRead = ReadSymbols(FileIn, cache, iTotalBytes, iOffset, prog, in);
+		
+		//find shard boundaries
+		final int iOrder = model.m_iMaxOrder;
+		final List<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		for (int i=1; i<iThreads; i++) {
+			int start = Math.max((int)((long)in.len*i/iThreads), starts.get(starts.size()-1)+1);
+			//move forwards until preceded by enough learnt symbols to determine the context
+			for (int numLearnt=0; start<in.len; start++) {
+				for (numLearnt=0; numLearnt<iOrder && start-numLearnt>0 && in.syms[start-numLearnt-1]>=0; numLearnt++);
+				if (numLearnt==iOrder) break;
+			}
+			if (start>=in.len) break;
+			starts.add(start);
+		}
+		starts.add(in.len);
+		
+		defaultContext(model); //ensure defaultContextSyms initialized before shards use it concurrently
+		ExecutorService pool = Executors.newFixedThreadPool(iThreads);
+		try {
+			List<Future<CPPMLanguageModel>> shards = new ArrayList<Future<CPPMLanguageModel>>();
+			for (int i=0; i+1<starts.size(); i++) {
+				final int from=starts.get(i), to=starts.get(i+1);
+				final CPPMLanguageModel shard = model.ShardCopy(starts.size()-1);
+				shards.add(pool.submit(new Callable<CPPMLanguageModel>() {
+					public CPPMLanguageModel call() {
+						Integer ctx = shard.EmptyContext();
+						for (int j=Math.max(0, from-iOrder); j<from; j++)
+							ctx = shard.ContextCreatingSymbol(ctx, in.syms[j]);
+						Train(shard, ctx, in.syms, from, to);
+						return shard;
 					}
+				}));
+			}
+			//merge pairs of shards in parallel, until there is only one...
+			while (shards.size()>1) {
+				List<Future<CPPMLanguageModel>> merged = new ArrayList<Future<CPPMLanguageModel>>();
+				for (int i=0; i<shards.size(); i+=2) {
+					if (i+1==shards.size()) {merged.add(shards.get(i)); break;}
+					final Future<CPPMLanguageModel> a=shards.get(i), b=shards.get(i+1);
+					merged.add(pool.submit(new Callable<CPPMLanguageModel>() {
+						public CPPMLanguageModel call() throws Exception {
+							CPPMLanguageModel res = a.get();
+							res.MergeFrom(b.get());
+							return res;
+						}
+					}));
 				}
+				shards = merged;
+				notifyProgress(prog, iRead, iTotalBytes); //allow abort
 			}
-		} catch (EOFException e) {
-			//that's fine!
+			//...and then into the model.
+			model.MergeFrom(shards.get(0).get());
+			//contexts each shard started from, but which the preceding shard pruned, are left with count 0
+			model.RemoveZeroCounts();
+			model.PruneIfFull(CPPMLanguageModel.ROOT);
+			assert model.AllCountsPositive();
+		} catch (InterruptedException e) {
+			throw new AsynchronousCloseException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
 		} finally {
-			chars.close();
+			pool.shutdownNow();
 		}
-		return count.iTotalRead;
+		return iRead;
 	}
 }
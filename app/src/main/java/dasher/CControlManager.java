@@ -107,13 +107,20 @@ public class CControlManager extends CDasherComponent {
 	private class CContNode extends CDasherNode {
 		
 		private ControlAction act;
+		
+		private String m_strDisplayText;
 
 		protected CDasherInterfaceBase getIntf() {return m_Interface;}
 
 		/*package*/ void initNode(int iOffset, int iColour, ControlAction act, String desc) {
-			super.initNode(iOffset, iColour, desc);
+			if (desc==null) throw new IllegalArgumentException();
+			super.initNode(iOffset, iColour);
 			this.act=act;
+			this.m_strDisplayText=desc;
 		}
+		
+		@Override
+		public String getDisplayText() {return m_strDisplayText;}
 
 		@Override public float getViscosity() {
 			return 0.5f;
@@ -151,7 +158,7 @@ public class CControlManager extends CDasherComponent {
 		@Override
 		public void DeleteNode() {
 			super.DeleteNode();
-			nodeCache.add(this);
+			m_FreeNodes.free(this);
 			extraInfo.remove(this);
 		}
 	}
@@ -178,10 +185,12 @@ public class CControlManager extends CDasherComponent {
 	
 	private final Map<CContNode,Object> extraInfo = new HashMap<CContNode, Object>();
 	
-	private final List<CContNode> nodeCache = new ArrayList<CContNode>();
+	private final CNodePool.FreeList<CContNode> m_FreeNodes = new CNodePool.FreeList<CContNode>(CNodePool.SHARED, "CContNode") {
+		@Override protected CContNode make() {return new CContNode();}
+	};
 
 	public CContNode makeCont(ControlAction act, int iOffset, int iColour, String desc) {
-		CContNode node = (nodeCache.isEmpty()) ? new CContNode() : nodeCache.remove(nodeCache.size()-1);
+		CContNode node = m_FreeNodes.alloc();
 		node.initNode(iOffset, iColour, act, desc);
 		return node;
 	}
@@ -243,7 +252,7 @@ public class CControlManager extends CDasherComponent {
 	}
 	
 	private static final MoveAction FWD = new MoveAction() {
-		private final List<Integer> tempList = new ArrayList<Integer>();
+		private final int[] syms = new int[2];
 		public CContNode make(CControlManager mgr, CDasherNode parent) {
 			int nOffset = parent.getOffset()+1;
 			final Character c =parent.getCharAt(nOffset);
@@ -253,20 +262,19 @@ public class CControlManager extends CDasherComponent {
 					&& (c2=parent.getCharAt(++nOffset))!=null
 					&& Character.isLowSurrogate(c2))
 				? new String(new char[] {c,c2}) : c.toString();
-			tempList.clear();
-			mgr.m_pNCMgr.getAlphabetManager().m_AlphabetMap.GetSymbols(tempList, nxChar);
-			assert tempList.size()==1;
-			String text = (tempList.get(0)==0) ? nxChar : mgr.m_pNCMgr.getAlphabetManager().m_Alphabet.GetDisplayText(tempList.get(0));
+			final int n = mgr.m_pNCMgr.getAlphabetManager().m_AlphabetMap.GetSymbols(nxChar, syms);
+			assert n==1;
+			String text = (syms[0]==0) ? nxChar : mgr.m_pNCMgr.getAlphabetManager().m_Alphabet.GetDisplayText(syms[0]);
 			//sb.append('\u20D5'); //combining clockwise arrow above, but not in Android
 			return mgr.makeCont(this, nOffset, 11, ">"+text);
 		}
 		protected int getParentOffset(CDasherNode child) {
-			int chLength = child.m_strDisplayText.length()-1;
+			int chLength = child.getDisplayText().length()-1;
 			return child.getOffset()-chLength;
 		}
 	};
 	private static final MoveAction BACK = new MoveAction() {
-		private final List<Integer> tempList = new ArrayList<Integer>();
+		private final int[] syms = new int[2];
 		public CContNode make(CControlManager mgr, CDasherNode parent) {
 			int nOffset = parent.getOffset()-1;
 			if (parent.getOffset()<0) return null;
@@ -277,15 +285,14 @@ public class CControlManager extends CDasherComponent {
 					&& nOffset>=0
 					&& Character.isHighSurrogate(c2=parent.getCharAt(nOffset--)))
 				? new String(new char[] {c2,c}) : c.toString();
-			tempList.clear();
-			mgr.m_pNCMgr.getAlphabetManager().m_AlphabetMap.GetSymbols(tempList, nxChar);
-			assert tempList.size()==1;
-			String text = (tempList.get(0)==0) ? nxChar : mgr.m_pNCMgr.getAlphabetManager().m_Alphabet.GetDisplayText(tempList.get(0));
+			final int n = mgr.m_pNCMgr.getAlphabetManager().m_AlphabetMap.GetSymbols(nxChar, syms);
+			assert n==1;
+			String text = (syms[0]==0) ? nxChar : mgr.m_pNCMgr.getAlphabetManager().m_Alphabet.GetDisplayText(syms[0]);
 			//sb.append('\u20D4'); //combining anticlockwise arrow above, but not in Android
 			return mgr.makeCont(this, nOffset, 13, "<"+text);
 		}
 		protected int getParentOffset(CDasherNode child) {
-			int chLength = child.m_strDisplayText.length()-1;
+			int chLength = child.getDisplayText().length()-1;
 			return child.getOffset()+chLength;
 		}
 	};
@@ -319,7 +326,8 @@ public class CControlManager extends CDasherComponent {
 			HandleEvent(Esp_parameters.SP_ALPHABET_ID);
 		}
 		
-		private static final Esp_parameters[] PAST_ALPHS = {
+		/** Alphabet history, most recent first: those the user is most likely to switch to */
+		static final Esp_parameters[] PAST_ALPHS = {
 			Esp_parameters.SP_ALPHABET_1, Esp_parameters.SP_ALPHABET_2, Esp_parameters.SP_ALPHABET_3, Esp_parameters.SP_ALPHABET_4
 		};
 	
@@ -448,9 +456,9 @@ public class CControlManager extends CDasherComponent {
 		}
 		public void populate(CControlManager mgr, CDasherNode node) {
 			//We generate children all with the same ControlAction, abusing the
-			// node's m_strDisplayText to tell us what change (if any) it makes.
-			final long base = (node.m_strDisplayText!=SPEED_CHANGE_HEADER)
-				? (long)(Double.parseDouble(node.m_strDisplayText)*100)
+			// node's display text to tell us what change (if any) it makes.
+			final long base = (node.getDisplayText()!=SPEED_CHANGE_HEADER)
+				? (long)(Double.parseDouble(node.getDisplayText())*100)
 				: mgr.GetLongParameter(Elp_parameters.LP_MAX_BITRATE);
 			long lower=0;
 			for (int i=0; i<BOUNDS.length-1; i++) {
@@ -469,12 +477,12 @@ public class CControlManager extends CDasherComponent {
 		
 		@Override
 		public void happen(CControlManager mgr, CDasherNode node) {
-			//As previous, abusing m_strDisplayText to distinguish
+			//As previous, abusing the display text to distinguish
 			// between the "Speed" header and a new speed. 
-			if (node.m_strDisplayText!=SPEED_CHANGE_HEADER) {
+			if (node.getDisplayText()!=SPEED_CHANGE_HEADER) {
 				//backup old speed in case we need to undo
 				mgr.extraInfo.put((CContNode)node,mgr.GetLongParameter(Elp_parameters.LP_MAX_BITRATE));
-				Double d = Double.parseDouble(node.m_strDisplayText);
+				Double d = Double.parseDouble(node.getDisplayText());
 				mgr.SetLongParameter(Elp_parameters.LP_MAX_BITRATE, (long)(d*100));
 			}
 		}
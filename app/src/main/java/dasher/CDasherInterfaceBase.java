@@ -27,14 +27,11 @@ package dasher;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
 import java.io.*;
-import java.lang.ref.WeakReference;
 import java.nio.channels.AsynchronousCloseException;
 
 import org.xml.sax.SAXException;
@@ -213,8 +210,8 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 	 * Does the bulk  of the work in making Dasher ready for use, following
 	 * a call to {@link #LoadData}. This mainly consists of setting up necessary
 	 * data structures for colours, alphabet, etc., according to the user
-	 * preferences. Also trains the LanguageModel via {@link #train(CAlphabetManager)},
-	 * so may take some time: if the interface is only required for
+	 * preferences. Also starts training the LanguageModel via {@link #train(CAlphabetManager)},
+	 * (in the background, by default): if the interface is only required for
 	 * querying/updating settings, this method need not be called.
 	 * When realize terminates, Dasher will be in a broadly usable
 	 * state, tho it will need a screen which should be created
@@ -321,11 +318,13 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 			//User has requested a new colour scheme
 			ChangeColours();
 			Redraw(true);
-		} else if(eParam == Elp_parameters.LP_LANGUAGE_MODEL_ID
+		} else if(eParam == Elp_parameters.LP_LANGUAGE_MODEL_ID || eParam == Ebp_parameters.BP_LM_SHARED_BASE
 				|| (eParam == Esp_parameters.SP_LM_HOST && GetLongParameter(Elp_parameters.LP_LANGUAGE_MODEL_ID)==5)) {
 			m_LMcache.clear(); //All existing LMs use old param values
 			CreateNCManager();
 			Redraw(true);
+		} else if(eParam == Elp_parameters.LP_LM_CACHE_SIZE) {
+			m_LMcache.trim();
 		} else if(eParam == Elp_parameters.LP_LINE_WIDTH) {
 			Redraw(false); // TODO - make this accessible everywhere
 		} else if(eParam == Elp_parameters.LP_DASHER_FONTSIZE) {
@@ -375,8 +374,16 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 	 */
 	public abstract void Message(String msg, int severity);
 	
-	private final Map<CAlphIO.AlphInfo,WeakReference<CLanguageModel<?>>> m_LMcache
-		= new HashMap<CAlphIO.AlphInfo, WeakReference<CLanguageModel<?>>>();
+	/** Trained models for recently-used alphabets, including that in use */
+	private final CLMCache m_LMcache = new CLMCache(this);
+	
+	/** AlphabetManager whose LM is currently being trained (in the background) to
+	 * replace that in use, or null if none. Training aborts if this changes. */
+	private volatile CAlphabetManager<?> m_TrainingMgr;
+	/** AlphabetManager whose LM has finished training, waiting to be swapped
+	 * in at the start of the next frame; null if none. */
+	private volatile CAlphabetManager<?> m_TrainedMgr;
+	
 	/**
 	 * Creates a new DasherModel, deleting any previously existing
 	 * one if necessary.
@@ -384,8 +391,10 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 	 * The DasherModel does most of the actual initialisation work,
 	 * so see the constructor documentation for DasherModel for details.
 	 * <p>
-	 * This function also trains the newly created model using the
-	 * using the new Alphabet's specified training text. 
+	 * If no trained model for the new Alphabet is cached, Dasher is made usable
+	 * straightaway with an untrained (i.e. uniform) model, while a second model is
+	 * trained on the Alphabet's training text via {@link #train(CAlphabetManager)};
+	 * when that completes, it is swapped in at the start of the next frame.
 	 */
 	private void CreateNCManager() 
 	{
@@ -395,7 +404,7 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 		//Memory is a big issue here - we don't want train the LM too soon, i.e. until
 		// the old LM can first be GC'd, as that'd need memory for both simultaneously...
 
-		//(1) So, first we make the old NCMgr & LM unreachable (the event handler has only weakrefs)
+		//(1) So, first we make the old NCMgr & LM unreachable (except from m_LMcache, if within budget)
 		CControlManager cont;
 		if (m_pNCManager!=null) {
 			//since the AlphabetManager is about to be deleted, better write out anything unsaved...
@@ -403,6 +412,9 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 			cont = m_pNCManager.getControlManager();
 		} else 
 			cont = makeControlManager();
+		//...along with any LM still training (which'll abort), or waiting to be swapped in
+		m_TrainingMgr = m_TrainedMgr = null;
+		m_Warmer = null; //stops warming (the user has chosen an alphabet; its LM comes first)
 		
 		//(2)Then we construct a new NCMgr and (untrained) LM...
 		
@@ -413,45 +425,14 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 		CAlphIO.AlphInfo cAlphabet = m_AlphIO.GetInfo(GetStringParameter(Esp_parameters.SP_ALPHABET_ID));
 		
 		//(2b) LanguageModel
-		CLanguageModel<?> lm=null;
-		WeakReference<CLanguageModel<?>> ref = m_LMcache.get(cAlphabet);
-		if (ref!=null) {lm = ref.get(); if (lm==null) m_LMcache.remove(cAlphabet);}
-		boolean bTrain;
-		if (lm==null) {
-			bTrain=true;
-			switch ((int)GetLongParameter(Elp_parameters.LP_LANGUAGE_MODEL_ID)) {
-			/* CSFS: Commented out the other language models for the time being as they are not
-			 * implemented yet.
-			 */
-			default:
-				// If there is a bogus value for the language model ID, we'll default
-				// to our trusty old PPM language model.
-			case 0:
-				SetBoolParameter(Ebp_parameters.BP_LM_REMOTE, false);
-				lm= new CPPMLanguageModel(this, cAlphabet);
-				break;
-			/* case 2:
-				lm = new CWordLanguageModel(m_pEventHandler, m_pSettingsStore, alphabet);
-				break;
-			case 3:
-				lm = new CMixtureLanguageModel(m_pEventHandler, m_pSettingsStore, alphabet);
-				break;  
-				#ifdef JAPANESE
-			case 4:
-				lm = new CJapaneseLanguageModel(m_pEventHandler, m_pSettingsStore, alphabet);
-				break;
-				#endif
-			case 5:
-				throw new UnsupportedOperationException("(ACL) Remote LM currently unimplemented");
-				//lm = new CRemotePPM(m_EventHandler, m_SettingsStore, alphabet);
-				//SetBoolParameter(Ebp_parameters.BP_LM_REMOTE, true);
-				//break;
-			*/
-			}
-		} else
-			bTrain=false;
+		CLanguageModel<?> lm = m_LMcache.get(cAlphabet);
+		final boolean bTrain = (lm==null);
+		if (bTrain) lm = makeLanguageModel(cAlphabet);
 		
-		m_pNCManager = new CNodeCreationManager(this, CAlphabetManager.makeAlphMgr(this,lm), cont);
+		final CAlphabetManager<?> mgr = CAlphabetManager.makeAlphMgr(this,lm);
+		//anything the user writes while the real LM trains, will need learning by it too
+		if (bTrain && !lm.isRemote()) mgr.recordTrainText();
+		m_pNCManager = new CNodeCreationManager(this, mgr, cont);
 		if (m_ColourIO.getByName(GetStringParameter(Esp_parameters.SP_COLOUR_ID))==null)
 			ChangeColours(); //we must have been using the alphabet palette, which may have changed
 		
@@ -460,17 +441,155 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 		
 		System.gc(); //the old LM should now be collectable, so just a hint...
 		
-		//At last we (hopefully) have enough memory to train the new LM...
-		//TODO, can we train in the background, on another thread?
+		//At last we (hopefully) have enough memory to train the new LM. We leave
+		// the untrained one in use meanwhile, so the user need not wait.
 		if (bTrain) {
-			//Put it in cache pre-emptively: we are going to train it! :)
-			// If train(AlphabetManager, ProgressNotifier) is aborted, that will remove from map.
-			m_LMcache.put(cAlphabet,new WeakReference<CLanguageModel<?>>(lm));
-			train(m_pNCManager.getAlphabetManager());
+			if (lm.isRemote()) //the server trains its own model
+				m_LMcache.put(cAlphabet, lm);
+			else
+				train(m_TrainingMgr = CAlphabetManager.makeAlphMgr(this, makeLanguageModel(cAlphabet)));
+		} else startWarming();
+	}
+	
+	private CLanguageModel<?> makeLanguageModel(CAlphIO.AlphInfo cAlphabet) {
+		switch ((int)GetLongParameter(Elp_parameters.LP_LANGUAGE_MODEL_ID)) {
+		/* CSFS: Commented out the other language models for the time being as they are not
+		 * implemented yet.
+		 */
+		default:
+			// If there is a bogus value for the language model ID, we'll default
+			// to our trusty old PPM language model.
+		case 0:
+			SetBoolParameter(Ebp_parameters.BP_LM_REMOTE, false);
+			if (GetBoolParameter(Ebp_parameters.BP_LM_SHARED_BASE))
+				return new CSharedPPMLanguageModel(this, cAlphabet);
+			return new CPPMLanguageModel(this, cAlphabet);
+		case 5:
+			SetBoolParameter(Ebp_parameters.BP_LM_REMOTE, true);
+			return new CRemoteLanguageModel(this, cAlphabet);
+		/* case 2:
+			lm = new CWordLanguageModel(m_pEventHandler, m_pSettingsStore, alphabet);
+			break;
+		case 3:
+			lm = new CMixtureLanguageModel(m_pEventHandler, m_pSettingsStore, alphabet);
+			break;  
+			#ifdef JAPANESE
+		case 4:
+			lm = new CJapaneseLanguageModel(m_pEventHandler, m_pSettingsStore, alphabet);
+			break;
+			#endif
+		*/
 		}
-		
-		//Finally we rebuild the tree _again_ :-(, so as to get probabilities from the trained LM...
+	}
+	
+	/**
+	 * Called (at a frame boundary) to replace the AlphabetManager - and hence LM -
+	 * in use, with one whose training has just completed. The node tree is rebuilt
+	 * around the current offset, so the new predictions show up immediately.
+	 */
+	private void swapInTrained(CAlphabetManager<?> trained) {
+		final CAlphabetManager<?> old = m_pNCManager.getAlphabetManager();
+		if (old.m_Alphabet != trained.m_Alphabet) return; //superceded
+		//anything the user wrote while we were training, has only been learnt by
+		// the old LM; save it, so it gets learnt when we next train, and replay it
+		// into the trained LM so it is learnt this session too.
+		old.WriteTrainFileFull(this);
+		final String strMissed = old.takeRecordedText();
+		if (strMissed.length()>0) {
+			try {
+				final byte[] bytes = strMissed.getBytes("UTF-8");
+				trained.TrainStream(new ByteArrayInputStream(bytes), null, bytes.length, 0, null);
+			} catch (IOException e) {
+				//can't happen reading from memory; the text will be learnt when next we train
+			}
+		}
+		m_pNCManager = new CNodeCreationManager(this, trained, m_pNCManager.getControlManager());
+		m_LMcache.put(trained.m_Alphabet, trained.getLanguageModel());
 		forceRebuild();
+		m_bForceRedrawNodes = true;
+		startWarming();
+	}
+	
+	/** Thread warming the LM cache (see {@link #startWarming()}), or null if none; it stops if this changes. */
+	private volatile Warmer m_Warmer;
+	
+	/** Time in ms after the model in use becomes ready, before we start warming, so as not to compete with the rebuild */
+	private static final long WARM_DELAY = 1000;
+	
+	/**
+	 * Starts training - or restoring from snapshots - models for the alphabets in the
+	 * history ({@link CControlManager.AlphSwitcher#PAST_ALPHS}) which are not in the cache,
+	 * on a low-priority background thread; so when the user switches to one (e.g. by an
+	 * "Alph" control node), its model is ready straightaway, without waiting for training.
+	 * <p>
+	 * Warming uses at most LP_LM_WARM_PERCENT of the time of one CPU, and stops once the cache
+	 * is full: models are only kept if they fit without evicting any other. It is cancelled
+	 * by any change of alphabet or language model, or by shutdown.
+	 */
+	private void startWarming() {
+		m_Warmer = null;
+		final int iPercent = (int)GetLongParameter(Elp_parameters.LP_LM_WARM_PERCENT);
+		if (iPercent<=0 || GetBoolParameter(Ebp_parameters.BP_LM_REMOTE)) return; //server trains its own models
+		final CAlphIO.AlphInfo current = m_pNCManager.getAlphabetManager().m_Alphabet;
+		final List<CAlphabetManager<?>> mgrs = new ArrayList<CAlphabetManager<?>>();
+		for (Esp_parameters param : CControlManager.AlphSwitcher.PAST_ALPHS) {
+			final String name = GetStringParameter(param);
+			final CAlphIO.AlphInfo alph = m_AlphIO.GetInfo(name);
+			//GetInfo falls back to the default alphabet, which the user did not ask for
+			if (alph==null || alph==current || !alph.name.equals(name) || m_LMcache.contains(alph)) continue;
+			mgrs.add(CAlphabetManager.makeAlphMgr(this, makeLanguageModel(alph)));
+		}
+		if (mgrs.isEmpty()) return;
+		final Warmer w = new Warmer(mgrs, iPercent);
+		m_Warmer = w;
+		w.start();
+	}
+	
+	/**
+	 * Thread which trains models for {@link #startWarming()} in turn, offering each to the cache.
+	 * Throttles itself as notified of progress (i.e. after each block of training text), sleeping
+	 * in proportion to the time spent training since the last notification.
+	 */
+	private class Warmer extends Thread implements ProgressNotifier {
+		private final List<CAlphabetManager<?>> m_Mgrs;
+		private final int m_iPercent;
+		/** When we last returned from {@link #notifyProgress(int)}, i.e. resumed training, in ns */
+		private long m_iLast;
+		
+		Warmer(List<CAlphabetManager<?>> mgrs, int iPercent) {
+			super("Warming Dasher");
+			this.m_Mgrs = mgrs;
+			this.m_iPercent = Math.min(iPercent, 100);
+			setPriority(Thread.MIN_PRIORITY);
+			setDaemon(true);
+		}
+		
+		@Override public void run() {
+			try {
+				sleep(WARM_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (CAlphabetManager<?> mgr : m_Mgrs) {
+				if (m_Warmer!=this || m_LMcache.isFull()) return;
+				m_iLast = System.nanoTime();
+				if (!train(mgr, this) || m_Warmer!=this) return; //cancelled
+				m_LMcache.offer(mgr.m_Alphabet, mgr.getLanguageModel());
+			}
+		}
+		
+		public void notifyProgress(int iPercent) throws AsynchronousCloseException {
+			if (m_Warmer!=this) throw new AsynchronousCloseException();
+			final long iSleep = (System.nanoTime()-m_iLast) * (100-m_iPercent) / m_iPercent / 1000000;
+			if (iSleep>0) {
+				try {
+					sleep(iSleep);
+				} catch (InterruptedException e) {
+					throw new AsynchronousCloseException();
+				}
+			}
+			m_iLast = System.nanoTime();
+		}
 	}
 	
 	private CControlManager makeControlManager() {
@@ -566,6 +685,13 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 		//ok, we want to render some nodes...if there are any...
 		if (m_DasherModel == null) throw new IllegalStateException("Not yet constructed?");
 		
+		//if a newly-trained LM is ready, now (between frames) is the time to switch to it
+		final CAlphabetManager<?> trained = m_TrainedMgr;
+		if (trained!=null) {
+			m_TrainedMgr = null;
+			swapInTrained(trained);
+		}
+		
 		if (m_InputFilter!=null) m_InputFilter.Timer(iTime, m_DasherView, m_Input, m_DasherModel); 
 					
 		/*Logging code. TODO: capture int iNumDeleted / Vector<CSymbolProb>
@@ -610,6 +736,7 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 		for (int i=0; i<endOfFrameTasks.size(); i++)
 			endOfFrameTasks.get(i).run();
 		endOfFrameTasks.clear();
+		if (m_pNCManager!=null) m_pNCManager.getAlphabetManager().endFrame();
 	}
 	
 	protected void onUnpause() {
@@ -729,21 +856,42 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 		Redraw(true);
 	}
 	
-	/** Called to train the model. This method creates and broadcasts
-	 * a CLockEvent, then calls {@link #train(String, CLockEvent)},
-	 * then clears the event's {@link CLockEvent#m_bLock} and broadcasts it again.
+	/** Called to train a new model, which is not yet in use. The default
+	 * implementation trains on a new background thread, via
+	 * {@link #train(CAlphabetManager, ProgressNotifier)}, aborting if the
+	 * alphabet is changed again (or Dasher is shut down) meanwhile; once training
+	 * completes, the next frame will swap the new model in. Subclasses may
+	 * override to use a thread of their own, but should do likewise, calling
+	 * {@link #trainingComplete(CAlphabetManager)} when finished.
 	 * 
-	 * @param T alphabet-provided name of training file, e.g. "training_english_GB.txt"
+	 * @param mgr AlphabetManager whose LM should be trained
 	 */
-	protected void train(CAlphabetManager<?> mgr) {
-		// Train the new language model
-		Lock("Training Dasher", 0); 
-		train(mgr,new ProgressNotifier() {
-			public void notifyProgress(int iPercent) {
-				Lock("Training Dasher", iPercent);
+	protected void train(final CAlphabetManager<?> mgr) {
+		Thread t = new Thread("Training Dasher") {
+			@Override public void run() {
+				if (train(mgr,new ProgressNotifier() {
+					public void notifyProgress(int iPercent) throws AsynchronousCloseException {
+						if (m_TrainingMgr!=mgr) throw new AsynchronousCloseException();
+					}
+				})) trainingComplete(mgr);
 			}
-		});
-		Lock("Training Dasher", -1);
+		};
+		t.setPriority(Thread.MIN_PRIORITY); //don't slow down the user, who is already writing!
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Notifies that an AlphabetManager's LM, passed to {@link #train(CAlphabetManager)},
+	 * has finished training. It will be swapped in at the start of the next frame,
+	 * unless the alphabet has been changed (again) since. May be called from any thread.
+	 * @param mgr AlphabetManager whose LM was trained
+	 */
+	protected final void trainingComplete(CAlphabetManager<?> mgr) {
+		if (m_TrainingMgr!=mgr) return;
+		m_TrainingMgr = null;
+		m_TrainedMgr = mgr;
+		Redraw(true);
 	}
 	
 	/** Interface by which an object may be notified of training progress (as a %age) */
@@ -756,13 +904,41 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 	/**
 	 * Called to train the model with all available files of the specified name
 	 * (obtained via {@link #GetStreams(String, Collection)}.
+	 * <p>
+	 * If {@link #getCacheFile(String)} supplies somewhere to keep it, a binary snapshot
+	 * of the trained model ({@link CLMSnapshot}) is saved after training; on subsequent
+	 * runs the model is restored from that snapshot, and only text appended to the
+	 * training files since (i.e. by {@link #WriteTrainFile(String, String)}) is trained.
+	 * Otherwise, the symbols decoded from each training stream are also cached
+	 * ({@link CSymbolCache}), so retraining from an unchanged stream need not decode it again.
+	 * (For a {@link CSharedPPMLanguageModel}, only the base is snapshotted; see
+	 * {@link #trainShared(CAlphabetManager, CSharedPPMLanguageModel, ProgressNotifier)}.)
 	 * @param T alphabet-provided name of training file, e.g. "training_english_GB.txt"
 	 * @param prog ProgressNotifier which will be notified of %progress
+	 * @return true if training completed, false if it was aborted by <code>prog</code>
 	 */
-	protected void train(CAlphabetManager<?> mgr,ProgressNotifier prog) {
+	protected boolean train(CAlphabetManager<?> mgr,ProgressNotifier prog) {
+		if (mgr.getLanguageModel() instanceof CSharedPPMLanguageModel)
+			return trainShared(mgr, (CSharedPPMLanguageModel)mgr.getLanguageModel(), prog);
+		final File snapFile = getCacheFile(CLMSnapshot.fileName(mgr.m_Alphabet));
+		final CLMSnapshot snap = CLMSnapshot.open(snapFile, mgr.m_Alphabet);
+		List<CLMSnapshot.Source> streams = openTrainStreams(mgr.m_Alphabet);
+		boolean bRestored=false;
+		if (snap!=null) {
+			try {
+				bRestored = snap.matches(streams) && snap.restore(mgr.getLanguageModel());
+			} catch (IOException e) {
+				//fall through to retrain from scratch
+			}
+			if (!bRestored) {
+				//stale or unusable, so don't try it again
+				snapFile.delete();
+				//streams have been (partly) consumed checking the snapshot; start again.
+				closeAll(streams);
+				streams = openTrainStreams(mgr.m_Alphabet);
+			}
+		}
 		int iTotalBytes=0;
-		List<InputStream> streams=new ArrayList<InputStream>();
-		GetStreams(mgr.m_Alphabet.GetTrainingFile(),streams);
 		for (InputStream in : streams)
 			try {
 				iTotalBytes+=in.available();
@@ -771,20 +947,127 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 				iTotalBytes = Integer.MAX_VALUE; //i.e. we won't get progress - because we can't...
 				break;
 			}
+		if (iTotalBytes==0) iTotalBytes=1; //e.g. all text already in snapshot; avoid div-by-zero
 			
 		int iRead = 0;
-		for (InputStream in : streams) {
+		boolean bTrained = !bRestored; //if restored, only need new snapshot if more text
+		for (int i=0; i<streams.size(); i++) {
 			try {
-				iRead = mgr.TrainStream(in, iTotalBytes, iRead, prog);
+				int iPrev=iRead;
+				//symbols are only cached for whole streams, i.e. if not partly restored from the snapshot
+				final File symFile = bRestored ? null : getCacheFile(CSymbolCache.fileName(mgr.m_Alphabet, i));
+				iRead = mgr.TrainStream(streams.get(i), symFile, iTotalBytes, iRead, prog);
+				if (iRead>iPrev) bTrained=true;
 			} catch (AsynchronousCloseException e) {
 				//thrown to indicate training aborted. In that case we don't
-				// want to cache the LM.
-				m_LMcache.remove(mgr.m_Alphabet);
-				break;
+				// want to snapshot the LM.
+				closeAll(streams);
+				return false;
 			} catch (IOException e) {
 				Message("Error "+e+" in training - rest of text skipped", 1); // 1 = severity
+				bTrained=false; //don't know how much we learnt, so can't snapshot it
+			}
+		}
+		closeAll(streams);
+		if (bTrained && snapFile!=null) {
+			try {
+				CLMSnapshot.write(snapFile, mgr.m_Alphabet, mgr.getLanguageModel(), streams);
+			} catch (IOException e) {
+				//not fatal - we'll just have to train again next time
+				snapFile.delete();
 			}
 		}
+		return true;
+	}
+	
+	/**
+	 * Trains a two-layer model. The base is built from the first training stream (i.e. the system
+	 * training file, identical for every user), and restored from a snapshot if there is one -
+	 * which memory-maps it, so processes using the same alphabet share its pages; if not, it is
+	 * trained, saved as a snapshot, and then mapped back in. Any further (user) streams are
+	 * then learnt into the overlay.
+	 */
+	private boolean trainShared(CAlphabetManager<?> mgr, CSharedPPMLanguageModel lm, ProgressNotifier prog) {
+		final File baseFile = getCacheFile(CLMSnapshot.baseFileName(mgr.m_Alphabet));
+		List<CLMSnapshot.Source> streams = openTrainStreams(mgr.m_Alphabet);
+		if (streams.isEmpty()) return true;
+		CLMSnapshot snap = CLMSnapshot.open(baseFile, mgr.m_Alphabet);
+		boolean bRestored=false;
+		if (snap!=null) {
+			try {
+				bRestored = snap.matches(streams.subList(0, 1)) && snap.restore(lm);
+			} catch (IOException e) {
+				//fall through to rebuild base
+			}
+			if (!bRestored) {
+				baseFile.delete();
+				closeAll(streams);
+				streams = openTrainStreams(mgr.m_Alphabet);
+			}
+		}
+		int iTotalBytes=0;
+		for (InputStream in : streams)
+			try {
+				iTotalBytes+=in.available();
+			} catch (IOException e) {
+				iTotalBytes = Integer.MAX_VALUE;
+				break;
+			}
+		if (iTotalBytes==0) iTotalBytes=1;
+		int iRead=0;
+		try {
+			if (!bRestored) {
+				//train a full model on the system text, to make the base from
+				CPPMLanguageModel full = new CPPMLanguageModel(this, mgr.m_Alphabet);
+				iRead = CAlphabetManager.makeAlphMgr(this, full).TrainStream(streams.get(0),
+						getCacheFile(CSymbolCache.fileName(mgr.m_Alphabet, 0)), iTotalBytes, 0, prog);
+				lm.SetBase(full);
+				full = null;
+				if (baseFile!=null) {
+					try {
+						if (CLMSnapshot.write(baseFile, mgr.m_Alphabet, lm, streams.subList(0, 1))
+								&& (snap = CLMSnapshot.open(baseFile, mgr.m_Alphabet))!=null)
+							snap.restore(lm); //replace heap copy with mapped file
+					} catch (IOException e) {
+						baseFile.delete(); //not fatal, we just keep the base on the heap
+					}
+				}
+			}
+			for (int i=1; i<streams.size(); i++)
+				iRead = mgr.TrainStream(streams.get(i), getCacheFile(CSymbolCache.fileName(mgr.m_Alphabet, i)), iTotalBytes, iRead, prog);
+		} catch (AsynchronousCloseException e) {
+			//training aborted
+			closeAll(streams);
+			return false;
+		} catch (IOException e) {
+			Message("Error "+e+" in training - rest of text skipped", 1); // 1 = severity
+		}
+		closeAll(streams);
+		return true;
+	}
+	
+	/*package*/ List<CLMSnapshot.Source> openTrainStreams(CAlphIO.AlphInfo alph) {
+		List<InputStream> streams=new ArrayList<InputStream>();
+		GetStreams(alph.GetTrainingFile(),streams);
+		List<CLMSnapshot.Source> res = new ArrayList<CLMSnapshot.Source>(streams.size());
+		for (InputStream in : streams) res.add(new CLMSnapshot.Source(in));
+		return res;
+	}
+	
+	/*package*/ static void closeAll(List<? extends InputStream> streams) {
+		for (InputStream in : streams)
+			try {in.close();} catch (IOException e) {/*ignore*/}
+	}
+	
+	/**
+	 * Get a file in which to cache data derived from other files (e.g. trained language
+	 * models), which can be recreated if lost. Default implementation returns null,
+	 * meaning no caching; subclasses which are able to perform file I/O, should override.
+	 * @param name Name of cache file, e.g. "training_english_GB.txt.1f2e3d.lm"
+	 * @return File to read/write, or null if no caching is possible
+	 */
+	protected File getCacheFile(String name) {
+		return null;
 	}
 	
 	/**
@@ -1011,6 +1294,8 @@ abstract public class CDasherInterfaceBase extends CDasherComponent {
 	 */
 	public void StartShutdown() {
 		m_bShutdownLock = true;
+		m_TrainingMgr = null; //abort any training
+		m_Warmer = null; //and any warming
 		if (m_DasherModel!=null) m_DasherModel.shutdown();
 	}
 	
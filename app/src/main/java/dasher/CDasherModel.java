@@ -25,7 +25,9 @@
 
 package dasher;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Dasher 'world' data structures and dynamics.
@@ -140,6 +142,8 @@ public class CDasherModel extends CFrameRate {
 		super.HandleEvent(eParam); //framerate watches LP_MAX_BITRATE
 		if (eParam == Elp_parameters.LP_NODE_BUDGET) {
 			pol = new AmortizedPolicy((int)GetLongParameter(Elp_parameters.LP_NODE_BUDGET));
+			//the tree never has many more nodes than the budget, so neither need the free lists
+			CNodePool.SHARED.setMaxFree((int)GetLongParameter(Elp_parameters.LP_NODE_BUDGET));
 		}
 	}
 	
@@ -353,8 +357,10 @@ public class CDasherModel extends CFrameRate {
 	
 	private void checkCantReach(CDasherNode from, CDasherNode to) {
 		if (from == to) throw new IllegalStateException("Reachable!");
-		for (int i=0; i<from.ChildCount(); i++)
-			checkCantReach(from.ChildAtIndex(i), to);
+		for (int i=0; i<from.ChildCount(); i++) {
+			final CDasherNode ch = from.PeekChild(i);
+			if (ch!=null) checkCantReach(ch, to); //(children not yet materialized can't be anything)
+		}
 	}
 	
 	private void ReplaceNode(CDasherNode old, CDasherNode node) {
@@ -503,6 +509,71 @@ public class CDasherModel extends CFrameRate {
 		m_gotoMin[0] = m_Rootmin + m1;
 		m_gotoMax[0] = m_Rootmax + m2;
 		m_iGotoNext=0;
+		//the interval which would fill the screen, if we kept going
+		m_iSteerMin = y1; m_iSteerMax = y2;
+		m_bSteering = true;
+	}
+	
+	/** Whether {@link #ScheduleOneStep} has been called since the last frame, i.e. we are moving */
+	private boolean m_bSteering;
+	/** Interval (in Dasher coordinates) towards which {@link #ScheduleOneStep} last steered */
+	private long m_iSteerMin, m_iSteerMax;
+	
+	/** Max number of nodes to prefetch each frame */
+	private static final int PREFETCH_MAX = 8;
+	/** Nodes down to this fraction of LP_MIN_NODE_SIZE_TEXT may be prefetched: they are
+	 * likely to be expanded within the next few frames */
+	private static final int PREFETCH_FACTOR = 4;
+	/** Candidates for prefetching in the current frame, and their sizes; reused between frames */
+	private final List<CDasherNode> m_Prefetch = new ArrayList<CDasherNode>();
+	private long[] m_PrefetchSizes = new long[PREFETCH_MAX*4];
+	
+	/**
+	 * Finds the nodes without children which are (a) within the interval towards which
+	 * we are steering, and so will grow, (b) largest, so will need children soonest;
+	 * and asks them to {@link CDasherNode.BatchPreparer#prefetchChildren(List) prepare}
+	 * in the background to populate their children.
+	 */
+	private void prefetch() {
+		m_Prefetch.clear();
+		final long iMinSize = GetLongParameter(Elp_parameters.LP_MIN_NODE_SIZE_TEXT)/PREFETCH_FACTOR;
+		findPrefetch(m_Root, m_Rootmin+m_iDisplayOffset, m_Rootmax+m_iDisplayOffset, iMinSize);
+		if (m_Prefetch.isEmpty()) return;
+		//keep the biggest (by selection, there are few)
+		for (int i=0; i<PREFETCH_MAX && i<m_Prefetch.size(); i++) {
+			int iBest=i;
+			for (int j=i+1; j<m_Prefetch.size(); j++)
+				if (m_PrefetchSizes[j]>m_PrefetchSizes[iBest]) iBest=j;
+			final long sz = m_PrefetchSizes[i]; m_PrefetchSizes[i] = m_PrefetchSizes[iBest]; m_PrefetchSizes[iBest] = sz;
+			m_Prefetch.set(iBest, m_Prefetch.set(i, m_Prefetch.get(iBest)));
+		}
+		while (m_Prefetch.size()>PREFETCH_MAX) m_Prefetch.remove(m_Prefetch.size()-1);
+		final List<CDasherNode.BatchPreparer> done = new ArrayList<CDasherNode.BatchPreparer>(1);
+		for (CDasherNode n : m_Prefetch) {
+			final CDasherNode.BatchPreparer prep = n.getBatchPreparer();
+			if (prep!=null && !done.contains(prep)) {
+				prep.prefetchChildren(m_Prefetch);
+				done.add(prep);
+			}
+		}
+		m_Prefetch.clear();
+	}
+	
+	private void findPrefetch(CDasherNode n, long y1, long y2, long iMinSize) {
+		if (y2 <= m_iSteerMin || y1 >= m_iSteerMax || y2-y1 < iMinSize
+				|| m_Prefetch.size()==m_PrefetchSizes.length) return;
+		if (n.ChildCount()==0) {
+			m_PrefetchSizes[m_Prefetch.size()] = y2-y1;
+			m_Prefetch.add(n);
+			return;
+		}
+		final long range = y2-y1;
+		for (int i=0, j=n.ChildCount(); i<j; i++) {
+			final long cy1 = y1 + (range*n.ChildLbnd(i))/NORMALIZATION, cy2 = y1 + (range*n.ChildHbnd(i))/NORMALIZATION;
+			//only materialize children big enough to be worth prefetching
+			if (cy2 > m_iSteerMin && cy1 < m_iSteerMax && cy2-cy1 >= iMinSize)
+				findPrefetch(n.ChildAtIndex(i), cy1, cy2, iMinSize);
+		}
 	}
 	
 	/**
@@ -524,8 +595,9 @@ public class CDasherModel extends CFrameRate {
 			
 			//pick _child_ covering crosshair...
 			final long iWidth = m_Rootmax-m_Rootmin;
-			for (CDasherNode ch : m_Root.Children()) {
-				if (m_Rootmin + (ch.Hbnd() * iWidth / NORMALIZATION) > CROSS_Y) {
+			for (int i=0, j=m_Root.ChildCount(); i<j; i++) {
+				if (m_Rootmin + (m_Root.ChildHbnd(i) * iWidth / NORMALIZATION) > CROSS_Y) {
+					final CDasherNode ch = m_Root.ChildAtIndex(i);
 					//found child to make root. TODO, proceed only if new root is on the game path....
 					/*if (m_bGameMode && !pChild->GetFlag(NF_GAME)) {
 					  //If the user's strayed that far off the game path,
@@ -632,6 +704,27 @@ public class CDasherModel extends CFrameRate {
 			Node.PopulateChildren();
 	}
 	
+	/**
+	 * Populates the children of several nodes, as {@link #Expand(CDasherNode)} on each,
+	 * but first allowing them to prepare together (e.g. to compute all their probabilities
+	 * in one batch) - see {@link CDasherNode#getBatchPreparer()}.
+	 * @param nodes Nodes to expand. Must not contain null.
+	 */
+	protected void Expand(List<CDasherNode> nodes) {
+		if (nodes.size()>1) {
+			final List<CDasherNode.BatchPreparer> done = new ArrayList<CDasherNode.BatchPreparer>(1);
+			for (CDasherNode n : nodes) {
+				final CDasherNode.BatchPreparer prep = n.getBatchPreparer();
+				if (prep!=null && !done.contains(prep)) {
+					prep.prepareChildren(nodes);
+					done.add(prep);
+				}
+			}
+		}
+		for (CDasherNode n : nodes)
+			Expand(n);
+	}
+	
 	/** Whether there is currently a call to RenderToView in progress.
 	 * If so, we'd better not make any significant changes to the tree
 	 * (expanding nodes probably ok but that's about it)
@@ -677,7 +770,16 @@ public class CDasherModel extends CFrameRate {
 			}
 		}
 
+		final long iStart = System.nanoTime();
 		boolean bRes = pol.apply(this);
+		final long iExpandTime = System.nanoTime()-iStart;
+		m_iFrames++;
+		m_dExpandTime += iExpandTime;
+		m_dExpandTimeSq += (double)iExpandTime*iExpandTime;
+		if (m_bSteering) {
+			if (GetBoolParameter(Ebp_parameters.BP_PREFETCH_CHILDREN)) prefetch();
+			m_bSteering = false;
+		}
 		bRendering=false;
 		if (m_replace!=null) {
 			ReplaceNode(m_replace, m_with);
@@ -685,6 +787,29 @@ public class CDasherModel extends CFrameRate {
 		}
 		return bRes;
 	}
+	
+	/** Number of frames, and total and sum-of-squares of the time (ns) each spent expanding/collapsing nodes */
+	private int m_iFrames;
+	private double m_dExpandTime, m_dExpandTimeSq;
+	
+	/** Mean time per frame spent expanding and collapsing nodes, in microseconds, since {@link #resetExpandTimes()} */
+	public double getMeanExpandTime() {
+		return (m_iFrames==0) ? 0.0 : m_dExpandTime/m_iFrames/1000.0;
+	}
+	
+	/** Standard deviation, between frames, of the time spent expanding and collapsing nodes
+	 * (i.e. jitter), in microseconds, since {@link #resetExpandTimes()} */
+	public double getExpandTimeJitter() {
+		if (m_iFrames==0) return 0.0;
+		final double mean = m_dExpandTime/m_iFrames;
+		return Math.sqrt(Math.max(0.0, m_dExpandTimeSq/m_iFrames - mean*mean))/1000.0;
+	}
+	
+	public void resetExpandTimes() {
+		m_iFrames=0;
+		m_dExpandTime = m_dExpandTimeSq = 0.0;
+	}
+	
 	/**
 	 * ExpansionPolicy to determine which CDasherNodes to expand or collapse in each frame.
 	 * Reused between frames to save on allocation.
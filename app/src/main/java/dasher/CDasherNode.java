@@ -25,7 +25,7 @@
 
 package dasher;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -68,14 +68,15 @@ public abstract class CDasherNode implements Document {
 	protected int m_iColour;
 	
 	/**
-	 * Lower cumulative probability bound relative to our parent
+	 * Lower cumulative probability bound relative to our parent. (Bounds never
+	 * exceed {@link CDasherModel#NORMALIZATION}, so are stored as ints.)
 	 */
-	protected long m_iLbnd;
+	protected int m_iLbnd;
 	
 	/**
 	 * Upper cumulative probability bound relative to our parent
 	 */
-	protected long m_iHbnd; 
+	protected int m_iHbnd; 
 
 	/**
 	 * Indicates whether this node's symbol has been output already
@@ -84,21 +85,25 @@ public abstract class CDasherNode implements Document {
 	 
 	// Information internal to the data structure
 	
+	/** Shared by all nodes without children, so they need no array of their own */
+	private static final CDasherNode[] NO_CHILDREN = new CDasherNode[0];
+	
 	/**
-	 * List of this node's child Nodes
+	 * This node's child Nodes, in the first {@link #m_iChildCount} elements; allocated with
+	 * room for {@link #ExpectedNumChildren()}, when the first is added. An entry is null
+	 * if that child has been added lazily (by {@link #addLazyChildren(CDasherNode, int)}) and not yet
+	 * materialized.
 	 */
-	private final ArrayList<CDasherNode> m_mChildren = new ArrayList<CDasherNode>();
+	private CDasherNode[] m_Children = NO_CHILDREN;
+	
+	/** Number of children */
+	private int m_iChildCount;
 	
 	/**
 	 * Parent Node
 	 */
 	private CDasherNode m_Parent;
 
-    /**
-	 * This Node's display text
-	 */
-    public String m_strDisplayText;
-
     /** Cost for expanding or collapsing the node. Set and read
      *  by ExpansionPolicy - but easiest to store here... */
     public double m_dCost;
@@ -118,6 +123,12 @@ public abstract class CDasherNode implements Document {
      * Setting to false means the node appears as part of its parent (irrespective of colours)
      */
     public boolean visible() {return true;}
+    
+    /**
+     * Gets the text to display in this node. Subclasses should look this up
+     * (e.g. from the alphabet, by symbol number) rather than store a copy in every node.
+     */
+    public abstract String getDisplayText();
 	
     protected CDasherNode() {
     	
@@ -136,16 +147,15 @@ public abstract class CDasherNode implements Document {
 	 * @param lm LanguageModel
 	 * @param Colour Colour number
 	 */
-    protected void initNode(int iOffset, int Colour, String strDisplayText) {
-    	if (strDisplayText==null || iOffset<-1) throw new IllegalArgumentException();
+    protected void initNode(int iOffset, int Colour) {
+    	if (iOffset<-1) throw new IllegalArgumentException();
     	m_iOffset = iOffset;
 		m_iLbnd = 0;
-		m_iHbnd = CDasherModel.NORMALIZATION;
+		m_iHbnd = (int)CDasherModel.NORMALIZATION;
 		//m_bHasAllChildren = false; //default at construction time, and cleared by DeleteNode()
 		m_bSeen = false; //default
 		m_iColour = Colour;
 		m_Parent = null; //until Reparent called
-		this.m_strDisplayText = strDisplayText;
 		numNodes++;
 	}
     
@@ -164,6 +174,54 @@ public abstract class CDasherNode implements Document {
 	 */
 	public abstract void PopulateChildren();
 	
+	/**
+	 * A node which can add children lazily, by {@link CDasherNode#addLazyChildren(CDasherNode, int)}:
+	 * it computes their bounds, and creates each child only when it is first needed.
+	 */
+	public static interface LazyChildren {
+		/**
+		 * Gets a boundary between lazily-added children.
+		 * @param i index of a lazy child, for its lower bound; or one more, for its upper bound
+		 * @return bound, relative to this node
+		 */
+		long lazyChildBound(int i);
+
+		/**
+		 * Creates a child which was added lazily; the caller attaches it and sets its bounds.
+		 * @param i index of the child
+		 * @return new node, not yet having a parent
+		 */
+		CDasherNode materializeChild(int i);
+	}
+
+	/**
+	 * Something which can prepare several nodes to {@link CDasherNode#PopulateChildren()}
+	 * at once, more cheaply than each would separately - e.g. by computing all their
+	 * probabilities in one batch.
+	 */
+	public static interface BatchPreparer {
+		/**
+		 * Prepares for those of the specified nodes, which returned this from
+		 * {@link CDasherNode#getBatchPreparer()}, to populate their children.
+		 * @param nodes Nodes about to be expanded (may include others, to be ignored)
+		 */
+		void prepareChildren(List<CDasherNode> nodes);
+		
+		/**
+		 * Starts preparing, in the background, for those of the specified nodes which
+		 * returned this from {@link CDasherNode#getBatchPreparer()}, to populate their
+		 * children - i.e. when it is likely they soon will, but they need not yet.
+		 * @param nodes Nodes which may be expanded in the next few frames
+		 */
+		void prefetchChildren(List<CDasherNode> nodes);
+	}
+	
+	/**
+	 * Gets the object able to prepare this node to populate its children, along with
+	 * others; the default is null, i.e. each node just populates its own.
+	 */
+	public BatchPreparer getBatchPreparer() {return null;}
+	
 	/**
 	 * Performs output appropriate to the Node, if any.
 	 * <p>
@@ -309,33 +367,112 @@ public abstract class CDasherNode implements Document {
      }
 	
 	/**
-	 * Gets a (read-only) reference to this Node's child list. 
+	 * Gets a (read-only) reference to this Node's child list. Note this
+	 * materializes any children added lazily, so should be avoided where
+	 * {@link #ChildLbnd(int)}, {@link #ChildHbnd(int)} or {@link #PeekChild(int)} will do.
 	 * 
-	 * @return m_mChildren
+	 * @return list of children
 	 */
 	public List<CDasherNode> Children() {
-		return Collections.unmodifiableList(m_mChildren);
+		for (int i=0, j=ChildCount(); i<j; i++) ChildAtIndex(i);
+		return Collections.unmodifiableList(Arrays.asList(m_Children).subList(0, m_iChildCount));
 	}
 	
 	/**
-	 * Returns the size of our child list. (Avoids allocating unmodifiable lists, etc.)
+	 * Returns the number of children. (Avoids allocating unmodifiable lists, etc.)
 	 * 
-	 * @return Size of m_mChildren.
+	 * @return m_iChildCount
 	 */
 	public int ChildCount() {
-	    return m_mChildren.size();
+	    return m_iChildCount;
 	}
 
 	/**
 	 * Returns the <code>i</code>th child of this node, so we can iterate through
-	 * without allocating an iterator.
+	 * without allocating an iterator. If the child was added lazily, it is
+	 * materialized now.
 	 * @param i desired index: <code>0<=i<ChildCount()</code>
 	 * @return the <code>i</code>th child node
 	 */
 	public CDasherNode ChildAtIndex(int i) {
-		return m_mChildren.get(i);
+		CDasherNode c = PeekChild(i);
+		if (c==null) {
+			final LazyChildren lazy = (LazyChildren)this;
+			c = lazy.materializeChild(i);
+			c.m_Parent = this;
+			c.m_iLbnd = (int)lazy.lazyChildBound(i);
+			c.m_iHbnd = (int)lazy.lazyChildBound(i+1);
+			m_Children[i] = c;
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the <code>i</code>th child of this node only if it exists as a node object.
+	 * @param i desired index: <code>0<=i<ChildCount()</code>
+	 * @return the <code>i</code>th child, or null if it was added lazily and has not been
+	 * materialized (so has no children, and nothing to collapse)
+	 */
+	public CDasherNode PeekChild(int i) {
+		if (i>=m_iChildCount) throw new IndexOutOfBoundsException(i+" of "+m_iChildCount);
+		return m_Children[i];
+	}
+
+	/**
+	 * Gets the lower bound of the <code>i</code>th child, without materializing it.
+	 * @param i desired index: <code>0<=i<ChildCount()</code>
+	 */
+	public long ChildLbnd(int i) {
+		final CDasherNode c = PeekChild(i);
+		return (c==null) ? ((LazyChildren)this).lazyChildBound(i) : c.m_iLbnd;
+	}
+
+	/**
+	 * Gets the upper bound of the <code>i</code>th child, without materializing it.
+	 * @param i desired index: <code>0<=i<ChildCount()</code>
+	 */
+	public long ChildHbnd(int i) {
+		final CDasherNode c = PeekChild(i);
+		return (c==null) ? ((LazyChildren)this).lazyChildBound(i+1) : c.m_iHbnd;
+	}
+
+	/**
+	 * Adds children to be created only when needed, i.e. by {@link #ChildAtIndex(int)}:
+	 * until then, each occupies just a slot in the child list, and its bounds come from
+	 * {@link LazyChildren#lazyChildBound(int)}.
+	 * @param node Node to which to add children
+	 * @param n Number of children to add, after any existing
+	 */
+	protected static <T extends CDasherNode & LazyChildren> void addLazyChildren(T node, int n) {
+		final CDasherNode p = node; //(private members aren't accessible via T)
+		p.ensureChildCapacity(p.m_iChildCount+n);
+		p.m_iChildCount+=n; //slots beyond the old count are already null
+	}
+	
+	/**
+	 * Makes room for at least the specified number of children. The first time,
+	 * allocates exactly as many as {@link #ExpectedNumChildren()}, if that is enough.
+	 */
+	private void ensureChildCapacity(int n) {
+		if (n<=m_Children.length) return;
+		final int iCap = (m_Children==NO_CHILDREN) ? Math.max(n, ExpectedNumChildren()) : Math.max(n, m_Children.length*2);
+		final CDasherNode[] arr = new CDasherNode[iCap];
+		System.arraycopy(m_Children, 0, arr, 0, m_iChildCount);
+		m_Children = arr;
+	}
+	
+	/** Appends a child to our array (the caller sets its parent) */
+	private void addChild(CDasherNode c) {
+		ensureChildCapacity(m_iChildCount+1);
+		m_Children[m_iChildCount++] = c;
 	}
 	
+	/** Drops all our children (without deleting them), freeing the array holding them */
+	private void clearChildren() {
+		m_Children = NO_CHILDREN;
+		m_iChildCount = 0;
+	}
+
 	/**
 	 * Gets this node's parent.
 	 * 
@@ -356,18 +493,19 @@ public abstract class CDasherNode implements Document {
 		if (m_Parent!=NewParent) {
 			assert m_Parent==null;
 		    m_Parent = NewParent;
-		    assert m_Parent.m_mChildren.get(m_Parent.m_mChildren.size()-1).m_iHbnd==iLower;
-		    m_Parent.m_mChildren.add(this);
+		    assert m_Parent.ChildCount()==0 || m_Parent.ChildHbnd(m_Parent.ChildCount()-1)==iLower;
+		    m_Parent.addChild(this);
 		}
-	    m_iLbnd = iLower;
-	    m_iHbnd = iUpper;
+	    m_iLbnd = (int)iLower;
+	    m_iHbnd = (int)iUpper;
 	}
 	
 	void transferChildrenTo(CDasherNode NewParent) {
 		if (NewParent.ChildCount()!=0) throw new IllegalArgumentException("New (target) parent must have no children");
-		for (CDasherNode c : m_mChildren)
-			(c.m_Parent=NewParent).m_mChildren.add(c);
-		m_mChildren.clear();
+		for (int i=0; i<m_iChildCount; i++) ChildAtIndex(i).m_Parent = NewParent;
+		NewParent.m_Children = m_Children;
+		NewParent.m_iChildCount = m_iChildCount;
+		clearChildren();
 	}
 	
 	/**
@@ -412,8 +550,9 @@ public abstract class CDasherNode implements Document {
     	
     	long iMax = 0;
     	    	
-    	for(CDasherNode i : this.Children()) {
-    		if(i.Range() > iMax) iMax = i.Range();
+    	for(int i=0, j=ChildCount(); i<j; i++) {
+    		final long iRange = ChildHbnd(i) - ChildLbnd(i);
+    		if(iRange > iMax) iMax = iRange;
     	}
     	
     	return iMax;
@@ -432,11 +571,12 @@ public abstract class CDasherNode implements Document {
 		  assert(ChildCount() > 0);
 		  assert (pChild.Parent()==this);
 		  pChild.m_Parent = null;
-		  for(CDasherNode i : this.Children()) {
-			  if(i != pChild)
-				  i.DeleteNode();
+		  for(int i=0; i<m_iChildCount; i++) {
+			  final CDasherNode c = m_Children[i];
+			  if(c != pChild && c != null)
+				  c.DeleteNode();
 		  }
-		  m_mChildren.clear();
+		  clearChildren();
 		  DeleteNode();
 	}
 
@@ -450,8 +590,9 @@ public abstract class CDasherNode implements Document {
 	public void DeleteNephews(CDasherNode pChild) {
 		  assert(ChildCount() > 0);
 		  
-		  for(CDasherNode i : this.Children()) {
-			  if(i != pChild) i.Delete_children();
+		  for(int i=0; i<m_iChildCount; i++) {
+			  final CDasherNode c = m_Children[i];
+			  if(c != pChild && c != null) c.Delete_children();
 		  }
 	}
 
@@ -463,9 +604,9 @@ public abstract class CDasherNode implements Document {
 	 */
 	public void Delete_children() {
 		
-		for(int i=0, j=ChildCount(); i<j; i++)
-			 ChildAtIndex(i).DeleteNode();
-		m_mChildren.clear(); // This should be enough to render them GC-able.
+		for(int i=0; i<m_iChildCount; i++)
+			 if (m_Children[i]!=null) m_Children[i].DeleteNode();
+		clearChildren(); // This should be enough to render them GC-able.
 		m_OnlyChildRendered = null;
 	}
 
@@ -478,7 +619,7 @@ public abstract class CDasherNode implements Document {
 	}
 
 	public String toString() {
-		return m_strDisplayText+"@"+getOffset();
+		return getDisplayText()+"@"+getOffset();
 	}
 	
 }
@@ -302,8 +302,9 @@ public class CDasherViewSquare extends CDasherView {
 				if (Render.visible())
 					Screen().DrawRectangle(left, top, right, bottom, Render.m_iColour, -1, bOutline ? 1 : 0);
 		
-				if( Render.m_strDisplayText.length() > 0 ) {
-					int textedge = DrawText(left, top, right, bottom, mostleft, fontSize(iDasherSize), Render.m_strDisplayText);
+				final String strText = Render.getDisplayText();
+				if( strText.length() > 0 ) {
+					int textedge = DrawText(left, top, right, bottom, mostleft, fontSize(iDasherSize), strText);
 					if (Render.shove()) mostleft=textedge;
 				}
 			}
@@ -350,15 +351,16 @@ public class CDasherViewSquare extends CDasherView {
 			assert newy1 <= visreg.maxY;
 			int i=0; final int j=Render.ChildCount();
 			for(; i<j; i++, newy1=newy2) {
-				CDasherNode ch = Render.ChildAtIndex(i);
-					
-				newy2 = y1 + (iDasherSize * ch.Hbnd()) / NORMALIZATION;
+				//don't materialize the child (if it was added lazily) unless we render it
+				final long iHbnd = Render.ChildHbnd(i);
+				newy2 = y1 + (iDasherSize * iHbnd) / NORMALIZATION;
 				if (newy2 < visreg.minY) {
 					//not reached screen yet.
-					m_model.Collapse(ch);
+					collapse(Render, i);
 					//and loop round
-				} else if (newy2 - newy1 > minNodeSizeText || ch.Range()>NORMALIZATION/2) {
+				} else if (newy2 - newy1 > minNodeSizeText || iHbnd-Render.ChildLbnd(i)>NORMALIZATION/2) {
 					//definitely big enough to render
+					CDasherNode ch = Render.ChildAtIndex(i);
 					RecursiveRender(ch, newy1, newy2, mostleft);
 					if (newy2 >= visreg.maxY) {
 						//remaining children offscreen
@@ -368,18 +370,24 @@ public class CDasherViewSquare extends CDasherView {
 					//and loop round
 				} else {
 					//did not RecursiveRender, or store into bestCh.
-					m_model.Collapse(ch);
+					collapse(Render, i);
 					if (newy2 > visreg.maxY) break; //rest of children are offscreen
 				}
 			}
 			//any remaining children are offscreen, and do not need rendering
-			while (++i<j) m_model.Collapse(Render.ChildAtIndex(i));
+			while (++i<j) collapse(Render, i);
 			//node rendered, no tail call required, exit
 			break;
 			// (otherwise, would loop round the tail-call loop)
 		}
 	}
 	
+	/** Collapses a child not being rendered, if it exists as a node (else it has no children to collapse) */
+	private void collapse(CDasherNode parent, int i) {
+		final CDasherNode ch = parent.PeekChild(i);
+		if (ch!=null) m_model.Collapse(ch);
+	}
+	
 	private int DrawText(int left, int top, int right, int bottom, int textedge, int size, String sDisplayText) {
 		
 		CDasherView.Point textDimensions = ScreenTextSize(sDisplayText, size);
@@ -0,0 +1,160 @@
+package dasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trained language models for recently-used alphabets, so that switching back to one
+ * (e.g. via {@link CControlManager}'s alphabet switcher) need not train it again.
+ * <p>
+ * Models are kept in least-recently-used order, within a budget of LP_LM_CACHE_SIZE KB
+ * (as measured by {@link CLanguageModel#GetMemory()}). Beyond that, the least recently used
+ * are evicted, spilling each (on a background thread) to its {@link CLMSnapshot} file, recording
+ * the whole of the training text (to which everything the model learnt in use has been written
+ * by then); so if the alphabet is used again, {@link CDasherInterfaceBase#train(CAlphabetManager, CDasherInterfaceBase.ProgressNotifier)}
+ * just maps the snapshot back in, with nothing to retrain. The most recently used model (i.e.
+ * that in use, once trained) is never evicted.
+ */
+/*package*/ class CLMCache {
+	/** Single thread, shared by all caches, which writes out evicted models. (Exits when idle.) */
+	private static final ExecutorService SPILLER = new ThreadPoolExecutor(0, 1, 5, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LM spiller");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+
+	private final CDasherInterfaceBase m_Interface;
+	/** Models in the cache, least recently used first */
+	private final LinkedHashMap<CAlphIO.AlphInfo, CLanguageModel<?>> m_Models
+		= new LinkedHashMap<CAlphIO.AlphInfo, CLanguageModel<?>>(8, 0.75f, true);
+	/** Models evicted but not yet written out; if asked for meanwhile, they return to the cache. */
+	private final Map<CAlphIO.AlphInfo, CLanguageModel<?>> m_Spilling
+		= new HashMap<CAlphIO.AlphInfo, CLanguageModel<?>>();
+
+	CLMCache(CDasherInterfaceBase intf) {
+		this.m_Interface = intf;
+	}
+
+	/**
+	 * Gets the trained model for an alphabet, making it the most recently used.
+	 * @return the model, or null if none is cached (it must be trained - or restored
+	 * from a snapshot - afresh)
+	 */
+	synchronized CLanguageModel<?> get(CAlphIO.AlphInfo alph) {
+		CLanguageModel<?> lm = m_Models.get(alph);
+		if (lm==null && (lm = m_Spilling.remove(alph))!=null) {
+			m_Models.put(alph, lm);
+			trim();
+		}
+		return lm;
+	}
+
+	/** Adds a trained model, as most recently used, evicting others if necessary to stay within budget */
+	synchronized void put(CAlphIO.AlphInfo alph, CLanguageModel<?> lm) {
+		m_Models.put(alph, lm);
+		trim();
+	}
+
+	/**
+	 * Adds a model trained speculatively (i.e. not yet asked for), as least recently used,
+	 * but only if it fits within budget without evicting anything.
+	 * @return true if added, false if there was no room, or a model is cached already
+	 */
+	synchronized boolean offer(CAlphIO.AlphInfo alph, CLanguageModel<?> lm) {
+		if (contains(alph) || bytes()+lm.GetMemory() > budget()) return false;
+		final Map<CAlphIO.AlphInfo, CLanguageModel<?>> others = new LinkedHashMap<CAlphIO.AlphInfo, CLanguageModel<?>>(m_Models);
+		m_Models.clear();
+		m_Models.put(alph, lm);
+		m_Models.putAll(others);
+		return true;
+	}
+
+	/** Whether a model for the alphabet is cached (or being spilled), without making it the most recently used */
+	synchronized boolean contains(CAlphIO.AlphInfo alph) {
+		return m_Models.containsKey(alph) || m_Spilling.containsKey(alph);
+	}
+
+	/** Whether the models cached already fill the budget */
+	synchronized boolean isFull() {
+		return bytes() >= budget();
+	}
+
+	/** Removes all models, without spilling them, e.g. because the LM parameters have changed */
+	synchronized void clear() {
+		m_Models.clear();
+		m_Spilling.clear();
+	}
+
+	/**
+	 * Evicts least-recently-used models, until those remaining fit in LP_LM_CACHE_SIZE
+	 * or only the most recent is left. Models we know how to snapshot are spilled; others
+	 * (a {@link CRemoteLanguageModel}, whose server keeps its own; or a {@link CSharedPPMLanguageModel},
+	 * whose base is already mapped from disk) are just dropped.
+	 */
+	synchronized void trim() {
+		final long iBudget = budget();
+		long iBytes = bytes();
+		for (Iterator<Map.Entry<CAlphIO.AlphInfo, CLanguageModel<?>>> it = m_Models.entrySet().iterator();
+				iBytes>iBudget && m_Models.size()>1;) {
+			final Map.Entry<CAlphIO.AlphInfo, CLanguageModel<?>> e = it.next();
+			it.remove();
+			iBytes-=e.getValue().GetMemory();
+			if (e.getValue() instanceof CPPMLanguageModel) spill(e.getKey(), e.getValue());
+		}
+	}
+
+	private long budget() {
+		return m_Interface.GetLongParameter(Elp_parameters.LP_LM_CACHE_SIZE)*1024;
+	}
+
+	/** Total memory used by the models in the cache (not those being spilled) */
+	private long bytes() {
+		long iBytes=0;
+		for (CLanguageModel<?> lm : m_Models.values()) iBytes+=lm.GetMemory();
+		return iBytes;
+	}
+
+	private void spill(final CAlphIO.AlphInfo alph, final CLanguageModel<?> lm) {
+		m_Spilling.put(alph, lm);
+		SPILLER.execute(new Runnable() {
+			public void run() {
+				synchronized (CLMCache.this) {
+					if (m_Spilling.get(alph)!=lm) return; //back in use, or cache cleared
+				}
+				write(alph, lm);
+				synchronized (CLMCache.this) {
+					if (m_Spilling.get(alph)==lm) m_Spilling.remove(alph);
+				}
+			}
+		});
+	}
+
+	/** Snapshots a model as trained on all of its alphabet's current training text */
+	private void write(CAlphIO.AlphInfo alph, CLanguageModel<?> lm) {
+		final File f = m_Interface.getCacheFile(CLMSnapshot.fileName(alph));
+		if (f==null) return;
+		final List<CLMSnapshot.Source> streams = m_Interface.openTrainStreams(alph);
+		try {
+			for (CLMSnapshot.Source s : streams) s.skip(Long.MAX_VALUE); //to checksum
+			CLMSnapshot.write(f, alph, lm, streams);
+		} catch (IOException e) {
+			//not fatal - any previous snapshot is left, and trained on top of next time
+		} finally {
+			CDasherInterfaceBase.closeAll(streams);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package dasher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk snapshot of a trained language model, so that Dasher need not re-read
+ * and re-learn all the training text every time it starts (or the alphabet changes).
+ * <p>
+ * A snapshot file consists of a header identifying the alphabet and the training
+ * text from which the model was built - for each training stream, the number of
+ * bytes read and a CRC32 of those bytes - and the length and CRC32 of the model's
+ * own data, which follows, as written by
+ * {@link CLanguageModel#WriteSnapshot(java.nio.channels.WritableByteChannel)}.
+ * The file is memory-mapped to load, so restoring a model is one sequential read
+ * (to check the CRC) and no parsing.
+ * <p>
+ * Training files only ever grow (user text is appended by
+ * {@link CDasherInterfaceBase#WriteTrainFile(String, String)}), so a snapshot remains
+ * valid as long as each stream still begins with the bytes recorded; any text after
+ * that is trained incrementally on top of the restored model.
+ */
+public class CLMSnapshot {
+	private static final int MAGIC = 0x44534E50; //"DSNP"
+	private static final int VERSION = 3;
+
+	/** Number of bytes of each training stream covered by the snapshot */
+	private final long[] m_StreamLengths;
+	/** CRC32 of the bytes of each stream covered by the snapshot */
+	private final long[] m_StreamCRCs;
+	/** Model data, positioned after the header */
+	private final ByteBuffer m_Body;
+
+	private CLMSnapshot(long[] lengths, long[] crcs, ByteBuffer body) {
+		this.m_StreamLengths = lengths;
+		this.m_StreamCRCs = crcs;
+		this.m_Body = body;
+	}
+
+	/**
+	 * Training stream which keeps a count and CRC32 of all bytes read through it,
+	 * so we can record what a model has been trained on.
+	 */
+	public static class Source extends FilterInputStream {
+		private final CRC32 crc = new CRC32();
+		private long length;
+		public Source(InputStream in) {super(in);}
+		@Override public int read() throws IOException {
+			int res = in.read();
+			if (res!=-1) {crc.update(res); length++;}
+			return res;
+		}
+		@Override public int read(byte[] buf, int off, int len) throws IOException {
+			int res = in.read(buf, off, len);
+			if (res>0) {crc.update(buf, off, res); length+=res;}
+			return res;
+		}
+		@Override public long skip(long n) throws IOException {
+			//must see all the bytes to checksum them
+			byte[] buf = new byte[(int)Math.min(n, 8192)];
+			long done=0;
+			for (int r; done<n && (r=read(buf, 0, (int)Math.min(n-done, buf.length)))>0; done+=r);
+			return done;
+		}
+		@Override public boolean markSupported() {return false;}
+		/** Number of bytes read so far */
+		public long length() {return length;}
+		/** CRC32 of the bytes read so far */
+		public long crc() {return crc.getValue();}
+	}
+
+	/**
+	 * Reads the header of a snapshot file, and checks it was made for the specified alphabet.
+	 * @return the snapshot, ready for {@link #matches(List)}; or null if the file does not
+	 * exist, or could not be used - because it could not be read, is for a different alphabet
+	 * (or version of this format), or its model data is truncated or corrupt - in which case
+	 * it is deleted
+	 */
+	public static CLMSnapshot open(File f, CAlphIO.AlphInfo alph) {
+		if (f==null || !f.exists()) return null;
+		CLMSnapshot res=null;
+		try {
+			FileInputStream fis = new FileInputStream(f);
+			try {
+				FileChannel ch = fis.getChannel();
+				ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if (buf.getInt()==MAGIC && buf.getInt()==VERSION && buf.getLong()==alphabetKey(alph)) {
+					final int iStreams = buf.getInt();
+					long[] lengths = new long[iStreams], crcs = new long[iStreams];
+					for (int i=0; i<iStreams; i++) {
+						lengths[i] = buf.getLong();
+						crcs[i] = buf.getLong();
+					}
+					final long iBodyLen = buf.getLong(), iBodyCRC = buf.getLong();
+					final ByteBuffer body = buf.slice();
+					final CRC32 crc = new CRC32();
+					update(crc, body.duplicate());
+					if (body.remaining()==iBodyLen && crc.getValue()==iBodyCRC)
+						res = new CLMSnapshot(lengths, crcs, body);
+				}
+			} finally {
+				fis.close(); //mapping remains valid
+			}
+		} catch (Exception e) {
+			//IOException, or BufferUnderflowException etc. for a truncated file. Either way, unusable.
+		}
+		if (res==null) f.delete();
+		return res;
+	}
+
+	/** Adds the remaining bytes in a buffer to a CRC32 (consuming them) */
+	private static void update(CRC32 crc, ByteBuffer buf) {
+		final byte[] arr = new byte[Math.min(buf.remaining(), 8192)];
+		while (buf.hasRemaining()) {
+			final int len = Math.min(arr.length, buf.remaining());
+			buf.get(arr, 0, len);
+			crc.update(arr, 0, len);
+		}
+	}
+
+	/** Channel which keeps a count and CRC32 of all bytes written through it */
+	private static class CRCChannel implements WritableByteChannel {
+		private final WritableByteChannel out;
+		private final CRC32 crc = new CRC32();
+		private long length;
+		CRCChannel(WritableByteChannel out) {this.out=out;}
+		public int write(ByteBuffer src) throws IOException {
+			final ByteBuffer written = src.duplicate();
+			final int res = out.write(src);
+			written.limit(written.position()+res);
+			update(crc, written);
+			length+=res;
+			return res;
+		}
+		public boolean isOpen() {return out.isOpen();}
+		public void close() throws IOException {out.close();}
+	}
+
+	/**
+	 * Checks that the training streams begin with the same text as the snapshot was made from,
+	 * by reading (and checksumming) that prefix from each. Hence, if successful, each stream
+	 * will be left positioned at the start of any text appended since the snapshot was taken.
+	 * @param sources Training streams, in the order in which they are to be trained
+	 * @return true if all streams covered by the snapshot begin with the recorded bytes
+	 */
+	public boolean matches(List<Source> sources) throws IOException {
+		if (sources.size() < m_StreamLengths.length) return false;
+		for (int i=0; i<m_StreamLengths.length; i++) {
+			Source s = sources.get(i);
+			if (s.skip(m_StreamLengths[i])!=m_StreamLengths[i]
+			        || s.crc.getValue()!=m_StreamCRCs[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restores the model recorded in this snapshot.
+	 * @param lm freshly-constructed model, into which to load
+	 * @return true if restored, false if the model could not use this snapshot
+	 * (including if reading it failed with an exception)
+	 */
+	public boolean restore(CLanguageModel<?> lm) {
+		try {
+			return lm.ReadSnapshot(m_Body.duplicate());
+		} catch (RuntimeException e) {
+			//not one we wrote, but the model should have checked...
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of a model, as trained from the specified streams (all of which
+	 * should have been read to the end). Written to a temporary file and renamed into place,
+	 * so a partially-written snapshot is never seen.
+	 * @return true if written, false if the model does not support snapshots
+	 */
+	public static boolean write(File f, CAlphIO.AlphInfo alph, CLanguageModel<?> lm, List<Source> sources) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(alphabetKey(alph));
+		out.writeInt(sources.size());
+		for (Source s : sources) {
+			out.writeLong(s.length);
+			out.writeLong(s.crc.getValue());
+		}
+		//length & CRC of model data, filled in once written
+		final int iBodyInfo = out.size();
+		out.writeLong(0); out.writeLong(0);
+		out.flush();
+		//uniquely named, in case another thread is writing a snapshot of the same alphabet
+		File temp = File.createTempFile(f.getName(), null, f.getParentFile());
+		FileOutputStream fos = new FileOutputStream(temp);
+		boolean bOk=false;
+		try {
+			FileChannel ch = fos.getChannel();
+			ByteBuffer buf = ByteBuffer.wrap(header.toByteArray());
+			while (buf.hasRemaining()) ch.write(buf);
+			final CRCChannel body = new CRCChannel(ch);
+			if (lm.WriteSnapshot(body)) {
+				buf = ByteBuffer.allocate(16);
+				buf.putLong(body.length).putLong(body.crc.getValue()).flip();
+				while (buf.hasRemaining()) ch.write(buf, iBodyInfo+buf.position());
+				bOk = true;
+			}
+		} finally {
+			fos.close();
+			if (!bOk) temp.delete();
+		}
+		if (bOk && !temp.renameTo(f)) {
+			//some platforms won't rename over an existing file
+			f.delete();
+			bOk = temp.renameTo(f);
+		}
+		return bOk;
+	}
+
+	/**
+	 * Name of file in which to store snapshots for an alphabet. (Different alphabets
+	 * may share a training file, so this depends on the alphabet name too.)
+	 */
+	public static String fileName(CAlphIO.AlphInfo alph) {
+		return alph.GetTrainingFile()+"."+Integer.toHexString(alph.name.hashCode())+".lm";
+	}
+
+	/**
+	 * Name of file in which to store the base of a {@link CSharedPPMLanguageModel}
+	 * for an alphabet, i.e. trained on its system training text only.
+	 */
+	public static String baseFileName(CAlphIO.AlphInfo alph) {
+		return alph.GetTrainingFile()+"."+Integer.toHexString(alph.name.hashCode())+".base";
+	}
+
+	/** Hash of everything about the alphabet that affects a trained model: its name
+	 * and the text of every symbol (in order). */
+	/*package*/ static long alphabetKey(CAlphIO.AlphInfo alph) {
+		long h = alph.name.hashCode();
+		for (int i=0; i<alph.GetNumberSymbols(); i++)
+			h = h*31 + alph.GetText(i).hashCode();
+		return h*31 + alph.GetNumberSymbols();
+	}
+}
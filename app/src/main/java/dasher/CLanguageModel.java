@@ -25,7 +25,9 @@
 
 package dasher;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -67,6 +69,17 @@ public abstract class CLanguageModel<C> extends CDasherComponent {
 	  m_Alphabet = Alphabet;
 	}
 
+	/**
+	 * Creates a LanguageModel which does not listen for parameter changes,
+	 * e.g. for temporary use during training.
+	 * @param sets SettingsStore from which to read parameters
+	 * @param Alphabet The alphabet of symbols over which to build our model
+	 */
+	protected CLanguageModel(CSettingsStore sets, CAlphIO.AlphInfo Alphabet) {
+	  super(sets);
+	  m_Alphabet = Alphabet;
+	}
+
 	/**
 	 * Indicates whether this is a remote/asynchronous model
 	 * with respect to returning probabilities.
@@ -133,6 +146,50 @@ public abstract class CLanguageModel<C> extends CDasherComponent {
 	 */
 	public abstract C ContextLearningSymbol(C ctxIn, int Symbol);
 	
+	/**
+	 * Learns a symbol, as {@link #ContextLearningSymbol}, but allows the learning
+	 * to be deferred (e.g. done on another thread) so the caller need not wait for it;
+	 * the context returned will be usable immediately, but need not reflect
+	 * anything learnt. The default implementation just learns the symbol now.
+	 * 
+	 * @param ctxIn Context to modify
+	 * @param Symbol Symbol to enter
+	 */
+	public C ContextLearningSymbolLater(C ctxIn, int Symbol) {
+		final C res = ContextLearningSymbol(ctxIn, Symbol);
+		ChangedVersion();
+		return res;
+	}
+	
+	/**
+	 * Whether the model may be read (e.g. {@link #GetProbs(Object, long[], long)}) on another
+	 * thread while the thread using it learns, via {@link #ContextLearningSymbolLater(Object, int)}.
+	 * The default is false, as the default implementation of that learns synchronously,
+	 * writing to the model while it may be read.
+	 */
+	public boolean isSafeForConcurrentReads() {return false;}
+	
+	/** Incremented whenever the model learns while in use; see {@link #GetVersion()} */
+	private volatile int m_iVersion;
+	
+	/**
+	 * Gets a stamp for the model's current predictions: if this is unchanged,
+	 * {@link #GetProbs(Object, long[], long)} will return the same as before for any context.
+	 * Models change version when they learn via {@link #ContextLearningSymbolLater(Object, int)},
+	 * i.e. when in use; training beforehand is not counted.
+	 */
+	public int GetVersion() {return m_iVersion;}
+	
+	/** Subclasses call this when they have learnt, to change the {@link #GetVersion() version} */
+	protected final void ChangedVersion() {m_iVersion++;}
+	
+	/**
+	 * Called (on the thread using the model) at the end of each frame, when the
+	 * model is not being read, e.g. to do any housekeeping needed by deferred
+	 * learning. The default implementation does nothing.
+	 */
+	public void endFrame() {}
+	
 	/**
 	 * Attempt to "unlearn" an occurrence of a symbol in a context.
 	 * The default implementation fails to unlearn, so just returns false
@@ -165,6 +222,28 @@ public abstract class CLanguageModel<C> extends CDasherComponent {
 	 */
 	public abstract void GetProbs(C ctx, long[] probs, long iNorm);
 
+	/**
+	 * Fills arrays with probabilities for each of several contexts, as
+	 * {@link #GetProbs(Object, long[], long)} for each; models may override to share
+	 * work between the contexts. The default implementation just does each in turn.
+	 * @param contexts Contexts in which to make predictions
+	 * @param probs Arrays to fill, one per context (in the same order)
+	 * @param iNorm value to which the probabilities for each context should sum
+	 */
+	public void GetProbs(List<C> contexts, List<long[]> probs, long iNorm) {
+		for (int i=0; i<contexts.size(); i++)
+			GetProbs(contexts.get(i), probs.get(i), iNorm);
+	}
+
+	/**
+	 * Whether {@link #GetProbs(Object, long[], long)} gives real predictions for
+	 * a context, rather than placeholders to use until the model has them (as for
+	 * a {@link #isRemote() remote} model). The default implementation returns true.
+	 */
+	public boolean HasProbs(C ctx) {
+		return true;
+	}
+
 	/** Get some measure of the memory usage for diagnostic
 	 * purposes. No need to implement this if you're not comparing
 	 * language models. The exact meaning of the result will
@@ -175,6 +254,32 @@ public abstract class CLanguageModel<C> extends CDasherComponent {
 	 */
 	public abstract int GetMemory();
 
+	/**
+	 * Writes out everything the model has learnt, in a compact binary form
+	 * which {@link #ReadSnapshot(ByteBuffer)} can restore into a freshly-constructed
+	 * model (over the same alphabet) without retraining. The default implementation
+	 * does not support snapshots.
+	 * @param out Channel to which to write
+	 * @return true if a snapshot was written; false if not supported
+	 * @throws IOException if the channel could not be written
+	 */
+	public boolean WriteSnapshot(WritableByteChannel out) throws IOException {
+		return false;
+	}
+	
+	/**
+	 * Restores state written by {@link #WriteSnapshot(WritableByteChannel)}, replacing
+	 * anything the model has already learnt. The default implementation does not
+	 * support snapshots.
+	 * @param in Buffer positioned at the start of the snapshot; on success, is left
+	 * positioned immediately after it
+	 * @return true if the snapshot was restored; false if not supported, or if the
+	 * snapshot is incompatible with this model (e.g. was made with different parameters)
+	 */
+	public boolean ReadSnapshot(ByteBuffer in) {
+		return false;
+	}
+
 	/**
 	 * Gets our working alphabet
 	 * 
@@ -184,22 +289,34 @@ public abstract class CLanguageModel<C> extends CDasherComponent {
 	    return m_Alphabet;
 	}
 
-	/** Build a LM context from an iterator of symbols
-	 * @param previousSyms Iterator returning symbols in <em>backwards</em> order
+	/**
+	 * Maximum number of preceding symbols which can affect a context, i.e. the furthest
+	 * back {@link #BuildContext} need look. Default is unbounded.
+	 */
+	protected int MaxContextLength() {
+		return Integer.MAX_VALUE;
+	}
+
+	/** Build a LM context from the symbols preceding some point in a document. Reads
+	 * (only) as many as {@link #MaxContextLength()}, stopping at any symbol not in the alphabet.
+	 * @param previousSyms Cursor returning symbols in <em>backwards</em> order
 	 * (i.e. the first call to <code>next()</code> returns the most recent symbol)
-	 * @return
+	 * @return Context, as if the symbols read had been entered in turn into the empty context
 	 */
-	public final C BuildContext(Iterator<Integer> previousSyms) {
-		return BuildContext(previousSyms,0);
+	public final C BuildContext(CAlphabetMap.SymbolCursor previousSyms) {
+		final int len = previousSyms.ReadContext(MaxContextLength());
+		return BuildContext(previousSyms.getContext(), len);
 	}
 	
-	protected C BuildContext(Iterator<Integer> previousSyms, int countSoFar) {
-		if (previousSyms.hasNext()) {
-			int sym = previousSyms.next();
-			if (sym!=CAlphabetMap.UNDEFINED)
-				return ContextWithSymbol(BuildContext(previousSyms,countSoFar+1),sym);
-		}
-		return EmptyContext();
+	/** Build a LM context from an array of symbols
+	 * @param previousSyms symbols in <em>backwards</em> order, i.e. most recent first
+	 * @param len number of symbols (from the start of the array) to use
+	 */
+	public C BuildContext(int[] previousSyms, int len) {
+		C ctx = EmptyContext();
+		for (int i=Math.min(len, MaxContextLength()); i-->0;)
+			ctx = ContextWithSymbol(ctx, previousSyms[i]);
+		return ctx;
 	}
 	
 }
@@ -1,7 +1,10 @@
 package dasher;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static dasher.CDasherModel.NORMALIZATION;
 
@@ -20,6 +23,8 @@ public class CNodeCreationManager extends CDasherComponent {
 	 */
 	private final CAlphabetManager<?> m_AlphabetManager;
 	private final CControlManager m_ControlManager;
+	/** Where cumulative probabilities are stored; the alphabet manager's, so shared with previous NCManagers */
+	private final CProbArena m_Arena;
 	
 /**
 	 * Amount to add to all symbols' probabilities, EXCEPT control mode symbol,
@@ -29,7 +34,7 @@ public class CNodeCreationManager extends CDasherComponent {
 	
 	/**
 	 * Normalization factor as a fraction of which the Language Model should compute
-	 * symbol probabilities, prior to adjusting them with adjustProbs.
+	 * symbol probabilities, prior to adjusting them with {@link #store}.
 	 */
 	protected final long nonUniformNorm;
 	
@@ -44,11 +49,13 @@ public class CNodeCreationManager extends CDasherComponent {
 		super(creator);
 		this.m_cAlphabet = mgr.m_Alphabet;
 		this.m_AlphabetManager = mgr;
-		mgr.ChangeNCManager(this);
+		this.m_Arena = mgr.getProbArena();
 		this.m_ControlManager=cont;
+		mgr.ChangeNCManager(this);
 		if (cont!=null) cont.ChangeNCManager(this);
 		
 		int iSymbols = m_cAlphabet.GetNumberSymbols();
+		m_Scratch = new long[numProbs()];
 
 		uniformAdd = (int)((NORMALIZATION * GetLongParameter(Elp_parameters.LP_UNIFORM)) / 1000) / iSymbols; 
 		nonUniformNorm = NORMALIZATION - iSymbols * uniformAdd;
@@ -57,66 +64,219 @@ public class CNodeCreationManager extends CDasherComponent {
 	public String getDefaultColourScheme() {return m_cAlphabet.GetPalette();}
 	
 	/**
-	 * Gets a probability distribution for a context and language model. Detailed
-	 * predictions of characters are performed by {@link CLanguageModel#GetProbs(Object, long[], long)},
-	 * but here we handle<UL>
-	 * <LI>Object pooling of long[] arrays (useful on Android),
-	 * <LI>Uniformity / smoothing - all symbol probabilities by the value of {@link #uniformAdd}
-	 * <LI>Control mode - if control mode is on, we append an extra {@link #controlSpace} for the control node.
+	 * Gets a probability distribution for a context and language model, as computed
+	 * by {@link CLanguageModel#GetProbs(Object, long[], long)}; see {@link #store} for
+	 * the adjustments (for uniformity and control mode) we then make.
 	 * 
 	 * @param model LanguageModel to use for symbol probabilities
 	 * @param context context to provide to language model
-	 * @return array of (non-cumulative) probabilities, with first element zero,
-	 *  
+	 * @param probs array of {@link #numProbs()} elements, into which to put
+	 * the (non-cumulative) probabilities, with first element zero
 	 */
-	public <C> long[] GetProbs(CLanguageModel<C> model, C context) {
-		long[] probs;
-		if (freeArrayList.isEmpty())
-			probs = new long[m_cAlphabet.GetNumberSymbols()+(m_ControlManager==null ? 1 : 2)];
-		else {
-			probs = freeArrayList.remove(freeArrayList.size()-1);
-			for (int i=0; i<probs.length; i++) probs[i]=0;
-		}
+	private <C> void GetProbs(CLanguageModel<C> model, C context, long[] probs) {
+		for (int i=0; i<probs.length; i++) probs[i]=0;
 		model.GetProbs(context, probs, nonUniformNorm);
-		
-		//element 0 is just a 0, to make computing upper/lower bounds easier...
-		for(int k = m_cAlphabet.GetNumberSymbols(); k >0; --k) probs[k] += uniformAdd;
-
+	}
+	
+	/** Number of probabilities computed for each context: a leading zero, one per symbol,
+	 * and one for the control node (if any) */
+	public int numProbs() {
+		return m_cAlphabet.GetNumberSymbols()+1+numExtraNodes();
+	}
+	
+	/** Number of nodes {@link #addExtraNodes} adds after the alphabet's symbols and groups */
+	public int numExtraNodes() {
+		return (m_ControlManager==null) ? 0 : 1;
+	}
+	
+	/**
+	 * Stores probabilities from the LM in the arena, as the bounds of each child node: in one
+	 * pass (see {@link CProbArena#cumulate}), we<UL>
+	 * <LI>apply uniformity / smoothing - adding {@link #uniformAdd} to all symbol probabilities
+	 * <LI>make them cumulative
+	 * <LI>in control mode, scale them down to make room for the control node at the end.
+	 * </UL>
+	 * @param probs probabilities from {@link #GetProbs(CLanguageModel, Object, long[])}
+	 * @return arena slot, with a reference for the caller
+	 */
+	private int store(long[] probs) {
+		long iScale = NORMALIZATION;
 		if (m_ControlManager!=null) {
 			//(size of control node after reweighting) = fraction * (size of space node b4 reweighting)
 			// slightly awkward but it means we can make the divisor be the known-power-of-2 NORMALIZATION.
-			final long controlSpace = probs[m_cAlphabet.GetSpaceSymbol()+1]/3;
-			long rem=NORMALIZATION - (probs[probs.length-1] = controlSpace);
-			for (int i=1; i<probs.length-1; i++)
-				rem -= (probs[i] = (probs[i]*(NORMALIZATION-controlSpace)/NORMALIZATION));
-			//now allocate remainder due to rounding error...
-			if (rem>=probs.length-1) {
-				//suggests we've rounded down every element...and rem started off as (NORM - a bit)?!
-				//throw new AssertionError("Shouldn't happen?!");
-				final long each = rem/(probs.length-1);
-				for (int i=1; i<probs.length; i++)
-					probs[i]+=each;
-				rem -= each*(probs.length-1);
+			final int iSpace = m_cAlphabet.GetSpaceSymbol();
+			if (iSpace!=CAlphabetMap.UNDEFINED) iScale -= (probs[iSpace+1]+uniformAdd)/3;
+		}
+		return m_Arena.storeCumulative(probs, m_cAlphabet.GetNumberSymbols(), numProbs(), uniformAdd, iScale);
+	}
+	
+	/** Array into which probabilities are computed (on the frame thread), before storing in the arena */
+	private final long[] m_Scratch;
+	/** Arrays into which {@link #GetCumulativeProbs(CLanguageModel, List, int[])} computes probabilities; grown as needed */
+	private final List<long[]> m_BatchScratch = new ArrayList<long[]>();
+	
+	/** Max number of contexts whose probabilities are kept by {@link #GetCumulativeProbs} */
+	private static final int PROB_CACHE_SIZE = 256;
+	
+	/** Cumulative probabilities (the arena slot holding them), and the model version for which they were computed */
+	private static class CachedProbs {
+		final int slot;
+		final int iVersion;
+		CachedProbs(int slot, int iVersion) {this.slot=slot; this.iVersion=iVersion;}
+	}
+	
+	/** Cumulative probabilities for recently-used contexts, least-recently-used first.
+	 * Each entry holds a reference to its arena slot. */
+	private final Map<Object,CachedProbs> m_ProbCache = new LinkedHashMap<Object,CachedProbs>(PROB_CACHE_SIZE*4/3+1, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<Object,CachedProbs> eldest) {
+			if (size()<=PROB_CACHE_SIZE) return false;
+			m_Arena.release(eldest.getValue().slot);
+			return true;
+		}
+	};
+	/** Model whose contexts are in {@link #m_ProbCache} */
+	private CLanguageModel<?> m_CachedModel;
+	private int m_iCacheHits, m_iCacheMisses;
+	
+	/**
+	 * Gets the probabilities for a context, as {@link #GetProbs(CLanguageModel, Object, long[])},
+	 * but made cumulative (i.e. each element the upper bound of the corresponding child), and
+	 * stored in the {@link CProbArena}. The same contexts recur constantly - e.g. after a space,
+	 * or when the tree is rebuilt as the user reverses - so we keep the probabilities for
+	 * recently-used contexts, until the model's version changes (i.e. it learns). The slot
+	 * returned is thus shared, and must not be modified.
+	 * @return arena slot, with a reference for the caller (to release when done)
+	 */
+	public <C> int GetCumulativeProbs(CLanguageModel<C> model, C context) {
+		checkCachedModel(model);
+		//read version first, so if the model learns while we compute, we won't keep the result
+		final int iVersion = model.GetVersion();
+		CachedProbs c = m_ProbCache.get(context);
+		if (c!=null && c.iVersion==iVersion) {
+			m_iCacheHits++;
+			m_Arena.retain(c.slot);
+			return c.slot;
+		}
+		m_iCacheMisses++;
+		final int slot = computeCumulativeProbs(model, context, m_Scratch);
+		cache(context, slot, iVersion);
+		return slot;
+	}
+	
+	/**
+	 * Gets cumulative probabilities for several contexts at once, as {@link #GetCumulativeProbs(CLanguageModel, Object)}
+	 * for each, but computing those not in the cache in a single call to
+	 * {@link CLanguageModel#GetProbs(List, List, long)}, so the model can share work between them.
+	 * @param contexts contexts for which to get probabilities (duplicates are fine)
+	 * @param into array in which to put the (shared, not to be modified) arena slot for each context,
+	 * in order; each with a reference for the caller
+	 */
+	public <C> void GetCumulativeProbs(CLanguageModel<C> model, List<C> contexts, int[] into) {
+		checkCachedModel(model);
+		final int iVersion = model.GetVersion();
+		//contexts not in the cache, with arrays to fill for them
+		final List<C> missing = new ArrayList<C>();
+		final Map<C,Integer> missingIdx = new HashMap<C,Integer>();
+		for (int i=0; i<contexts.size(); i++) {
+			final C context = contexts.get(i);
+			CachedProbs c = m_ProbCache.get(context);
+			if (c!=null && c.iVersion==iVersion) {
+				m_iCacheHits++;
+				m_Arena.retain(into[i] = c.slot);
+			} else {
+				m_iCacheMisses++;
+				Integer idx = missingIdx.get(context);
+				if (idx==null) {
+					missingIdx.put(context, idx = missing.size());
+					missing.add(context);
+				}
+				into[i] = ~idx; //filled in below
 			}
-			for (int i=probs.length-(int)rem; i<probs.length; i++, rem--) probs[i]++;
-			if (rem!=0) throw new AssertionError();
 		}
-		
-		return probs;
+		if (missing.isEmpty()) return;
+		while (m_BatchScratch.size()<missing.size()) m_BatchScratch.add(new long[m_Scratch.length]);
+		final List<long[]> missingProbs = m_BatchScratch.subList(0, missing.size());
+		for (long[] probs : missingProbs)
+			for (int i=0; i<probs.length; i++) probs[i]=0;
+		model.GetProbs(missing, missingProbs, nonUniformNorm);
+		final int[] slots = new int[missing.size()];
+		for (int k=0; k<slots.length; k++) {
+			slots[k] = store(missingProbs.get(k));
+			cache(missing.get(k), slots[k], iVersion);
+		}
+		//store() gave one reference for the caller; duplicates need more
+		final boolean[] given = new boolean[slots.length];
+		for (int i=0; i<into.length; i++) {
+			if (into[i]>=0) continue;
+			final int k = ~into[i];
+			into[i] = slots[k];
+			if (given[k]) m_Arena.retain(slots[k]);
+			else given[k]=true;
+		}
+	}
+	
+	/**
+	 * Computes cumulative probabilities for a context, as {@link #GetCumulativeProbs(CLanguageModel, Object)},
+	 * but without using the cache, so may be called from any thread (as long as the
+	 * model may be read from that thread). The result may be passed to {@link #cacheCumulativeProbs}.
+	 * @param scratch array of {@link #numProbs()} elements, to be overwritten
+	 * @return arena slot holding the probabilities, with a reference for the caller
+	 */
+	public <C> int computeCumulativeProbs(CLanguageModel<C> model, C context, long[] scratch) {
+		GetProbs(model, context, scratch);
+		return store(scratch);
+	}
+	
+	/**
+	 * Stores probabilities from {@link #computeCumulativeProbs} in the cache, for
+	 * {@link #GetCumulativeProbs(CLanguageModel, Object)} to return. (The cache takes its own
+	 * reference, so the caller's is unaffected.)
+	 * @param iVersion {@link CLanguageModel#GetVersion() version} of the model, read before computing them
+	 */
+	public <C> void cacheCumulativeProbs(CLanguageModel<C> model, C context, int slot, int iVersion) {
+		if (model==m_CachedModel && iVersion==model.GetVersion())
+			cache(context, slot, iVersion);
 	}
 	
-	private final List<long[]> freeArrayList=new ArrayList<long[]>();
+	/** Puts a slot in the cache, with a new reference, releasing any it replaces */
+	private void cache(Object context, int slot, int iVersion) {
+		m_Arena.retain(slot);
+		final CachedProbs old = m_ProbCache.put(context, new CachedProbs(slot, iVersion));
+		if (old!=null) m_Arena.release(old.slot);
+	}
+	
+	/** Empties the cache if it holds probabilities from a different model */
+	private void checkCachedModel(CLanguageModel<?> model) {
+		if (model!=m_CachedModel) {
+			clearProbCache();
+			m_CachedModel = model;
+		}
+	}
 	
-	public void recycleProbArray(long[] ar) {
-		//Don't pool arrays that are too short. Not sure whether this'll
-		// actually happen, depends on timing of rebuilding, init'ing
-		// the control manager, etc., when turning control mode on/off,
-		// so programming defensively.
-		if (ar.length >= m_cAlphabet.GetNumberSymbols()+(m_ControlManager==null ? 1 : 2))
-			freeArrayList.add(ar);
+	/** Empties the cache, releasing the arena slots it holds; e.g. when this NCManager is replaced */
+	/*package*/ void clearProbCache() {
+		for (CachedProbs c : m_ProbCache.values()) m_Arena.release(c.slot);
+		m_ProbCache.clear();
 	}
 	
-	public void addExtraNodes(CDasherNode pParent, long[] probInfo) {
+	/** Whether {@link #GetCumulativeProbs(CLanguageModel, Object)} would answer from the cache */
+	public <C> boolean hasCachedProbs(CLanguageModel<C> model, C context) {
+		if (model!=m_CachedModel) return false;
+		final CachedProbs c = m_ProbCache.get(context);
+		return c!=null && c.iVersion==model.GetVersion();
+	}
+	
+	/** Number of calls to {@link #GetCumulativeProbs} answered from the cache */
+	public int getProbCacheHits() {return m_iCacheHits;}
+	
+	/** Number of calls to {@link #GetCumulativeProbs} which had to compute the probabilities */
+	public int getProbCacheMisses() {return m_iCacheMisses;}
+	
+	/**
+	 * Adds any children other than symbols & groups, e.g. the control node.
+	 * @param probInfo arena slot holding the cumulative probabilities for pParent's children
+	 */
+	public void addExtraNodes(CDasherNode pParent, int probInfo) {
 		//if (probInfo[probInfo.length-1]!=GetLongParameter(Elp_parameters.LP_NORMALIZATION)) throw new AssertionError();
 		if (m_ControlManager==null) {
 			//if (pParent.ChildAtIndex(pParent.ChildCount()-1).Hbnd()!=probInfo[probInfo.length-1]) throw new AssertionError();
@@ -127,7 +287,8 @@ public class CNodeCreationManager extends CDasherComponent {
 		//if (probInfo.length != m_cAlphabet.GetNumberSymbols()+2) throw new AssertionError();
 		//remaining space from penultimate to last elements of probInfo is for control node.
 		//control nodes have same offset as parent, not one more, as they do not enter a symbol themselves.
-		m_ControlManager.GetRoot(pParent).Reparent(pParent, probInfo[probInfo.length-2], probInfo[probInfo.length-1]);
+		final int len = m_Arena.length(probInfo);
+		m_ControlManager.GetRoot(pParent).Reparent(pParent, m_Arena.get(probInfo, len-2), m_Arena.get(probInfo, len-1));
 	}
 	
 	public CAlphabetManager<?> getAlphabetManager() {
@@ -0,0 +1,144 @@
+package dasher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recycles node objects, for all node managers: nodes are deleted and recreated
+ * constantly as the user moves, so rather than leave each to the GC, a deleted node is
+ * kept on a free list to be reinitialized as the next node of its type.
+ * <p>
+ * Most node classes are inner classes of their manager (e.g. {@link CAlphabetManager.CSymbolNode}),
+ * so can only be reused by the same manager: each manager thus gets its own {@link FreeList}
+ * per node type, from {@link #SHARED}. However, the lists share a cap on the number of free
+ * nodes each may keep (beyond which deleted nodes are left to the GC), and counters for each
+ * node type, summed over all managers.
+ */
+public class CNodePool {
+	/** Default for {@link #setMaxFree(int)}, until a model sets it from its node budget */
+	private static final int DEFAULT_MAX_FREE = (int)Elp_parameters.LP_NODE_BUDGET.defaultVal;
+
+	/** The pool used by all node managers */
+	public static final CNodePool SHARED = new CNodePool(DEFAULT_MAX_FREE);
+
+	/** Max number of free nodes kept by each free list */
+	private volatile int m_iMaxFree;
+
+	/** Counters for each node type, by name, in order of first use */
+	private final Map<String,TypeStats> m_Stats = new LinkedHashMap<String,TypeStats>();
+
+	public CNodePool(int iMaxFree) {
+		this.m_iMaxFree = iMaxFree;
+	}
+
+	/**
+	 * Sets the max number of free nodes each free list may keep; nodes deleted when
+	 * their list is full are released to the GC. (Lists already fuller than this are
+	 * trimmed as nodes are next allocated from them.)
+	 */
+	public void setMaxFree(int iMaxFree) {
+		this.m_iMaxFree = iMaxFree;
+	}
+
+	public int getMaxFree() {return m_iMaxFree;}
+
+	/** Gets the counters for each type of node allocated so far */
+	public synchronized Collection<TypeStats> getStats() {
+		return Collections.unmodifiableCollection(new ArrayList<TypeStats>(m_Stats.values()));
+	}
+
+	private synchronized TypeStats stats(String strType) {
+		TypeStats s = m_Stats.get(strType);
+		if (s==null) m_Stats.put(strType, s = new TypeStats(strType));
+		return s;
+	}
+
+	/** Counters for one type of node, over all free lists for that type */
+	public static class TypeStats {
+		public final String name;
+		private long m_iAllocs, m_iReuses, m_iReleased;
+		private int m_iLive, m_iPeakLive;
+		private TypeStats(String name) {this.name=name;}
+		/** Number of node objects constructed */
+		public synchronized long getAllocations() {return m_iAllocs;}
+		/** Number of times a free node was reused, rather than a new one constructed */
+		public synchronized long getReuses() {return m_iReuses;}
+		/** Number of deleted nodes released to the GC, as their free list was full */
+		public synchronized long getReleased() {return m_iReleased;}
+		/** Number of nodes allocated and not yet freed */
+		public synchronized int getLive() {return m_iLive;}
+		/** Highest value of {@link #getLive()} so far */
+		public synchronized int getPeakLive() {return m_iPeakLive;}
+
+		private synchronized void alloc(boolean bReused) {
+			if (bReused) m_iReuses++; else m_iAllocs++;
+			if (++m_iLive > m_iPeakLive) m_iPeakLive = m_iLive;
+		}
+		private synchronized void free(boolean bReleased) {
+			m_iLive--;
+			if (bReleased) m_iReleased++;
+		}
+		private synchronized void released(int n) {
+			m_iReleased+=n;
+		}
+
+		@Override public synchronized String toString() {
+			return name+": "+m_iLive+" live (peak "+m_iPeakLive+"), "+m_iAllocs+" allocated, "
+					+m_iReuses+" reused, "+m_iReleased+" released";
+		}
+	}
+
+	/**
+	 * Free nodes of one type, for one manager. Subclasses construct new nodes,
+	 * when there are none free; the caller (re)initializes the node returned.
+	 * Not thread-safe; as with the nodes themselves, use only from the thread
+	 * which manipulates the tree.
+	 */
+	public static abstract class FreeList<T extends CDasherNode> {
+		private final CNodePool m_Pool;
+		private final TypeStats m_Stats;
+		private final ArrayList<T> m_Free = new ArrayList<T>();
+
+		/**
+		 * @param pool pool whose cap and counters to use
+		 * @param strType name of the node type, under which to count allocations
+		 */
+		protected FreeList(CNodePool pool, String strType) {
+			this.m_Pool = pool;
+			this.m_Stats = pool.stats(strType);
+		}
+
+		/** Constructs a new node, as none is free */
+		protected abstract T make();
+
+		/** Gets a node to initialize, reusing a free one if there is one */
+		public T alloc() {
+			final int n = m_Free.size();
+			m_Stats.alloc(n>0);
+			if (n==0) return make();
+			if (n>m_Pool.getMaxFree()) trim();
+			return m_Free.remove(m_Free.size()-1);
+		}
+
+		/** Returns a node which has been deleted, for reuse (or release, if we have enough free already) */
+		public void free(T node) {
+			final boolean bRelease = m_Free.size()>=m_Pool.getMaxFree();
+			m_Stats.free(bRelease);
+			if (!bRelease) m_Free.add(node);
+		}
+
+		/** Number of nodes free */
+		public int size() {return m_Free.size();}
+
+		/** Releases free nodes beyond the cap, e.g. after it has been lowered */
+		private void trim() {
+			final int iMax = m_Pool.getMaxFree(), n = m_Free.size();
+			for (int i=n; i>iMax+1; i--) m_Free.remove(i-1);
+			m_Free.trimToSize();
+			m_Stats.released(n-m_Free.size());
+		}
+	}
+}
@@ -26,8 +26,23 @@
 
 package dasher;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Subclass of LanguageModel which implements Prediction by
@@ -36,69 +51,165 @@ import java.util.Iterator;
  * <p>
  * For the general contract obeyed by LanguageModel methods, see
  * the documentation of CLanguageModel.
+ * <p>
+ * The prediction trie is stored as a "structure of arrays": each
+ * node is identified by an int index, and its fields (first child,
+ * next sibling, vine pointer, symbol and count) are held in parallel
+ * primitive arrays. Contexts handed out to clients are just node
+ * indices. Each node also records its parent and depth, so a context can
+ * be turned back into symbols by a single walk up to the root, and its
+ * order checked without walking the vine. (A trained model used to be hundreds of thousands of tiny
+ * node objects, each with a header and three references, which was bad
+ * for heap, GC pauses and locality on every vine walk.) The arrays grow
+ * by whole chunks of nodes at a time.
+ * <p>
+ * Children of a node are found by scanning its list of siblings; but
+ * nodes near the root have a child for (nearly) every symbol in the alphabet,
+ * so once a node has more than {@link #HASH_THRESHOLD} children, they are also
+ * indexed in a single open-addressing hash table, keyed by parent and symbol.
+ * <p>
+ * Memory is bounded by LP_LM_MEMORY_LIMIT: when the trie is full, learning
+ * prunes it (see {@link #Prune(int)}) - halving all counts, and removing
+ * deep nodes seen only once - and the freed nodes are reused via a free list.
+ * As pruning invalidates contexts, it is only done while training, i.e. before
+ * the model is in use; see {@link #setPruneWhileLearning(boolean)}.
+ * <p>
+ * Once in use, symbols are learnt on a background thread (see
+ * {@link #ContextLearningSymbolLater(Integer, int)}) while the frame thread
+ * carries on reading the trie without locking. This is safe because the
+ * learner only ever <em>adds</em> to the trie: each new node (or hash entry)
+ * is fully initialized before it is linked in where a reader could find it, and
+ * the links - first children, hash keys, and the bits marking nodes whose children
+ * are hashed - are held in atomic arrays, written with a release store ({@code lazySet})
+ * and read with an acquire ({@code get}); so a reader which finds a new node, also
+ * sees its symbol, vine, count and sibling. (Hash keys being atomic also means they
+ * can't be read torn on 32-bit machines.) Counts of existing nodes are single short
+ * writes, so a reader sees either the old or new value; and the arrays are never
+ * reallocated by the learner - when it runs short of space, it stops and leaves
+ * the frame thread to grow them, in {@link #endFrame()}, while no one else is reading.
  */
-public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode> {
+public class CPPMLanguageModel extends CLanguageModel<Integer> {
 
-	public CPPMnode m_Root;
+	/** Index of the root node, i.e. the empty context */
+	public static final int ROOT = 0;
+	
+	/** Index used in place of a null pointer (no child, sibling or vine) */
+	static final int NIL = -1;
+	
+	/** Number of nodes by which the arrays are grown, when full */
+	private static final int CHUNK_SIZE = 1<<12;
+	
+	/** Bytes of storage per node: child, next, vine, symbol &amp; parent (ints), count (short) and depth (byte) */
+	private static final int NODE_BYTES = 5*4 + 2 + 1;
+	
+	/** Bytes per node in a snapshot, which omits parent &amp; depth (these are rebuilt on reading) */
+	private static final int SNAPSHOT_NODE_BYTES = 4*4 + 2;
+	
+	/** Number of children above which a node's children are looked up by hashing */
+	static final int HASH_THRESHOLD = 8;
+	
+	/** Key marking an empty slot in {@link #m_HashKeys} */
+	private static final long EMPTY = -1L;
+	
+	/** Nodes (other than children of the root) with a count less than this, are removed by pruning */
+	private static final int PRUNE_COUNT = 2;
+	
+	/** Number of symbols which {@link #endFrame()} makes sure the background learner has space to learn */
+	private static final int SPARE_SYMBOLS = 64;
+	
+	/** Single thread, shared by all models, which learns symbols queued by {@link #ContextLearningSymbolLater(Integer, int)}.
+	 * (Exits when idle, so doesn't keep models alive.) */
+	private static final ExecutorService LEARNER = new ThreadPoolExecutor(0, 1, 5, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PPM learner");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
 
 	public int m_iMaxOrder;
 	
-	public int NodesAllocated;
-
 	public boolean bUpdateExclusion;
 
 	private long lpAlpha;
 	private long lpBeta;
+	
+	/** First child of each node, or {@link #NIL} if none */
+	private AtomicIntegerArray m_Child = new AtomicIntegerArray(CHUNK_SIZE);
+	/** Next sibling of each node, or {@link #NIL} if none */
+	private int[] m_Next = new int[CHUNK_SIZE];
+	/** Vine pointer of each node, i.e. the node for the same context
+	 * minus its earliest symbol; {@link #NIL} only for the root */
+	private int[] m_Vine = new int[CHUNK_SIZE];
+	/** Symbol (number in alphabet) which each node represents */
+	private int[] m_Symbol = new int[CHUNK_SIZE];
+	/** Number of times the node's symbol has been seen in its parent's context */
+	private short[] m_Count = new short[CHUNK_SIZE];
+	/** Parent of each node, i.e. the node for the same context minus its <em>latest</em>
+	 * symbol; {@link #NIL} only for the root */
+	private int[] m_Parent = new int[CHUNK_SIZE];
+	/** Depth of each node in the trie, i.e. length of the context it represents
+	 * (saturating at Byte.MAX_VALUE, way beyond any sensible max order) */
+	private byte[] m_Depth = new byte[CHUNK_SIZE];
+	
+	/** Number of nodes allocated, including the root and any on the free list;
+	 * also index of next node to allocate when the free list is empty */
+	private int m_iNumNodes;
+	
+	/** First node on the free list (of nodes removed by pruning, linked through
+	 * {@link #m_Next}), or {@link #NIL} if empty */
+	private int m_iFreeList = NIL;
+	/** Number of nodes on the free list */
+	private int m_iFreeNodes;
+	
+	/** Number of (in-use) nodes at which learning will prune the trie, from LP_LM_MEMORY_LIMIT */
+	private int m_iMaxNodes;
+	/** Whether learning may prune the trie; see {@link #setPruneWhileLearning(boolean)} */
+	private boolean m_bPruneWhileLearning;
+	/** Number of times the trie has been pruned, and total nodes removed */
+	private int m_iNumPrunes, m_iNodesPruned;
+	
+	/** Bitmap over node indices: bit set iff the node's children are in the hash table */
+	private AtomicIntegerArray m_Hashed = new AtomicIntegerArray(CHUNK_SIZE/32);
+	/** Keys of the hash table, each (parent index &lt;&lt; 32 | symbol), or {@link #EMPTY};
+	 * size is a power of two, and at most half full */
+	private AtomicLongArray m_HashKeys = emptyKeys(1<<10);
+	/** Child node index, for each key in {@link #m_HashKeys} */
+	private int[] m_HashVals = new int[1<<10];
+	/** Number of entries in the hash table */
+	private int m_iHashEntries;
+	
+	/** Symbols waiting for the background learner, each as {context, symbol, context
+	 * returned to the client}, in order; added to only by the frame thread */
+	private final Queue<int[]> m_LearnQueue = new ConcurrentLinkedQueue<int[]>();
+	/** Set while some thread may write to the trie: the background learner, while draining the
+	 * queue, or the frame thread, while growing the arrays for it */
+	private final AtomicBoolean m_bWriting = new AtomicBoolean();
+	/** Set once symbols are learnt in background, after which new nodes must be published */
+	private boolean m_bLearnInBackground;
+	/** Set by the background learner if it stopped for lack of space (until {@link #endFrame()} makes some) */
+	private volatile boolean m_bNeedSpace;
+	/** Context returned to the client for the last symbol learnt in the background, and the
+	 * (possibly longer) context actually resulting from learning it; only used by the learner */
+	private int m_iLastReturned = NIL, m_iLastLearnt = NIL;
+	/** Number of symbols learnt in the background */
+	private volatile int m_iLearntInBackground;
 
-	/**
-	 * Node in PPM's prediction trie.
-	 * 
-	 * @see CPPMLanguageModel
+	/* CSFS: Found that the C++ code used a short
+	 * to represent a symbol in certain places and an
+	 * int in others. As such, I've changed it to int
+	 * everywhere. This ought to cause no trouble
+	 * except in the case that behaviour on overflow
+	 * is relied upon.
 	 */
-	class CPPMnode {
-		public CPPMnode child;
-		public CPPMnode next;
-		public final CPPMnode vine;
-		public short count;
-		public final int symbol;
-
-		/* CSFS: Found that the C++ code used a short
-		 * to represent a symbol in certain places and an
-		 * int in others. As such, I've changed it to int
-		 * everywhere. This ought to cause no trouble
-		 * except in the case that behaviour on overflow
-		 * is relied upon.
-		 */
-
-		public CPPMnode(int symbol, CPPMnode vine) {
-			count = 1;
-			this.symbol = symbol;
-			this.vine = vine;
-		}
-
-		public CPPMnode(int sym, CPPMnode parent, CPPMnode vine) {
-			this(sym,vine);
-			if (vine == null) throw new IllegalArgumentException("Non-root node must have non-null vine");
-			next = parent.child;
-			parent.child = this;
-			++NodesAllocated;
-		}
-
-		public CPPMnode find_symbol(int sym) // see if symbol is a child of node
-		{
-			for (CPPMnode found = child; found!=null; found=found.next) {
-				if(found.symbol == sym)
-					return found;
-			}
-			return null;
-		}
-	}
-
+	
 	public CPPMLanguageModel(CDasherComponent creator, CAlphIO.AlphInfo alph) {
 
 		super(creator, alph); // Constructor of CLanguageModel
 
-		m_Root = new CPPMnode(-1,null); // m_NodeAlloc.Alloc();
+		if (allocNode(-1, NIL, NIL)!=ROOT) throw new AssertionError();
 		
 		// FIXME - this should be a boolean parameter
 		bUpdateExclusion = ( GetLongParameter(Elp_parameters.LP_LM_UPDATE_EXCLUSION) !=0 );
@@ -106,8 +217,51 @@ public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode
 		lpAlpha = GetLongParameter(Elp_parameters.LP_LM_ALPHA);
 		lpBeta = GetLongParameter(Elp_parameters.LP_LM_BETA);
 		m_iMaxOrder = (int)GetLongParameter(Elp_parameters.LP_LM_MAX_ORDER);
+		m_iMaxNodes = maxNodes(GetLongParameter(Elp_parameters.LP_LM_MEMORY_LIMIT));
+	}
+	
+	/** Number of nodes to allow, given a memory limit in KB (0 = unlimited) */
+	private static int maxNodes(long iLimitKB) {
+		return (iLimitKB<=0) ? Integer.MAX_VALUE : (int)Math.min(iLimitKB*1024/NODE_BYTES, Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Creates an empty model with the same parameters as another, but which does not
+	 * listen for parameter changes; see {@link #EmptyCopy()}.
+	 */
+	private CPPMLanguageModel(CPPMLanguageModel other) {
+		super(other.m_SettingsStore, other.m_Alphabet);
+		if (allocNode(-1, NIL, NIL)!=ROOT) throw new AssertionError();
+		bUpdateExclusion = other.bUpdateExclusion;
+		lpAlpha = other.lpAlpha;
+		lpBeta = other.lpBeta;
+		m_iMaxOrder = other.m_iMaxOrder;
+		m_iMaxNodes = other.m_iMaxNodes;
+	}
+	
+	/**
+	 * Makes a new, empty, model with the same parameters as this one, which
+	 * may be trained separately (e.g. on another thread) and then merged back in
+	 * using {@link #MergeFrom(CPPMLanguageModel)}.
+	 */
+	/*package*/ CPPMLanguageModel EmptyCopy() {
+		return new CPPMLanguageModel(this);
+	}
+	
+	/**
+	 * Makes a new, empty, model as {@link #EmptyCopy()}, to learn one of several shards
+	 * of text to be merged back into this one. If this model may prune while learning,
+	 * so may the copy, but only up to its share of the limit, so that all the shards
+	 * together stay within it.
+	 * @param iShards Number of shards (i.e. copies) to be trained at once
+	 */
+	/*package*/ CPPMLanguageModel ShardCopy(int iShards) {
+		final CPPMLanguageModel res = new CPPMLanguageModel(this);
+		res.m_iMaxNodes = Math.max(m_iMaxNodes/iShards, 1);
+		res.m_bPruneWhileLearning = m_bPruneWhileLearning;
+		return res;
+	}
+	
 	public void HandleEvent(EParameters eParam) {
 		super.HandleEvent(eParam);
 
@@ -115,11 +269,507 @@ public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode
 			lpAlpha = GetLongParameter(Elp_parameters.LP_LM_ALPHA);
 		} else if(eParam == Elp_parameters.LP_LM_BETA) {
 			lpBeta = GetLongParameter(Elp_parameters.LP_LM_BETA);
+		} else if(eParam == Elp_parameters.LP_LM_MEMORY_LIMIT) {
+			m_iMaxNodes = maxNodes(GetLongParameter(Elp_parameters.LP_LM_MEMORY_LIMIT));
+		}
+	}
+	
+	// Accessors for fields of the node with a given index...
+	
+	final int child(int n) {return m_Child.get(n);}
+	final int next(int n) {return m_Next[n];}
+	final int vine(int n) {return m_Vine[n];}
+	final int symbol(int n) {return m_Symbol[n];}
+	final int count(int n) {return m_Count[n];}
+	
+	private void incCount(int n) {
+		//saturate rather than wrapping round to negative
+		if (m_Count[n]<Short.MAX_VALUE) m_Count[n]++;
+	}
+
+	/**
+	 * Allocates storage for a new node, with a count of 1, and links it in
+	 * as the first child of the specified parent.
+	 * @param sym Symbol the new node represents
+	 * @param parent Node (context) of which the new node is a child, or NIL (root only)
+	 * @param vine Vine pointer for the new node, NIL only for the root
+	 * @return index of the new node
+	 */
+	private int allocNode(int sym, int parent, int vine) {
+		if (vine==NIL && m_iNumNodes!=ROOT) throw new IllegalArgumentException("Non-root node must have non-null vine");
+		final int n;
+		if (m_iFreeList!=NIL) {
+			//reuse a node freed by pruning
+			n = m_iFreeList;
+			m_iFreeList = m_Next[n];
+			m_iFreeNodes--;
+		} else if ((n = m_iNumNodes++)==m_Child.length()) {
+			//full. Grow by a chunk, or by half again for big tries, to bound the number of copies
+			growNodes(n + Math.max(CHUNK_SIZE, n/2));
+		}
+		m_Child.lazySet(n, NIL);
+		m_Vine[n] = vine;
+		m_Symbol[n] = sym;
+		m_Count[n] = 1;
+		m_Parent[n] = parent;
+		if (parent==NIL) {
+			m_Next[n] = NIL;
+			m_Depth[n] = 0;
+		} else {
+			m_Depth[n] = (byte)Math.min(m_Depth[parent]+1, Byte.MAX_VALUE);
+			m_Next[n] = m_Child.get(parent);
+			m_Child.lazySet(parent, n); //publishes the node, initialized above
+
+			if (isHashed(parent))
+				hashPut(parent, sym, n);
+			else {
+				int iFanout=0;
+				for (int c=n; c!=NIL && iFanout<=HASH_THRESHOLD; c=m_Next[c]) iFanout++;
+				if (iFanout>HASH_THRESHOLD) hashChildren(parent);
+			}
+		}
+		return n;
+	}
+	
+	/** Reallocates the node arrays (not while they may be being read by another thread!) */
+	private void growNodes(int iNewSize) {
+		final int n = m_Child.length();
+		m_Child = grow(m_Child, iNewSize); m_Next = grow(m_Next, iNewSize);
+		m_Vine = grow(m_Vine, iNewSize); m_Symbol = grow(m_Symbol, iNewSize);
+		m_Parent = grow(m_Parent, iNewSize);
+		short[] counts = new short[iNewSize];
+		System.arraycopy(m_Count, 0, counts, 0, n);
+		m_Count = counts;
+		byte[] depths = new byte[iNewSize];
+		System.arraycopy(m_Depth, 0, depths, 0, n);
+		m_Depth = depths;
+		m_Hashed = grow(m_Hashed, (iNewSize+31)/32);
+	}
+	
+	private static int[] grow(int[] arr, int iNewSize) {
+		int[] res = new int[iNewSize];
+		System.arraycopy(arr, 0, res, 0, arr.length);
+		return res;
+	}
+	
+	private static AtomicIntegerArray grow(AtomicIntegerArray arr, int iNewSize) {
+		final int[] res = new int[iNewSize];
+		for (int i=0, n=arr.length(); i<n; i++) res[i] = arr.get(i);
+		return new AtomicIntegerArray(res);
+	}
+	
+	/** Copies the first n elements of an atomic array, e.g. for bulk output */
+	private static int[] toArray(AtomicIntegerArray arr, int n) {
+		final int[] res = new int[n];
+		for (int i=0; i<n; i++) res[i] = arr.get(i);
+		return res;
+	}
+	
+	private boolean isHashed(int node) {
+		return (m_Hashed.get(node>>>5) & (1<<node))!=0;
+	}
+	
+	/** Puts all the children of a node into the hash table, and
+	 * marks it as such (so subsequent children will be added too) */
+	private void hashChildren(int node) {
+		for (int c=child(node); c!=NIL; c=next(c))
+			hashPut(node, symbol(c), c);
+		//(hashPut has published the entries, before a reader could see they are needed)
+		m_Hashed.lazySet(node>>>5, m_Hashed.get(node>>>5) | 1<<node);
+	}
+	
+	/** Rebuilds the hash table from scratch, for every node with more than {@link #HASH_THRESHOLD} children */
+	private void rebuildHash() {
+		m_Hashed = new AtomicIntegerArray((m_Child.length()+31)/32);
+		m_HashKeys = emptyKeys(1<<10);
+		m_HashVals = new int[1<<10];
+		m_iHashEntries = 0;
+		for (int node=0; node<m_iNumNodes; node++) {
+			int iFanout=0;
+			for (int c=child(node); c!=NIL && iFanout<=HASH_THRESHOLD; c=next(c)) iFanout++;
+			if (iFanout>HASH_THRESHOLD) hashChildren(node);
+		}
+	}
+	
+	private static AtomicLongArray emptyKeys(int iSize) {
+		long[] keys = new long[iSize];
+		java.util.Arrays.fill(keys, EMPTY);
+		return new AtomicLongArray(keys);
+	}
+	
+	private static int hashSlot(long key, int mask) {
+		int h = (int)(key ^ (key>>>32)) * 0x9E3779B9; //multiplicative hashing
+		return (h ^ (h>>>16)) & mask;
+	}
+	
+	private void hashPut(int parent, int sym, int child) {
+		if ((m_iHashEntries+1)*2 > m_HashKeys.length())
+			rehash(m_HashKeys.length()*2);
+		final long key = ((long)parent<<32) | sym;
+		final int mask = m_HashKeys.length()-1;
+		int slot = hashSlot(key, mask);
+		while (m_HashKeys.get(slot)!=EMPTY) slot = (slot+1) & mask;
+		m_HashVals[slot] = child;
+		m_HashKeys.lazySet(slot, key); //the entry, with its value, can now be found
+		m_iHashEntries++;
+	}
+	
+	/** Moves the hash table into a new table of the specified size (a power of two).
+	 * (Not while it may be being read by another thread!) */
+	private void rehash(int iNewSize) {
+		final AtomicLongArray oldKeys = m_HashKeys;
+		final int[] oldVals = m_HashVals;
+		final long[] keys = new long[iNewSize];
+		java.util.Arrays.fill(keys, EMPTY);
+		m_HashVals = new int[iNewSize];
+		final int mask = iNewSize-1;
+		for (int i=0, n=oldKeys.length(); i<n; i++) {
+			final long key = oldKeys.get(i);
+			if (key==EMPTY) continue;
+			int slot = hashSlot(key, mask);
+			while (keys[slot]!=EMPTY) slot = (slot+1) & mask;
+			keys[slot] = key;
+			m_HashVals[slot] = oldVals[i];
+		}
+		m_HashKeys = new AtomicLongArray(keys);
+	}
+	
+	/**
+	 * See if a symbol is a child of a node
+	 * @param node index of node (context) to search
+	 * @param sym symbol to look for
+	 * @return index of child node representing that symbol, or {@link #NIL} if none
+	 */
+	final int find_symbol(int node, int sym) {
+		if (isHashed(node)) {
+			final long key = ((long)node<<32) | sym;
+			final AtomicLongArray keys = m_HashKeys;
+			final int mask = keys.length()-1;
+			for (int slot = hashSlot(key, mask); ; slot = (slot+1) & mask) {
+				final long k = keys.get(slot);
+				if (k==key) return m_HashVals[slot];
+				if (k==EMPTY) break;
+			}
+			return NIL;
+		}
+		for (int found = child(node); found!=NIL; found=next(found)) {
+			if (symbol(found) == sym)
+				return found;
+		}
+		return NIL;
+	}
+	
+	/** Number of nodes in the trie, including the root (but not any on the free list) */
+	public int GetNumNodes() {
+		return m_iNumNodes - m_iFreeNodes;
+	}
+	
+	/** Number of times the trie has been pruned since it was created */
+	public int GetNumPrunes() {
+		return m_iNumPrunes;
+	}
+	
+	/** Total number of nodes removed by pruning since the trie was created */
+	public int GetNodesPruned() {
+		return m_iNodesPruned;
+	}
+	
+	/**
+	 * Sets whether learning (i.e. {@link #ContextLearningSymbol(Integer, int)}) may prune
+	 * the trie, if it has reached the limit set by LP_LM_MEMORY_LIMIT. Pruning may remove
+	 * any node except those making up the context being learnt in, so this should only be
+	 * enabled while no other contexts are held - e.g. when training a model not yet in use.
+	 * (Otherwise, the trie may grow beyond the limit, until pruned when next trained.)
+	 */
+	public void setPruneWhileLearning(boolean bPrune) {
+		m_bPruneWhileLearning = bPrune;
+	}
+	
+	/**
+	 * If pruning is enabled and the trie has reached its size limit, prunes it,
+	 * repeatedly if necessary, to 3/4 of that limit.
+	 * @param pinned Context (node) which must survive pruning
+	 */
+	/*package*/ void PruneIfFull(int pinned) {
+		if (!m_bPruneWhileLearning || GetNumNodes() < m_iMaxNodes) return;
+		final int iTarget = m_iMaxNodes - m_iMaxNodes/4;
+		//each pass halves counts, so nodes not pruned this time may be next
+		for (int i=0; i<16 && GetNumNodes() > iTarget; i++)
+			if (Prune(pinned)==0 && i>0) break;
+	}
+	
+	/**
+	 * Ages the model, as in classic PPM: halves all counts (rounding up), and
+	 * removes nodes whose count was less than {@link #PRUNE_COUNT} (other than children
+	 * of the root, so every symbol seen remains predicted at order 1), along with any
+	 * nodes beneath them. Removed nodes go onto the free list for reuse. Nodes which
+	 * are the vine of, or on the path to, any remaining node, are kept regardless.
+	 * @param pinned Context (node) which must survive pruning, along with its vines
+	 * @return Number of nodes removed
+	 */
+	/*package*/ int Prune(int pinned) {
+		final int[] order = new int[m_iNumNodes];
+		final int iLen = breadthFirst(order);
+		//decide which to keep, deepest first, so any node kept can keep its parent & vine too
+		final int[] keep = new int[(m_iNumNodes+31)/32];
+		for (int v=pinned; v!=NIL; v=vine(v)) keep[v>>>5] |= 1<<v;
+		for (int i=iLen-1; i>0; i--) {
+			final int node = order[i];
+			final int parent = m_Parent[node];
+			if (parent==ROOT || m_Count[node]>=PRUNE_COUNT) keep[node>>>5] |= 1<<node;
+			if ((keep[node>>>5] & (1<<node))!=0) {
+				keep[parent>>>5] |= 1<<parent;
+				keep[vine(node)>>>5] |= 1<<vine(node);
+			}
 		}
+		for (int i=0; i<iLen; i++) {
+			final int node = order[i];
+			if ((keep[node>>>5] & (1<<node))!=0) m_Count[node] = (short)((m_Count[node]+1)>>1);
+		}
+		final int iPruned = removeUnkept(order, iLen, keep);
+		m_iNodesPruned += iPruned;
+		m_iNumPrunes++;
+		return iPruned;
+	}
+	
+	/**
+	 * Lists the nodes in the trie breadth-first, so parents &amp; vines (one shallower)
+	 * come before their nodes.
+	 * @param order array, of at least {@link #m_iNumNodes} elements, into which to write the nodes
+	 * @return number of nodes written, i.e. {@link #GetNumNodes()}
+	 */
+	private int breadthFirst(int[] order) {
+		int iLen=0;
+		order[iLen++] = ROOT;
+		for (int i=0; i<iLen; i++)
+			for (int c=child(order[i]); c!=NIL; c=next(c))
+				order[iLen++] = c;
+		return iLen;
+	}
+	
+	/**
+	 * Removes the nodes whose bits are not set in a bitmap (which must include the parent
+	 * and vine of every node whose bit is set), putting them on the free list.
+	 * @param order every node in the trie, breadth-first
+	 * @return number of nodes removed
+	 */
+	private int removeUnkept(int[] order, int iLen, int[] keep) {
+		//unlink removed nodes from their parents' lists
+		for (int i=0; i<iLen; i++) {
+			final int node = order[i];
+			if ((keep[node>>>5] & (1<<node))==0) continue;
+			int prev = NIL;
+			for (int c=child(node); c!=NIL; c=next(c)) {
+				if ((keep[c>>>5] & (1<<c))==0) continue;
+				if (prev==NIL) m_Child.lazySet(node, c); else m_Next[prev]=c;
+				prev = c;
+			}
+			if (prev==NIL) m_Child.lazySet(node, NIL); else m_Next[prev]=NIL;
+		}
+		//now put the removed nodes on the free list
+		int iPruned=0;
+		for (int i=0; i<iLen; i++) {
+			final int node = order[i];
+			if ((keep[node>>>5] & (1<<node))!=0) continue;
+			m_Child.lazySet(node, NIL);
+			m_Next[node] = m_iFreeList;
+			m_iFreeList = node;
+			iPruned++;
+		}
+		m_iFreeNodes += iPruned;
+		rebuildHash();
+		return iPruned;
+	}
+	
+	/**
+	 * Removes nodes with a count of zero, i.e. created by {@link #ContextCreatingSymbol(Integer, int)}
+	 * (or merged from such) but never learnt, unless they are the parent or vine of another
+	 * node kept; those are given a count of 1 instead. (A zero count would give a negative
+	 * share of the probability space in {@link #GetProbs(Integer, long[], long)}.)
+	 * @return number of nodes removed
+	 */
+	/*package*/ int RemoveZeroCounts() {
+		final int[] order = new int[m_iNumNodes];
+		final int iLen = breadthFirst(order);
+		final int[] keep = new int[(m_iNumNodes+31)/32];
+		keep[ROOT>>>5] |= 1<<ROOT;
+		//deepest first, so we know whether anything kept needs each node
+		for (int i=iLen-1; i>0; i--) {
+			final int node = order[i];
+			if (m_Count[node]>0) keep[node>>>5] |= 1<<node;
+			if ((keep[node>>>5] & (1<<node))==0) continue;
+			if (m_Count[node]==0) m_Count[node] = 1;
+			keep[m_Parent[node]>>>5] |= 1<<m_Parent[node];
+			keep[vine(node)>>>5] |= 1<<vine(node);
+		}
+		return removeUnkept(order, iLen, keep);
+	}
+	
+	/** Whether every node (reachable from the root) has a count of at least 1, as needed by {@link #GetProbs(Integer, long[], long)} */
+	/*package*/ boolean AllCountsPositive() {
+		final int[] order = new int[m_iNumNodes];
+		for (int i=0, iLen=breadthFirst(order); i<iLen; i++)
+			if (m_Count[order[i]]<1) return false;
+		return true;
 	}
 
+	/**
+	 * Memory used by the trie, in bytes: that is, the size of the
+	 * node arrays (including any as-yet-unused space at the end),
+	 * plus the hash table of children of high-fanout nodes.
+	 */
 	public int GetMemory() {
-		return NodesAllocated;
+		return m_Child.length()*NODE_BYTES + m_Hashed.length()*4 + m_HashKeys.length()*(8+4);
+	}
+
+	/**
+	 * Writes the trie as a short header (max order, update exclusion,
+	 * number of symbols &amp; nodes, head of free list) followed by each of the node arrays
+	 * in turn, as raw big-endian values. Waits for the background learner (if running)
+	 * and keeps it out meanwhile, so the snapshot is consistent.
+	 */
+	@Override
+	public boolean WriteSnapshot(WritableByteChannel out) throws IOException {
+		while (!m_bWriting.compareAndSet(false, true)) Thread.yield();
+		try {
+			writeSnapshot(out);
+		} finally {
+			m_bWriting.set(false);
+		}
+		return true;
+	}
+
+	private void writeSnapshot(WritableByteChannel out) throws IOException {
+		final int n = m_iNumNodes;
+		ByteBuffer buf = ByteBuffer.allocate(1<<16);
+		buf.putInt(m_iMaxOrder).putInt(bUpdateExclusion ? 1 : 0)
+			.putInt(m_Alphabet.GetNumberSymbols()).putInt(n).putInt(m_iFreeList);
+		for (int[] arr : new int[][] {toArray(m_Child, n), m_Next, m_Vine, m_Symbol}) {
+			for (int i=0; i<n;) {
+				if (buf.remaining()<4) flush(buf, out);
+				int len = Math.min(n-i, buf.remaining()/4);
+				buf.asIntBuffer().put(arr, i, len);
+				buf.position(buf.position()+len*4);
+				i+=len;
+			}
+		}
+		for (int i=0; i<n;) {
+			if (buf.remaining()<2) flush(buf, out);
+			int len = Math.min(n-i, buf.remaining()/2);
+			buf.asShortBuffer().put(m_Count, i, len);
+			buf.position(buf.position()+len*2);
+			i+=len;
+		}
+		flush(buf, out);
+	}
+	
+	private static void flush(ByteBuffer buf, WritableByteChannel out) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) out.write(buf);
+		buf.clear();
+	}
+	
+	/**
+	 * Reads back a trie written by {@link #WriteSnapshot(WritableByteChannel)}, in
+	 * one bulk copy per array; fails if it was made with a different max order,
+	 * update exclusion setting, or size of alphabet, or if the arrays read do not
+	 * form a valid trie (see {@link #validTrie(int[][], short[], int, int)}), leaving
+	 * this model unchanged. (LP_LM_ALPHA and LP_LM_BETA affect only prediction, not
+	 * the trie, so may differ.)
+	 */
+	@Override
+	public boolean ReadSnapshot(ByteBuffer in) {
+		if (in.remaining()<20
+				|| in.getInt()!=m_iMaxOrder
+				|| in.getInt()!=(bUpdateExclusion ? 1 : 0)
+				|| in.getInt()!=m_Alphabet.GetNumberSymbols())
+			return false;
+		final int n = in.getInt(), iFreeList = in.getInt();
+		if (n<1 || iFreeList<NIL || iFreeList>=n || in.remaining() < (long)n*SNAPSHOT_NODE_BYTES) return false;
+		final int iSize = ((n+CHUNK_SIZE-1)/CHUNK_SIZE)*CHUNK_SIZE;
+		int[][] arrs = new int[4][iSize];
+		for (int[] arr : arrs) {
+			IntBuffer ib = in.asIntBuffer();
+			ib.get(arr, 0, n);
+			in.position(in.position()+n*4);
+		}
+		short[] counts = new short[iSize];
+		ShortBuffer sb = in.asShortBuffer();
+		sb.get(counts, 0, n);
+		in.position(in.position()+n*2);
+		final int iFreeNodes = validTrie(arrs, counts, n, iFreeList);
+		if (iFreeNodes<0) return false;
+		m_Child = new AtomicIntegerArray(arrs[0]); m_Next = arrs[1]; m_Vine = arrs[2]; m_Symbol = arrs[3];
+		m_Count = counts;
+		m_iNumNodes = n;
+		m_iFreeList = iFreeList;
+		m_iFreeNodes = iFreeNodes;
+		//not saved:
+		rebuildParents();
+		rebuildHash();
+		return true;
+	}
+
+	/**
+	 * Checks node arrays read from a snapshot, so that a corrupt file cannot make us
+	 * index outside them, or loop forever, when we restore or later use it. That is:
+	 * every index is in range; each node is reached at most once, from either the
+	 * child lists (starting at {@link #ROOT}) or the free list; and the vine of each
+	 * node in the tree is a node in the tree one level shallower.
+	 * @param arrs child, next, vine &amp; symbol arrays, valid for the first <code>n</code> nodes
+	 * @param counts count of each node
+	 * @return number of nodes on the free list, or -1 if the trie is not valid
+	 */
+	private int validTrie(int[][] arrs, short[] counts, int n, int iFreeList) {
+		final int[] child=arrs[0], next=arrs[1], vine=arrs[2], symbol=arrs[3];
+		final int iSyms = m_Alphabet.GetNumberSymbols();
+		for (int i=0; i<n; i++)
+			if (child[i]<NIL || child[i]>=n || next[i]<NIL || next[i]>=n
+					|| vine[i]<NIL || vine[i]>=n || symbol[i]<NIL || symbol[i]>=iSyms || counts[i]<0)
+				return -1;
+		//depth of each node in the tree, or -1 if not (yet) reached
+		final int[] depth = new int[n], queue = new int[n];
+		Arrays.fill(depth, -1);
+		int head=0, tail=0;
+		depth[ROOT] = 0;
+		queue[tail++] = ROOT;
+		while (head<tail) {
+			final int node = queue[head++];
+			for (int c=child[node]; c!=NIL; c=next[c]) {
+				if (depth[c]!=-1) return -1; //reached twice, e.g. a cycle
+				depth[c] = depth[node]+1;
+				queue[tail++] = c;
+			}
+		}
+		for (int i=1; i<tail; i++) {
+			final int v = vine[queue[i]];
+			if (v==NIL || depth[v]!=depth[queue[i]]-1) return -1;
+		}
+		//free nodes are not in the tree, and so the list has at most n-tail entries
+		int iFree=0;
+		for (int f=iFreeList; f!=NIL; f=next[f]) {
+			if (depth[f]!=-1 || ++iFree>n-tail) return -1;
+			depth[f] = Integer.MAX_VALUE; //i.e. seen
+		}
+		return iFree;
+	}
+
+	/** Recomputes {@link #m_Parent} and {@link #m_Depth} from the child lists, breadth-first */
+	private void rebuildParents() {
+		m_Parent = new int[m_Child.length()];
+		m_Depth = new byte[m_Child.length()];
+		final int[] queue = new int[m_iNumNodes];
+		int head=0, tail=0;
+		m_Parent[ROOT] = NIL;
+		queue[tail++] = ROOT;
+		while (head<tail) {
+			final int node = queue[head++];
+			for (int c=child(node); c!=NIL; c=next(c)) {
+				m_Parent[c] = node;
+				m_Depth[c] = (byte)Math.min(m_Depth[node]+1, Byte.MAX_VALUE);
+				queue[tail++] = c;
+			}
+		}
 	}
 
 	/** Returns an array of probabilities for the next symbol
@@ -129,7 +779,33 @@ public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode
 	 * PLUS an initial zero.
 	 */
 	@Override
-	public void GetProbs(CPPMnode ppmcontext, long[] probs, long norm) {
+	public void GetProbs(Integer ppmcontext, long[] probs, long norm) {
+		getProbs(ppmcontext, probs, norm, null);
+	}
+
+	/**
+	 * Computes probabilities for many contexts at once. Contexts with a common suffix
+	 * share the tail of their vine chains (all share at least the root, which has the
+	 * most children), so the total count of each vine node's children is computed only
+	 * once for the whole batch.
+	 */
+	@Override
+	public void GetProbs(List<Integer> contexts, List<long[]> probs, long norm) {
+		//open-addressed table of (node, total) pairs, with room for every vine node at under 50% load
+		final int iSize = Integer.highestOneBit(Math.max(1, contexts.size()*(m_iMaxOrder+2))*2)*4;
+		final int[] totals = new int[iSize];
+		for (int i=0; i<iSize; i+=2) totals[i]=NIL;
+		for (int i=0; i<contexts.size(); i++)
+			getProbs(contexts.get(i), probs.get(i), norm, totals);
+	}
+
+	/**
+	 * Implementation of {@link #GetProbs(Integer, long[], long)}.
+	 * @param totals null, or a table in which to look up (and record) the total count of each
+	 * vine node's children: even elements are nodes (NIL if empty), odd elements their totals.
+	 * Indexed by node hash, with a power-of-two number of pairs, never full.
+	 */
+	private void getProbs(int ppmcontext, long[] probs, long norm, int[] totals) {
 
 		/* CSFS: In the original C++ the norm value was an
 		 * unsigned int. Since Java will only provide a signed
@@ -143,20 +819,34 @@ public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode
 
 		long iToSpend = norm;
 
-		for (;ppmcontext!=null; ppmcontext=ppmcontext.vine) {
+		for (int ctx = ppmcontext; ctx!=NIL; ctx=vine(ctx)) {
 			int iTotal = 0;
-
-			for (CPPMnode pSymbol = ppmcontext.child; pSymbol != null; pSymbol=pSymbol.next) {
-				iTotal += pSymbol.count;
+			int iSlot = -1;
+			if (totals!=null) {
+				final int iMask = totals.length-2;
+				for (iSlot = (ctx*0x9E3779B9 >>> 7)*2 & iMask; totals[iSlot]!=NIL && totals[iSlot]!=ctx; iSlot = (iSlot+2) & iMask);
+				if (totals[iSlot]==ctx) iTotal = totals[iSlot+1];
+				else iSlot = -(iSlot+1); //not found; remember where to record it
+			}
+			if (iSlot<0) {
+				for (int pSymbol = child(ctx); pSymbol != NIL; pSymbol=next(pSymbol)) {
+					iTotal += count(pSymbol);
+				}
+				if (totals!=null) {
+					totals[-iSlot-1] = ctx;
+					totals[-iSlot] = iTotal;
+				}
 			}
 
 			if(iTotal != 0) {
 				long size_of_slice = iToSpend;
 				/* Changed type to long so that we don't run into trouble with overflows. */
-				for(CPPMnode pSymbol = ppmcontext.child; pSymbol!=null;pSymbol = pSymbol.next) {
-					long p = (size_of_slice) * (100 * pSymbol.count - lpBeta) / (100 * iTotal + lpAlpha);
+				for(int pSymbol = child(ctx); pSymbol!=NIL; pSymbol = next(pSymbol)) {
+					long p = (size_of_slice) * (100 * count(pSymbol) - lpBeta) / (100 * iTotal + lpAlpha);
+					//counts may have been incremented (by the background learner) since we totalled them
+					if (p > iToSpend) p = iToSpend;
 
-					probs[pSymbol.symbol+1] += p;
+					probs[symbol(pSymbol)+1] += p;
 					iToSpend -= p;
 				}
 			}
@@ -175,75 +865,223 @@ public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode
 		assert(iToSpend == 0);
 	}
 
+	/**
+	 * Queues the symbol to be learnt by a background thread, so the frame thread
+	 * need not wait for it; the context returned is that from {@link #ContextWithSymbol(Integer, int)},
+	 * i.e. may not include any node created by learning. Symbols are learnt in order, and if
+	 * each is learnt in the context returned for the previous, the learner will use the longer
+	 * context resulting from actually learning that previous symbol (exactly as
+	 * {@link #ContextLearningSymbol(Integer, int)} would).
+	 * <p>
+	 * Must only be called by the thread reading the model, which must also call
+	 * {@link #endFrame()} periodically. Pruning must be off (i.e. the model is in use).
+	 */
+	@Override
+	public Integer ContextLearningSymbolLater(Integer ctx, int sym) {
+		final int res = ContextWithSymbol(ctx, sym);
+		m_bLearnInBackground = true;
+		m_LearnQueue.add(new int[] {ctx, sym, res});
+		scheduleLearner();
+		return res;
+	}
+	
+	/** True: learning only ever adds to the trie, publishing new nodes safely; see the class comment */
+	@Override
+	public boolean isSafeForConcurrentReads() {return true;}
+	
+	/** Starts the background learner, unless it's running (or has stopped, for lack of space) or there's nothing to learn */
+	private void scheduleLearner() {
+		if (!m_bNeedSpace && !m_LearnQueue.isEmpty() && m_bWriting.compareAndSet(false, true))
+			LEARNER.execute(m_Learner);
+	}
+	
+	/** Learns symbols from {@link #m_LearnQueue}, while there's room to do so without reallocating */
+	private final Runnable m_Learner = new Runnable() {
+		public void run() {
+			try {
+				for (int[] e; (e = m_LearnQueue.peek())!=null; m_LearnQueue.poll()) {
+					if (!hasSpaceFor(1)) {
+						m_bNeedSpace = true;
+						break;
+					}
+					m_iLastLearnt = ContextLearningSymbol((e[0]==m_iLastReturned) ? m_iLastLearnt : e[0], e[1]);
+					m_iLastReturned = e[2];
+					m_iLearntInBackground++;
+					ChangedVersion();
+				}
+			} finally {
+				m_bWriting.set(false);
+			}
+			scheduleLearner(); //in case more symbols were queued after we stopped looking
+		}
+	};
+	
+	/** Whether the specified number of symbols can be learnt without reallocating any arrays */
+	private boolean hasSpaceFor(int iSymbols) {
+		//each symbol creates at most one node per order, each of which
+		// may cause its parent to be hashed (inc. itself)
+		final int iNodes = iSymbols * (m_iMaxOrder+1);
+		return m_Child.length() - m_iNumNodes + m_iFreeNodes >= iNodes
+				&& (m_iHashEntries + iNodes*(HASH_THRESHOLD+1))*2 <= m_HashKeys.length();
+	}
+	
+	/**
+	 * Makes sure the background learner has space in the arrays to learn
+	 * more symbols, reallocating them if necessary. We can do this as we're on the
+	 * (only) thread reading the model, i.e. it's not being read now; and if the learner
+	 * is currently writing, we leave it and try again next frame.
+	 */
+	@Override
+	public void endFrame() {
+		if (!m_bLearnInBackground || hasSpaceFor(SPARE_SYMBOLS) && !m_bNeedSpace) return;
+		if (!m_bWriting.compareAndSet(false, true)) return; //learner running
+		try {
+			final int iNodes = SPARE_SYMBOLS * (m_iMaxOrder+1);
+			if (m_Child.length() - m_iNumNodes + m_iFreeNodes < iNodes)
+				growNodes(m_iNumNodes + Math.max(iNodes, Math.max(CHUNK_SIZE, m_iNumNodes/2)));
+			int iHashSize = m_HashKeys.length();
+			while ((m_iHashEntries + iNodes*(HASH_THRESHOLD+1))*2 > iHashSize) iHashSize*=2;
+			if (iHashSize!=m_HashKeys.length()) rehash(iHashSize);
+			m_bNeedSpace = false;
+		} finally {
+			m_bWriting.set(false);
+		}
+		scheduleLearner();
+	}
+	
+	/** Number of symbols learnt by the background learner, i.e. via {@link #ContextLearningSymbolLater(Integer, int)} */
+	public int GetNumLearntInBackground() {return m_iLearntInBackground;}
+	
+	/** Number of symbols queued for the background learner but not yet learnt */
+	public int GetLearnQueueLength() {return m_LearnQueue.size();}
+
 	@Override
-	public CPPMnode ContextLearningSymbol(CPPMnode ctx, int sym)
+	public Integer ContextLearningSymbol(Integer ctx, int sym)
 	// add symbol to the context
 	// creates new nodes, updates counts
 	// and leaves 'context' at the new context
 	{
 		assert(sym >= 0 && sym < m_Alphabet.GetNumberSymbols());
-		CPPMnode r = AddSymbol(ctx,sym);
+		PruneIfFull(ctx);
+		int r = AddSymbol(ctx,sym);
 		while(!orderOk(r))
-			r = r.vine;		
+			r = vine(r);
 		return r;
 	}
 	
-	protected CPPMnode AddSymbol(CPPMnode ctx, int sym) {
-		CPPMnode child = ctx.find_symbol(sym);
+	protected int AddSymbol(int ctx, int sym) {
+		int child = find_symbol(ctx, sym);
 
-		if(child != null) {
-			child.count++;
+		if(child != NIL) {
+			incCount(child);
 			if(!bUpdateExclusion) {
 				//update lower-order contexts - which are guaranteed to exist if the higher one does
-				for (CPPMnode v = child.vine; v != null; v = v.vine) {
-					assert (v==m_Root || v.symbol == sym);
-					v.count++;
+				for (int v = vine(child); v != NIL; v = vine(v)) {
+					assert (v==ROOT || symbol(v) == sym);
+					incCount(v);
 				}
 			}
 		} else {
 			//symbol does not exist at this order. Record it, and recurse at lower order
 			// (recursion will continue until it is found, and further if not doing update exclusion)
-			child = new CPPMnode(sym, ctx, // count is initialized to 1
-							(ctx==m_Root) ? m_Root : AddSymbol(ctx.vine, sym));
+			child = allocNode(sym, ctx, // count is initialized to 1
+							(ctx==ROOT) ? ROOT : AddSymbol(vine(ctx), sym));
 		}
 		
 		return child;
 	}
 	
-	boolean orderOk(CPPMnode node) {
-		int order=-1;
-        for (; node!=null; node=node.vine) order++;
-        return order<=m_iMaxOrder;
+	/**
+	 * Moves into a context without learning, like {@link #ContextWithSymbol(Integer, int)};
+	 * however, nodes are created (with count 0) as if learning, so the resulting context is
+	 * always the same as that from {@link #ContextLearningSymbol(Integer, int)}. Used to set
+	 * up a model to learn text which follows on from text learnt by another model.
+	 */
+	/*package*/ Integer ContextCreatingSymbol(Integer ctx, int sym) {
+		int r = CreateSymbol(ctx, sym);
+		while (!orderOk(r))
+			r = vine(r);
+		return r;
+	}
+	
+	private int CreateSymbol(int ctx, int sym) {
+		int child = find_symbol(ctx, sym);
+		if (child==NIL) {
+			child = allocNode(sym, ctx, (ctx==ROOT) ? ROOT : CreateSymbol(vine(ctx), sym));
+			m_Count[child] = 0;
+		}
+		return child;
+	}
+	
+	/**
+	 * Adds the contents of another trie into this one: nodes are created for any
+	 * contexts in the other trie not in this one, and counts summed (saturating).
+	 * @param other Model to merge in, with the same alphabet and max order
+	 */
+	/*package*/ void MergeFrom(CPPMLanguageModel other) {
+		if (other.m_Alphabet!=m_Alphabet || other.m_iMaxOrder!=m_iMaxOrder)
+			throw new IllegalArgumentException("Models not compatible");
+		final int n = other.m_iNumNodes;
+		//map[i] = index in this trie of node i of the other
+		final int[] map = new int[n];
+		//visit breadth-first, so each node's vine (shallower) is mapped before the node
+		final int[] queue = new int[n];
+		int head=0, tail=0;
+		map[ROOT] = ROOT; addCount(ROOT, other.count(ROOT));
+		queue[tail++] = ROOT;
+		while (head<tail) {
+			final int from = queue[head++];
+			for (int ch = other.child(from); ch!=NIL; ch=other.next(ch)) {
+				final int sym = other.symbol(ch);
+				int mine = find_symbol(map[from], sym);
+				if (mine==NIL) {
+					mine = allocNode(sym, map[from], map[other.vine(ch)]);
+					m_Count[mine] = 0;
+				}
+				addCount(mine, other.count(ch));
+				map[ch] = mine;
+				queue[tail++] = ch;
+			}
+		}
+	}
+	
+	private void addCount(int n, int c) {
+		m_Count[n] = (short)Math.min(m_Count[n]+c, Short.MAX_VALUE);
+	}
+	
+	/** Whether the context represented by a node is no longer than the max order */
+	boolean orderOk(int node) {
+		return m_Depth[node]<=m_iMaxOrder;
 	}
 
 	@Override
-	public boolean UnlearnChild(CPPMnode parent, int sym, CPPMnode ch) {
-		assert (ch.count>0);
-		//do not reduce count to 0...unless we want to hang onto node via a weakref(?!)
-		// and then let it be GC'd (or count reincremented first)?
-		if (ch.count<=1) return false;
-		ch.count--;
+	public boolean UnlearnChild(Integer parent, int sym, Integer ch) {
+		final int n = ch;
+		assert (count(n)>0);
+		//do not reduce count to 0: GetProbs gives each child (100*count - beta) shares,
+		// which for a zero count would be negative
+		if (count(n)<=1) return false;
+		m_Count[n]--;
 		return true;
 	}
 	
 	@Override
-	public CPPMnode ContextWithSymbol(CPPMnode ctx, int Symbol) {
+	public Integer ContextWithSymbol(Integer ctxIn, int Symbol) {
 		assert(Symbol >= 0 && Symbol < m_Alphabet.GetNumberSymbols());
 
-		while(ctx != null) {
-			CPPMnode find = ctx.find_symbol(Symbol);
+		for (int ctx = ctxIn; ctx != NIL; ctx = vine(ctx)) {
+			int find = find_symbol(ctx, Symbol);
 			// Only try to extend the context if it's not going to make it too long
-			if(find!=null) {
+			if(find!=NIL) {
 				while (!orderOk(find))
-					find=find.vine;   
+					find=vine(find);   
 				return find;
 			}
 
 			// If we can't extend the current context, follow vine pointer to shorten it and try again
-			ctx = ctx.vine;
 		}
 		//failed to find anything...
-		return m_Root;
+		return ROOT;
 	}	
 
 	/**
@@ -285,34 +1123,21 @@ public class CPPMLanguageModel extends CLanguageModel<CPPMLanguageModel.CPPMnode
 		}
 	}
 
-	public CPPMnode EmptyContext() {
-		return m_Root;
+	public Integer EmptyContext() {
+		return ROOT;
 	}
 	
 	@Override
-	public void ContextToSymbols(CPPMnode node, List<Integer> into) {
-		if (node==m_Root) return;
-		if (node.vine==m_Root) {
-			into.add(node.symbol);
-			return;
-		}
-		ContextToSymbols(node.vine,into);
-		search: for (CPPMnode rootCh = m_Root.child; rootCh!=null; rootCh=rootCh.next) {
-			CPPMnode traverse = rootCh;
-			for (int i=0; i<into.size(); i++)
-				if ((traverse = traverse.find_symbol(into.get(i)))==null)
-					continue search; //not found -> started in wrong place
-			if (traverse==node) {
-				into.add(0, rootCh.symbol);
-				return;
-			}
-		}
-		throw new RuntimeException("No child of Root, on inserting "+into+", produced "+node+" (symbol "+node.symbol+")");
+	public void ContextToSymbols(Integer ctx, List<Integer> into) {
+		//walk up from the node to the root, i.e. from the latest symbol back to the earliest
+		final int start = into.size();
+		for (int node = ctx; node!=ROOT; node=m_Parent[node])
+			into.add(start, symbol(node));
 	}
 	
 	@Override
-	protected CPPMnode BuildContext(Iterator<Integer> previousSyms, int countSoFar) {
-		return (countSoFar >= m_iMaxOrder) ? EmptyContext() : super.BuildContext(previousSyms, countSoFar);
+	protected int MaxContextLength() {
+		return m_iMaxOrder;
 	}
 
 }
@@ -0,0 +1,154 @@
+package dasher;
+
+/**
+ * Storage for the cumulative probability arrays from which alphabet nodes lay out their
+ * children: one large <code>int[]</code>, carved into fixed-size slots, with a bitmap of
+ * those free. (Cumulative probabilities never exceed {@link CDasherModel#NORMALIZATION},
+ * so fit in an int.) A set of probabilities is referred to by the index of its slot.
+ * <p>
+ * Slots are reference-counted, as the same probabilities are shared by the
+ * {@link CNodeCreationManager}'s cache and any number of nodes; a slot is freed, for reuse,
+ * when its last reference is released. The arena belongs to a {@link CAlphabetManager},
+ * so outlives any NCManager using it (e.g. when control mode is turned on or off).
+ * <p>
+ * Probabilities may be stored, and references taken or released, from any thread; but
+ * a slot's contents may only be read by a thread which holds (or has been handed) a reference.
+ * Reads are not synchronized: instead, when the arena grows, the new arrays are published
+ * (through volatile fields) only once the existing slots have been copied into them, so a
+ * reader sees either the old arrays or the new, and the slot it holds is valid in both.
+ */
+public class CProbArena {
+	/** Number of slots allocated initially; the arena doubles in size whenever full */
+	private static final int INITIAL_SLOTS = 64;
+	/** log2 of {@link CDasherModel#NORMALIZATION}, so {@link #cumulate} can scale by shifting */
+	private static final int LOG_NORM = Long.numberOfTrailingZeros(CDasherModel.NORMALIZATION);
+
+	/** Number of ints in each slot, i.e. the longest set of probabilities storable */
+	private final int m_iStride;
+	/** Contents of all slots; replaced (only after copying) when the arena grows */
+	private volatile int[] m_Slab;
+	/** Number of probabilities actually stored in each slot (at most {@link #m_iStride}); replaced as {@link #m_Slab} */
+	private volatile int[] m_Length;
+	/** Number of references to each slot; zero if free */
+	private int[] m_RefCount;
+	/** Bit set for each slot in use */
+	private long[] m_Used;
+	/** Number of slots in use */
+	private int m_iUsed;
+	/** Index into {@link #m_Used} of a word which may have a free slot; all before it are full */
+	private int m_iFreeHint;
+
+	/**
+	 * @param iStride Max number of probabilities to be stored in any slot,
+	 * i.e. the number of symbols, plus one for the leading zero and one for the control node
+	 */
+	public CProbArena(int iStride) {
+		this.m_iStride = iStride;
+		this.m_Slab = new int[INITIAL_SLOTS*iStride];
+		this.m_Length = new int[INITIAL_SLOTS];
+		this.m_RefCount = new int[INITIAL_SLOTS];
+		this.m_Used = new long[INITIAL_SLOTS/64];
+	}
+
+	/**
+	 * Stores the bounds of each child node, computed by {@link #cumulate} from probabilities
+	 * from a language model, in a free slot (allocating more space if there is none).
+	 * @return index of the slot, with one reference held by the caller
+	 */
+	synchronized int storeCumulative(long[] probs, int iSymbols, int len, long iAdd, long iScale) {
+		if (len>m_iStride) throw new IllegalArgumentException("Arena slots hold "+m_iStride+", not "+len);
+		final int slot = allocSlot();
+		cumulate(probs, iSymbols, len, iAdd, iScale, m_Slab, slot*m_iStride);
+		m_Length[slot] = len;
+		m_RefCount[slot] = 1;
+		return slot;
+	}
+
+	/**
+	 * Turns probabilities from a language model into the cumulative bounds of each child node,
+	 * in a single pass: adds iAdd to each symbol's probability (for uniformity), sums them,
+	 * and scales the running total by iScale/{@link CDasherModel#NORMALIZATION}, leaving the
+	 * rest of the space for the control node (if any). Scaling the running total, rather than
+	 * each probability, means rounding errors don't accumulate, so there is no remainder to
+	 * redistribute afterwards.
+	 * @param probs element 0 is ignored; elements 1 to iSymbols are the probabilities of each symbol,
+	 * summing to {@link CDasherModel#NORMALIZATION} (once iAdd is added to each)
+	 * @param len number of bounds to write: iSymbols+1, or iSymbols+2 to include the control node
+	 * @param iAdd amount to add to each symbol's probability
+	 * @param iScale space to be taken by the symbols, as a fraction of {@link CDasherModel#NORMALIZATION}
+	 * @param out array into which to write the bounds: 0, then the upper bound of each child,
+	 * the last being {@link CDasherModel#NORMALIZATION}
+	 * @param iOffset index in <code>out</code> at which to write the first
+	 */
+	public static void cumulate(long[] probs, int iSymbols, int len, long iAdd, long iScale, int[] out, int iOffset) {
+		long iTotal=0;
+		out[iOffset]=0;
+		for (int i=1; i<=iSymbols; i++) {
+			iTotal += probs[i]+iAdd;
+			out[iOffset+i] = (int)((iTotal*iScale) >> LOG_NORM);
+		}
+		out[iOffset+len-1] = (int)CDasherModel.NORMALIZATION;
+	}
+
+	private int allocSlot() {
+		for (int w=m_iFreeHint; w<m_Used.length; w++) {
+			if (m_Used[w]==-1L) continue;
+			m_iFreeHint = w;
+			final int bit = Long.numberOfTrailingZeros(~m_Used[w]);
+			m_Used[w] |= 1L<<bit;
+			m_iUsed++;
+			return w*64+bit;
+		}
+		//full: double in size
+		final int iSlots = m_Length.length;
+		final int[] slab = new int[iSlots*2*m_iStride];
+		System.arraycopy(m_Slab, 0, slab, 0, m_Slab.length);
+		m_Slab = slab; //(volatile) publishes the copy, for unsynchronized readers
+		m_Length = copyOf(m_Length, iSlots*2);
+		m_RefCount = copyOf(m_RefCount, iSlots*2);
+		final long[] used = new long[iSlots*2/64];
+		System.arraycopy(m_Used, 0, used, 0, m_Used.length);
+		m_Used = used;
+		m_iFreeHint = iSlots/64;
+		return allocSlot();
+	}
+
+	private static int[] copyOf(int[] a, int len) {
+		final int[] b = new int[len];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/** Adds a reference to a slot, e.g. as a node keeps its probabilities */
+	public synchronized void retain(int slot) {
+		if (m_RefCount[slot]++==0) throw new IllegalStateException("Slot "+slot+" is free");
+	}
+
+	/** Removes a reference to a slot, freeing it if that was the last */
+	public synchronized void release(int slot) {
+		if (--m_RefCount[slot]>0) return;
+		if (m_RefCount[slot]<0) throw new IllegalStateException("Slot "+slot+" released too often");
+		m_Used[slot/64] &= ~(1L<<slot);
+		m_iUsed--;
+		m_iFreeHint = Math.min(m_iFreeHint, slot/64);
+	}
+
+	/** Gets one of the probabilities stored in a slot */
+	public long get(int slot, int i) {
+		return m_Slab[slot*m_iStride+i];
+	}
+
+	/** Number of probabilities stored in a slot */
+	public int length(int slot) {
+		return m_Length[slot];
+	}
+
+	/** Number of slots in use, i.e. sets of probabilities referenced by nodes or a cache */
+	public synchronized int getSlotsUsed() {return m_iUsed;}
+
+	/** Number of slots allocated, in use or free */
+	public synchronized int getCapacity() {return m_Length.length;}
+
+	/** Size in bytes of the slab holding the probabilities */
+	public synchronized long getBytes() {return (long)m_Slab.length*4;}
+}
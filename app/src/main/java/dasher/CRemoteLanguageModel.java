@@ -0,0 +1,401 @@
+package dasher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Language model whose predictions are made by a server process (e.g.
+ * <code>dasher.bench.LMServer</code>, in the test sources), to which we talk over a socket using a
+ * compact binary protocol:
+ * <ul>
+ * <li>On connecting, the client sends {@link #MAGIC}, the alphabet name and
+ * number of symbols; the server replies with the number of symbols in its
+ * own copy of the alphabet, or -1 if it has no such alphabet.
+ * <li>{@link #OP_PROBS}, request id, normalization, and context (as a count of
+ * symbols then the symbols, most recent last): the server replies with the
+ * request id then the probability of each symbol.
+ * <li>{@link #OP_LEARN}, context (as above) and symbol: the server learns the
+ * symbol in that context, and does not reply.
+ * </ul>
+ * Symbols are sent as unsigned shorts, and all else as big-endian ints/longs.
+ * <p>
+ * Calls to {@link #GetProbs(Context, long[], long)} never wait for the server: a
+ * context not yet answered gets uniform probabilities, and is queued. At the end
+ * of each frame, all requests queued during that frame (i.e. for all nodes expanded)
+ * are encoded as one batch, which a background writer thread sends in one go, so
+ * the frame never waits on the socket (nor for earlier responses). Another background
+ * thread reads responses as they arrive, and requests a redraw; the
+ * {@link CAlphabetManager} then lays out the (placeholder) children again using
+ * the real probabilities - see {@link #HasProbs(Context)}.
+ * <p>
+ * The server trains its own model, so this one is never trained; symbols the
+ * user writes are sent to be learnt, but probabilities already fetched are not
+ * refetched, so only reflect this once evicted from our cache.
+ * (On Android, this requires the <code>INTERNET</code> permission, even for a
+ * server on the same device.)
+ */
+public class CRemoteLanguageModel extends CLanguageModel<CRemoteLanguageModel.Context> {
+	public static final int MAGIC = 0x44524C4D; //"DRLM"
+	public static final byte OP_PROBS = 1, OP_LEARN = 2;
+	/** Port used if {@link Esp_parameters#SP_LM_HOST} does not specify one */
+	public static final int DEFAULT_PORT = 7357;
+	/** Max number of contexts whose probabilities we keep */
+	private static final int CACHE_SIZE = 4096;
+	/**
+	 * Approximate bytes per cached context, besides its probabilities and symbols:
+	 * the map entry, {@link Context} and {@link Response} objects, and array headers
+	 */
+	private static final int CACHED_OVERHEAD = 128;
+	/** Time to wait for connection, in ms */
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * Context for a remote model: just the most recent symbols, up to the
+	 * maximum order, which the server turns into a context of its own.
+	 * Immutable, and equal to any other context with the same symbols.
+	 */
+	public static final class Context {
+		private final int[] syms;
+		private final int hash;
+		private Context(int[] syms) {
+			this.syms = syms;
+			this.hash = Arrays.hashCode(syms);
+		}
+		@Override public boolean equals(Object o) {
+			return o instanceof Context && ((Context)o).hash==hash && Arrays.equals(((Context)o).syms, syms);
+		}
+		@Override public int hashCode() {return hash;}
+	}
+
+	/** Probabilities received from the server, and the normalization requested */
+	private static class Response {
+		final long iNorm;
+		final int[] probs;
+		Response(long iNorm, int[] probs) {this.iNorm=iNorm; this.probs=probs;}
+	}
+
+	/** A request sent to the server */
+	private static class Request {
+		final Context ctx;
+		final long iNorm;
+		Request(Context ctx, long iNorm) {this.ctx=ctx; this.iNorm=iNorm;}
+	}
+
+	private final CDasherInterfaceBase m_Interface;
+	private final int m_iMaxOrder;
+	private final Context m_Empty = new Context(new int[0]);
+
+	/** Whether the connection has been established (and the writer thread started) */
+	private volatile boolean m_bConnected;
+	private volatile boolean m_bFailed;
+	/** Batches encoded by {@link #endFrame()}, for the writer thread to send */
+	private final BlockingQueue<byte[]> m_Batches = new LinkedBlockingQueue<byte[]>();
+
+	/** Contexts whose probabilities are needed, but not yet requested; only used by the frame thread */
+	private final Set<Context> m_Queued = new LinkedHashSet<Context>();
+	/** Symbols to learn (context symbols followed by symbol), not yet sent; only used by the frame thread */
+	private final List<int[]> m_QueuedLearn = new ArrayList<int[]>();
+	private long m_iQueuedNorm;
+	private int m_iNextId;
+
+	//The following are shared with the reader thread, so only accessed while synchronized on this
+	/** Responses received, least-recently-used first */
+	private final Map<Context,Response> m_Responses = new LinkedHashMap<Context,Response>(CACHE_SIZE*4/3+1, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<Context,Response> eldest) {
+			return size()>CACHE_SIZE;
+		}
+	};
+	/** Requests sent but not yet answered, by id */
+	private final Map<Integer,Request> m_InFlight = new HashMap<Integer,Request>();
+	/** Contexts in {@link #m_InFlight} */
+	private final Set<Context> m_Sent = new HashSet<Context>();
+
+	private int m_iRequests, m_iResponses;
+
+	/**
+	 * Creates a model which will connect (on a background thread) to the
+	 * server given by {@link Esp_parameters#SP_LM_HOST}, of the form <code>host[:port]</code>.
+	 * @param intf Interface, which we ask to redraw when responses arrive
+	 * @param alph Alphabet over which to predict; the server must have one of the same name
+	 */
+	public CRemoteLanguageModel(CDasherInterfaceBase intf, CAlphIO.AlphInfo alph) {
+		super(intf, alph);
+		this.m_Interface = intf;
+		this.m_iMaxOrder = (int)GetLongParameter(Elp_parameters.LP_LM_MAX_ORDER);
+		String host = GetStringParameter(Esp_parameters.SP_LM_HOST);
+		int port = DEFAULT_PORT;
+		final int colon = host.lastIndexOf(':');
+		if (colon!=-1) {
+			try {
+				port = Integer.parseInt(host.substring(colon+1));
+			} catch (NumberFormatException e) {
+				intf.Message("Bad port in LM host "+host, 1);
+			}
+			host = host.substring(0, colon);
+		}
+		if (host.length()==0) host="localhost";
+		Thread t = new Thread(new Reader(this, host, port), "Remote LM");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override public boolean isRemote() {return true;}
+
+	@Override public Context EmptyContext() {return m_Empty;}
+
+	@Override public void ContextToSymbols(Context ctx, List<Integer> into) {
+		for (int s : ctx.syms) into.add(s);
+	}
+
+	@Override protected int MaxContextLength() {return m_iMaxOrder;}
+
+	@Override public Context ContextWithSymbol(Context ctx, int Symbol) {
+		final int len = Math.min(ctx.syms.length+1, m_iMaxOrder);
+		final int[] syms = new int[len];
+		if (len>0) {
+			System.arraycopy(ctx.syms, ctx.syms.length-(len-1), syms, 0, len-1);
+			syms[len-1] = Symbol;
+		}
+		return new Context(syms);
+	}
+
+	@Override public Context ContextLearningSymbol(Context ctx, int Symbol) {
+		final int[] learn = new int[ctx.syms.length+1];
+		System.arraycopy(ctx.syms, 0, learn, 0, ctx.syms.length);
+		learn[ctx.syms.length] = Symbol;
+		m_QueuedLearn.add(learn);
+		return ContextWithSymbol(ctx, Symbol);
+	}
+
+	@Override public Context ContextLearningSymbolLater(Context ctx, int Symbol) {
+		//already deferred - sent at end of frame - and our predictions don't change
+		return ContextLearningSymbol(ctx, Symbol);
+	}
+
+	/**
+	 * Uses the server's probabilities if we have them; otherwise, fills in uniform
+	 * probabilities, and queues a request to be sent at the end of the frame.
+	 */
+	@Override public void GetProbs(Context ctx, long[] probs, long iNorm) {
+		final int iSyms = m_Alphabet.GetNumberSymbols();
+		Response r;
+		synchronized (this) {
+			r = m_Responses.get(ctx);
+			if ((r==null || r.iNorm!=iNorm) && !m_Sent.contains(ctx) && !m_bFailed) {
+				m_Queued.add(ctx);
+				m_iQueuedNorm = iNorm;
+			}
+		}
+		if (r!=null && r.iNorm==iNorm) {
+			for (int i=0; i<iSyms; i++) probs[i+1]+=r.probs[i];
+			return;
+		}
+		final long each = iNorm/iSyms;
+		long rem = iNorm - each*iSyms;
+		for (int i=1; i<=iSyms; i++, rem--) probs[i] += (rem>0) ? each+1 : each;
+	}
+
+	@Override public synchronized boolean HasProbs(Context ctx) {
+		return m_Responses.containsKey(ctx);
+	}
+
+	/**
+	 * Encodes everything queued during the frame, as one batch for the writer thread
+	 * to send; so does not block.
+	 */
+	@Override public void endFrame() {
+		if (m_bFailed) {
+			m_Queued.clear(); m_QueuedLearn.clear();
+		}
+		if (!m_bConnected || (m_Queued.isEmpty() && m_QueuedLearn.isEmpty())) return;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			for (int[] learn : m_QueuedLearn) {
+				out.writeByte(OP_LEARN);
+				writeSymbols(out, learn, learn.length-1);
+				out.writeShort(learn[learn.length-1]);
+			}
+			m_QueuedLearn.clear();
+			synchronized (this) {
+				for (Context ctx : m_Queued) {
+					final int id = m_iNextId++;
+					out.writeByte(OP_PROBS);
+					out.writeInt(id);
+					out.writeLong(m_iQueuedNorm);
+					writeSymbols(out, ctx.syms, ctx.syms.length);
+					m_InFlight.put(id, new Request(ctx, m_iQueuedNorm));
+					m_Sent.add(ctx);
+					m_iRequests++;
+				}
+			}
+			m_Queued.clear();
+			out.flush();
+		} catch (IOException e) {
+			throw new AssertionError(e); //writing to memory!
+		}
+		m_Batches.add(bytes.toByteArray());
+	}
+
+	private static void writeSymbols(DataOutputStream out, int[] syms, int len) throws IOException {
+		out.writeByte(len);
+		for (int i=0; i<len; i++) out.writeShort(syms[i]);
+	}
+
+	private void failed(IOException e) {
+		if (m_bFailed) return;
+		m_bFailed = true;
+		m_bConnected = false;
+		m_Batches.clear();
+		m_Interface.Message("Remote language model failed: "+e, 1);
+	}
+
+	/** Number of probability requests sent to the server */
+	public synchronized int GetNumRequests() {return m_iRequests;}
+
+	/** Number of responses received from the server */
+	public synchronized int GetNumResponses() {return m_iResponses;}
+
+	/**
+	 * Estimates the memory used by the probabilities we have cached, in bytes:
+	 * for each context, its probabilities and (up to max order) symbols, plus
+	 * {@link #CACHED_OVERHEAD}.
+	 */
+	@Override public synchronized int GetMemory() {
+		return m_Responses.size() * (CACHED_OVERHEAD + 4*(m_Alphabet.GetNumberSymbols() + m_iMaxOrder));
+	}
+
+	/**
+	 * Connects to the server, then reads responses until the connection fails or the
+	 * model is garbage-collected. (We hold the model only weakly, checking periodically,
+	 * as models are dropped without notice, e.g. on changing alphabet.)
+	 */
+	private static class Reader implements Runnable {
+		private final WeakReference<CRemoteLanguageModel> m_Model;
+		private final String m_Host;
+		private final int m_iPort;
+		Reader(CRemoteLanguageModel model, String host, int port) {
+			this.m_Model = new WeakReference<CRemoteLanguageModel>(model);
+			this.m_Host = host;
+			this.m_iPort = port;
+		}
+		public void run() {
+			Socket sock = new Socket();
+			try {
+				sock.setTcpNoDelay(true);
+				sock.connect(new InetSocketAddress(m_Host, m_iPort), CONNECT_TIMEOUT);
+				sock.setSoTimeout(CONNECT_TIMEOUT);
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+				final int iSyms;
+				CRemoteLanguageModel model = m_Model.get();
+				if (model==null) return;
+				iSyms = model.m_Alphabet.GetNumberSymbols();
+				out.writeInt(MAGIC);
+				out.writeUTF(model.m_Alphabet.name);
+				out.writeInt(iSyms);
+				out.flush();
+				final int iReply = in.readInt();
+				if (iReply!=iSyms)
+					throw new IOException("server has "+(iReply==-1 ? "no alphabet " : iReply+" symbols in ")+model.m_Alphabet.name);
+				Thread t = new Thread(new Writer(model, out), "Remote LM writer");
+				t.setDaemon(true);
+				t.start();
+				model.m_bConnected = true;
+				model.m_Interface.Redraw(true); //so any requests queued meanwhile get sent
+				model=null;
+				while (true) {
+					final int id;
+					try {
+						id = in.readInt();
+					} catch (SocketTimeoutException e) {
+						if (m_Model.get()==null) return;
+						continue;
+					}
+					final int[] probs = new int[iSyms];
+					for (int i=0; i<iSyms; i++) probs[i] = in.readInt();
+					model = m_Model.get();
+					if (model==null) return;
+					model.received(id, probs);
+					//redraw when we've read all that's available, i.e. a whole batch
+					if (in.available()==0) model.m_Interface.Redraw(true);
+					model=null;
+				}
+			} catch (IOException e) {
+				CRemoteLanguageModel model = m_Model.get();
+				if (model!=null) model.failed(e);
+			} finally {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					//ignore, we're finished anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the batches encoded by {@link CRemoteLanguageModel#endFrame()}, flushing
+	 * whenever there are no more waiting, until the connection fails or the model
+	 * is garbage-collected. (Holds the model only weakly, as {@link Reader}.)
+	 */
+	private static class Writer implements Runnable {
+		private final WeakReference<CRemoteLanguageModel> m_Model;
+		private final BlockingQueue<byte[]> m_Batches;
+		private final DataOutputStream m_Out;
+		Writer(CRemoteLanguageModel model, DataOutputStream out) {
+			this.m_Model = new WeakReference<CRemoteLanguageModel>(model);
+			this.m_Batches = model.m_Batches;
+			this.m_Out = out;
+		}
+		public void run() {
+			try {
+				while (true) {
+					final byte[] batch = m_Batches.poll(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+					if (batch==null) {
+						final CRemoteLanguageModel model = m_Model.get();
+						if (model==null || model.m_bFailed) return;
+						continue;
+					}
+					m_Out.write(batch);
+					if (m_Batches.isEmpty()) m_Out.flush();
+				}
+			} catch (IOException e) {
+				CRemoteLanguageModel model = m_Model.get();
+				if (model!=null) model.failed(e);
+			} catch (InterruptedException e) {
+				//exit
+			}
+		}
+	}
+
+	private synchronized void received(int id, int[] probs) throws IOException {
+		final Request req = m_InFlight.remove(id);
+		if (req==null) throw new IOException("unexpected response "+id);
+		m_Sent.remove(req.ctx);
+		m_Responses.put(req.ctx, new Response(req.iNorm, probs));
+		m_iResponses++;
+		//GetProbs now gives a different answer for this context
+		ChangedVersion();
+	}
+}
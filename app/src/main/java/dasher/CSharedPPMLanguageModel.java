@@ -0,0 +1,515 @@
+package dasher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PPM language model in two layers, so that processes (or sessions) using the
+ * same alphabet can share most of the model:
+ * <UL>
+ * <LI>an immutable <em>base</em> trie, built from the system training text,
+ * held in a ByteBuffer - normally memory-mapped from a cache file (see
+ * {@link CDasherInterfaceBase#train(CAlphabetManager, CDasherInterfaceBase.ProgressNotifier)}),
+ * so it is not on the Java heap, and its pages can be shared between processes;
+ * <LI>a small copy-on-write <em>overlay</em>, on the heap, holding only what has
+ * been learnt since (i.e. from the user's own text): extra counts for base nodes,
+ * and new nodes for contexts the base lacks.
+ * </UL>
+ * Contexts are node numbers: those less than the number of base nodes refer to
+ * base nodes (whether or not the overlay adds to them), others to nodes existing
+ * only in the overlay. {@link #GetProbs(Integer, long[], long)} combines the two
+ * layers, predicting exactly as a {@link CPPMLanguageModel} trained on the same text.
+ * <p>
+ * The base stores nodes in breadth-first order, with the children of each node
+ * contiguous and sorted by symbol; so a node's children are found by binary search,
+ * and no next-sibling pointers or hash table are needed.
+ */
+public class CSharedPPMLanguageModel extends CLanguageModel<Integer> {
+
+	/** Context for the root node, i.e. the empty context, in both layers */
+	public static final int ROOT = 0;
+
+	private static final int NIL = -1;
+
+	/** Number of overlay nodes by which to grow the overlay arrays, when full */
+	private static final int CHUNK_SIZE = 1<<8;
+
+	/** Length of the header at the start of the base, in bytes */
+	private static final int HEADER_BYTES = 4*4;
+
+	/** Bytes of base per node: symbol, vine, parent &amp; first child (ints), count (short) and depth (byte) */
+	private static final int BASE_NODE_BYTES = 4*4 + 2 + 1;
+
+	private final int m_iMaxOrder;
+	private final boolean bUpdateExclusion;
+	private long lpAlpha, lpBeta;
+
+	/** Whole of the base, from its header; position 0, and never modified */
+	private ByteBuffer m_Base;
+	/** Number of nodes in the base */
+	private int m_iBaseNodes;
+	/** Fields of base nodes: symbol, vine, parent; and index of first child, with
+	 * one extra element, so the children of node n are those from firstChild[n] to firstChild[n+1]-1 */
+	private IntBuffer m_BaseSymbol, m_BaseVine, m_BaseParent, m_BaseFirstChild;
+	private ShortBuffer m_BaseCount;
+	/** Depth of each base node, i.e. length of its context; in the same buffer, from this offset */
+	private int m_iBaseDepthOffset;
+
+	// Overlay nodes: the overlay node with index i is context (i + m_iBaseNodes)
+
+	private int[] m_OSymbol = new int[CHUNK_SIZE];
+	private int[] m_OVine = new int[CHUNK_SIZE];
+	private int[] m_OParent = new int[CHUNK_SIZE];
+	/** First child in the overlay (a context), or NIL */
+	private int[] m_OChild = new int[CHUNK_SIZE];
+	/** Next sibling in the overlay (a context), or NIL */
+	private int[] m_ONext = new int[CHUNK_SIZE];
+	private short[] m_OCount = new short[CHUNK_SIZE];
+	private byte[] m_ODepth = new byte[CHUNK_SIZE];
+	private int m_iOverlayNodes;
+
+	/**
+	 * Bitmap over base nodes: bit set iff the overlay has a <em>shadow</em> for the node,
+	 * i.e. an overlay slot holding the extra count learnt for it (in {@link #m_OCount}), and
+	 * the first of any children created for it in the overlay (in {@link #m_OChild}).
+	 */
+	private int[] m_Shadowed;
+	/**
+	 * Index of overlay slot shadowing each base node whose bit is set in {@link #m_Shadowed}:
+	 * an open-addressing hash table, from base node (in this array, or NIL if the slot is
+	 * empty) to overlay slot (in the same position of {@link #m_ShadowVals}).
+	 */
+	private int[] m_ShadowKeys = emptyShadowKeys(1<<6);
+	private int[] m_ShadowVals = new int[1<<6];
+	private int m_iShadows;
+
+	public CSharedPPMLanguageModel(CDasherComponent creator, CAlphIO.AlphInfo alph) {
+		super(creator, alph);
+		bUpdateExclusion = ( GetLongParameter(Elp_parameters.LP_LM_UPDATE_EXCLUSION) !=0 );
+		lpAlpha = GetLongParameter(Elp_parameters.LP_LM_ALPHA);
+		lpBeta = GetLongParameter(Elp_parameters.LP_LM_BETA);
+		m_iMaxOrder = (int)GetLongParameter(Elp_parameters.LP_LM_MAX_ORDER);
+		//start with an empty base, i.e. just a root
+		ByteBuffer empty = ByteBuffer.allocate(HEADER_BYTES + BASE_NODE_BYTES + 4);
+		empty.putInt(m_iMaxOrder).putInt(bUpdateExclusion ? 1 : 0).putInt(alph.GetNumberSymbols()).putInt(1);
+		empty.putInt(NIL).putInt(NIL).putInt(NIL).putInt(1).putInt(1); //symbol, vine, parent, first child (x2)
+		empty.putShort((short)1).put((byte)0); //count, depth
+		empty.flip();
+		if (!ReadSnapshot(empty)) throw new AssertionError();
+	}
+
+	public void HandleEvent(EParameters eParam) {
+		super.HandleEvent(eParam);
+		if(eParam == Elp_parameters.LP_LM_ALPHA) {
+			lpAlpha = GetLongParameter(Elp_parameters.LP_LM_ALPHA);
+		} else if(eParam == Elp_parameters.LP_LM_BETA) {
+			lpBeta = GetLongParameter(Elp_parameters.LP_LM_BETA);
+		}
+	}
+
+	/**
+	 * Replaces the base with that built from a trained PPM model (which must have the same
+	 * alphabet, max order and update exclusion setting), in a heap buffer; the overlay
+	 * must be empty. Callers able to, should then write out a snapshot (i.e. the base) and
+	 * restore from it, so the base is memory-mapped instead.
+	 */
+	public void SetBase(CPPMLanguageModel trained) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			writeBase(trained, Channels.newChannel(bytes));
+			if (!ReadSnapshot(ByteBuffer.wrap(bytes.toByteArray())))
+				throw new IllegalArgumentException("Model not compatible, or overlay not empty");
+		} catch (IOException e) {
+			throw new AssertionError(e); //writing to memory!
+		}
+	}
+
+	/**
+	 * Writes out the base trie for a trained PPM model: a header (max order, update exclusion,
+	 * number of symbols &amp; nodes) followed by each field of every node, as raw big-endian
+	 * values. Nodes are numbered breadth-first, children in order of symbol.
+	 */
+	private void writeBase(CPPMLanguageModel lm, WritableByteChannel out) throws IOException {
+		final int n = lm.GetNumNodes();
+		//number the nodes: order[i] is the model's index for our node i
+		final int[] order = new int[n], parent = new int[n], firstChild = new int[n+1];
+		final byte[] depth = new byte[n];
+		int iLen=0;
+		order[iLen++] = CPPMLanguageModel.ROOT;
+		parent[0] = NIL;
+		long[] sort = new long[16]; //children of a node, as (symbol, index) pairs
+		for (int i=0; i<iLen; i++) {
+			final int start = firstChild[i] = iLen;
+			for (int c=lm.child(order[i]); c!=NIL; c=lm.next(c)) {
+				parent[iLen] = i;
+				depth[iLen] = (byte)Math.min(depth[i]+1, Byte.MAX_VALUE);
+				order[iLen++] = c;
+			}
+			//sort the new children by symbol
+			if (iLen-start > 1) {
+				if (iLen-start > sort.length) sort = new long[iLen-start];
+				for (int j=start; j<iLen; j++) sort[j-start] = ((long)lm.symbol(order[j])<<32) | order[j];
+				Arrays.sort(sort, 0, iLen-start);
+				for (int j=start; j<iLen; j++) order[j] = (int)sort[j-start];
+			}
+		}
+		firstChild[n] = n;
+		//map from model's indices to ours (model's may exceed n, if it has free nodes)
+		int iMax=0;
+		for (int i=0; i<n; i++) iMax = Math.max(iMax, order[i]);
+		final int[] map = new int[iMax+1];
+		for (int i=0; i<n; i++) map[order[i]] = i;
+		final int[] symbol = new int[n], vine = new int[n];
+		final short[] count = new short[n];
+		symbol[0] = vine[0] = NIL;
+		for (int i=0; i<n; i++) {
+			if (i>0) {
+				symbol[i] = lm.symbol(order[i]);
+				vine[i] = map[lm.vine(order[i])];
+			}
+			count[i] = (short)lm.count(order[i]);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(1<<16);
+		buf.putInt(lm.m_iMaxOrder).putInt(lm.bUpdateExclusion ? 1 : 0)
+			.putInt(m_Alphabet.GetNumberSymbols()).putInt(n);
+		for (int[] arr : new int[][] {symbol, vine, parent, firstChild}) {
+			for (int i=0; i<arr.length;) {
+				if (buf.remaining()<4) flush(buf, out);
+				int len = Math.min(arr.length-i, buf.remaining()/4);
+				buf.asIntBuffer().put(arr, i, len);
+				buf.position(buf.position()+len*4);
+				i+=len;
+			}
+		}
+		for (int i=0; i<n;) {
+			if (buf.remaining()<2) flush(buf, out);
+			int len = Math.min(n-i, buf.remaining()/2);
+			buf.asShortBuffer().put(count, i, len);
+			buf.position(buf.position()+len*2);
+			i+=len;
+		}
+		for (int i=0; i<n;) {
+			if (!buf.hasRemaining()) flush(buf, out);
+			int len = Math.min(n-i, buf.remaining());
+			buf.put(depth, i, len);
+			i+=len;
+		}
+		flush(buf, out);
+	}
+
+	private static void flush(ByteBuffer buf, WritableByteChannel out) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) out.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Writes out the base, unchanged, as long as nothing has been learnt
+	 * into the overlay (which cannot be snapshotted).
+	 */
+	@Override
+	public boolean WriteSnapshot(WritableByteChannel out) throws IOException {
+		if (m_iOverlayNodes!=0) return false;
+		ByteBuffer buf = m_Base.duplicate();
+		buf.position(0);
+		while (buf.hasRemaining()) out.write(buf);
+		return true;
+	}
+
+	/**
+	 * Uses a base written by {@link #WriteSnapshot(WritableByteChannel)} (or {@link #SetBase}),
+	 * <em>without</em> copying it, so a memory-mapped buffer stays so; fails if the base was made
+	 * with a different max order, update exclusion setting, or size of alphabet, or if
+	 * anything has already been learnt into the overlay.
+	 */
+	@Override
+	public boolean ReadSnapshot(ByteBuffer in) {
+		if (m_iOverlayNodes!=0 || in.remaining()<HEADER_BYTES) return false;
+		final ByteBuffer base = in.slice();
+		if (base.getInt()!=m_iMaxOrder
+				|| base.getInt()!=(bUpdateExclusion ? 1 : 0)
+				|| base.getInt()!=m_Alphabet.GetNumberSymbols())
+			return false;
+		final int n = base.getInt();
+		final long iBytes = HEADER_BYTES + (long)n*BASE_NODE_BYTES + 4;
+		if (n<1 || base.capacity() < iBytes) return false;
+		m_BaseSymbol = intsAt(base, HEADER_BYTES, n);
+		m_BaseVine = intsAt(base, HEADER_BYTES + n*4, n);
+		m_BaseParent = intsAt(base, HEADER_BYTES + n*8, n);
+		m_BaseFirstChild = intsAt(base, HEADER_BYTES + n*12, n+1);
+		base.position(HEADER_BYTES + n*16 + 4);
+		ByteBuffer counts = base.slice(); counts.limit(n*2);
+		m_BaseCount = counts.asShortBuffer();
+		m_iBaseDepthOffset = HEADER_BYTES + n*18 + 4;
+		base.position(0);
+		base.limit((int)iBytes);
+		m_Base = base;
+		m_iBaseNodes = n;
+		m_Shadowed = new int[(n+31)/32];
+		in.position(in.position()+(int)iBytes);
+		return true;
+	}
+
+	private static IntBuffer intsAt(ByteBuffer buf, int iOffset, int iLen) {
+		buf.position(iOffset);
+		ByteBuffer b = buf.slice();
+		b.limit(iLen*4);
+		return b.asIntBuffer();
+	}
+
+	// Accessors for nodes of either layer...
+
+	private int symbol(int n) {return (n<m_iBaseNodes) ? m_BaseSymbol.get(n) : m_OSymbol[n-m_iBaseNodes];}
+	private int vine(int n) {return (n<m_iBaseNodes) ? m_BaseVine.get(n) : m_OVine[n-m_iBaseNodes];}
+	private int parent(int n) {return (n<m_iBaseNodes) ? m_BaseParent.get(n) : m_OParent[n-m_iBaseNodes];}
+	private int depth(int n) {return (n<m_iBaseNodes) ? m_Base.get(m_iBaseDepthOffset+n) : m_ODepth[n-m_iBaseNodes];}
+
+	/** Count of a node, i.e. the base count plus anything learnt in the overlay */
+	private int count(int n) {
+		if (n>=m_iBaseNodes) return m_OCount[n-m_iBaseNodes];
+		final int c = m_BaseCount.get(n);
+		return isShadowed(n) ? c + m_OCount[shadowOf(n)] : c;
+	}
+
+	/** First child of a node in the overlay, or NIL if none */
+	private int overlayChild(int n) {
+		if (n>=m_iBaseNodes) return m_OChild[n-m_iBaseNodes];
+		return isShadowed(n) ? m_OChild[shadowOf(n)] : NIL;
+	}
+
+	private boolean isShadowed(int n) {
+		return (m_Shadowed[n>>>5] & (1<<n))!=0;
+	}
+
+	/** Gets the overlay slot shadowing a base node, creating it if necessary */
+	private int shadow(int n) {
+		if (isShadowed(n)) return shadowOf(n);
+		final int o = allocOverlay();
+		m_OSymbol[o] = m_OVine[o] = m_OParent[o] = NIL; //unused
+		m_OChild[o] = m_ONext[o] = NIL;
+		m_OCount[o] = 0;
+		putShadow(n, o);
+		m_Shadowed[n>>>5] |= 1<<n;
+		return o;
+	}
+
+	private static int[] emptyShadowKeys(int iSize) {
+		final int[] keys = new int[iSize];
+		Arrays.fill(keys, NIL);
+		return keys;
+	}
+
+	private static int shadowSlot(int n, int mask) {
+		final int h = n * 0x9E3779B9; //multiplicative hashing
+		return (h ^ (h>>>16)) & mask;
+	}
+
+	/** Looks up the overlay slot shadowing a base node, which must be {@link #isShadowed(int)} */
+	private int shadowOf(int n) {
+		final int[] keys = m_ShadowKeys;
+		final int mask = keys.length-1;
+		int slot = shadowSlot(n, mask);
+		while (keys[slot]!=n) slot = (slot+1) & mask;
+		return m_ShadowVals[slot];
+	}
+
+	private void putShadow(int n, int o) {
+		if ((m_iShadows+1)*2 > m_ShadowKeys.length) {
+			//rehash into a table twice the size
+			final int[] oldKeys = m_ShadowKeys, oldVals = m_ShadowVals;
+			m_ShadowKeys = emptyShadowKeys(oldKeys.length*2);
+			m_ShadowVals = new int[oldKeys.length*2];
+			m_iShadows = 0;
+			for (int i=0; i<oldKeys.length; i++)
+				if (oldKeys[i]!=NIL) putShadow(oldKeys[i], oldVals[i]);
+		}
+		final int mask = m_ShadowKeys.length-1;
+		int slot = shadowSlot(n, mask);
+		while (m_ShadowKeys[slot]!=NIL) slot = (slot+1) & mask;
+		m_ShadowKeys[slot] = n;
+		m_ShadowVals[slot] = o;
+		m_iShadows++;
+	}
+
+	private int allocOverlay() {
+		if (m_iOverlayNodes==m_OSymbol.length) {
+			final int iNewSize = m_iOverlayNodes + Math.max(CHUNK_SIZE, m_iOverlayNodes/2);
+			m_OSymbol = grow(m_OSymbol, iNewSize); m_OVine = grow(m_OVine, iNewSize);
+			m_OParent = grow(m_OParent, iNewSize); m_OChild = grow(m_OChild, iNewSize);
+			m_ONext = grow(m_ONext, iNewSize);
+			short[] counts = new short[iNewSize];
+			System.arraycopy(m_OCount, 0, counts, 0, m_iOverlayNodes);
+			m_OCount = counts;
+			byte[] depths = new byte[iNewSize];
+			System.arraycopy(m_ODepth, 0, depths, 0, m_iOverlayNodes);
+			m_ODepth = depths;
+		}
+		return m_iOverlayNodes++;
+	}
+
+	private static int[] grow(int[] arr, int iNewSize) {
+		int[] res = new int[iNewSize];
+		System.arraycopy(arr, 0, res, 0, arr.length);
+		return res;
+	}
+
+	/** Creates an overlay node (with count 1) as a child of the specified node, in either layer */
+	private int newNode(int sym, int parent, int vine) {
+		final int o = allocOverlay(), n = o + m_iBaseNodes;
+		m_OSymbol[o] = sym;
+		m_OVine[o] = vine;
+		m_OParent[o] = parent;
+		m_OChild[o] = NIL;
+		m_OCount[o] = 1;
+		m_ODepth[o] = (byte)Math.min(depth(parent)+1, Byte.MAX_VALUE);
+		final int p = (parent<m_iBaseNodes) ? shadow(parent) : parent-m_iBaseNodes;
+		m_ONext[o] = m_OChild[p];
+		m_OChild[p] = n;
+		return n;
+	}
+
+	/** Adds one to the count of a node in either layer (saturating as CPPMLanguageModel) */
+	private void incCount(int n) {
+		if (count(n)>=Short.MAX_VALUE) return;
+		final int o = (n<m_iBaseNodes) ? shadow(n) : n-m_iBaseNodes; //(may grow arrays)
+		m_OCount[o]++;
+	}
+
+	/**
+	 * Finds the child of a node representing a symbol: by binary search among
+	 * the node's children in the base, if any, then in the overlay.
+	 * @return the child, or NIL if none
+	 */
+	private int find_symbol(int node, int sym) {
+		if (node<m_iBaseNodes) {
+			int lo = m_BaseFirstChild.get(node), hi = m_BaseFirstChild.get(node+1)-1;
+			while (lo<=hi) {
+				final int mid = (lo+hi)>>>1, s = m_BaseSymbol.get(mid);
+				if (s<sym) lo=mid+1;
+				else if (s>sym) hi=mid-1;
+				else return mid;
+			}
+		}
+		for (int c=overlayChild(node); c!=NIL; c=m_ONext[c-m_iBaseNodes])
+			if (m_OSymbol[c-m_iBaseNodes]==sym) return c;
+		return NIL;
+	}
+
+	private boolean orderOk(int node) {
+		return depth(node)<=m_iMaxOrder;
+	}
+
+	@Override
+	public Integer EmptyContext() {
+		return ROOT;
+	}
+
+	@Override
+	public void ContextToSymbols(Integer ctx, List<Integer> into) {
+		final int start = into.size();
+		for (int node = ctx; node!=ROOT; node=parent(node))
+			into.add(start, symbol(node));
+	}
+
+	@Override
+	public Integer ContextWithSymbol(Integer ctxIn, int sym) {
+		for (int ctx = ctxIn; ctx != NIL; ctx = vine(ctx)) {
+			int find = find_symbol(ctx, sym);
+			if (find!=NIL) {
+				while (!orderOk(find))
+					find=vine(find);
+				return find;
+			}
+		}
+		return ROOT;
+	}
+
+	/** Learns into the overlay, exactly as {@link CPPMLanguageModel#ContextLearningSymbol(Integer, int)} */
+	@Override
+	public Integer ContextLearningSymbol(Integer ctx, int sym) {
+		int r = AddSymbol(ctx, sym);
+		while (!orderOk(r))
+			r = vine(r);
+		return r;
+	}
+
+	private int AddSymbol(int ctx, int sym) {
+		int child = find_symbol(ctx, sym);
+		if (child!=NIL) {
+			incCount(child);
+			if (!bUpdateExclusion)
+				for (int v = vine(child); v != NIL; v = vine(v))
+					incCount(v);
+		} else {
+			child = newNode(sym, ctx, (ctx==ROOT) ? ROOT : AddSymbol(vine(ctx), sym));
+		}
+		return child;
+	}
+
+	@Override
+	public void GetProbs(Integer ppmcontext, long[] probs, long norm) {
+		final int iNumSymbols = m_Alphabet.GetNumberSymbols()+1;
+		long iToSpend = norm;
+		for (int ctx = ppmcontext; ctx!=NIL; ctx=vine(ctx)) {
+			//children are those in the base (if any), then the overlay
+			final int iFirst, iEnd;
+			if (ctx<m_iBaseNodes) {
+				iFirst = m_BaseFirstChild.get(ctx); iEnd = m_BaseFirstChild.get(ctx+1);
+			} else iFirst = iEnd = 0;
+			final int iOverlay = overlayChild(ctx);
+			int iTotal = 0;
+			for (int c=iFirst; c<iEnd; c++) iTotal += count(c);
+			for (int c=iOverlay; c!=NIL; c=m_ONext[c-m_iBaseNodes]) iTotal += m_OCount[c-m_iBaseNodes];
+			if (iTotal==0) continue;
+			final long size_of_slice = iToSpend;
+			for (int c=iFirst; c<iEnd; c++) {
+				final long p = size_of_slice * (100 * count(c) - lpBeta) / (100 * iTotal + lpAlpha);
+				probs[m_BaseSymbol.get(c)+1] += p;
+				iToSpend -= p;
+			}
+			for (int c=iOverlay; c!=NIL; c=m_ONext[c-m_iBaseNodes]) {
+				final long p = size_of_slice * (100 * m_OCount[c-m_iBaseNodes] - lpBeta) / (100 * iTotal + lpAlpha);
+				probs[m_OSymbol[c-m_iBaseNodes]+1] += p;
+				iToSpend -= p;
+			}
+		}
+		final long each = iToSpend / (iNumSymbols-1);
+		iToSpend -= each*(iNumSymbols-1);
+		for(int i = 1; i < iNumSymbols; i++) {
+			long p = iToSpend / (iNumSymbols-i);
+			probs[i] += each + p;
+			iToSpend -= p;
+		}
+	}
+
+	@Override
+	protected int MaxContextLength() {
+		return m_iMaxOrder;
+	}
+
+	/** Number of nodes in the (shared) base */
+	public int GetNumBaseNodes() {return m_iBaseNodes;}
+
+	/** Number of nodes in the overlay, including shadows of base nodes */
+	public int GetNumOverlayNodes() {return m_iOverlayNodes;}
+
+	/** Size of the base, in bytes (typically memory-mapped, so not on the heap) */
+	public int GetBaseBytes() {return m_Base.limit();}
+
+	/**
+	 * Heap used by the overlay, in bytes: that is, the overlay arrays (including
+	 * any as-yet-unused space), the shadow bitmap and the hash table of shadows.
+	 * Excludes the base; see {@link #GetBaseBytes()}.
+	 */
+	@Override
+	public int GetMemory() {
+		return m_OSymbol.length*(5*4+2+1) + m_Shadowed.length*4 + m_ShadowKeys.length*(4+4);
+	}
+}
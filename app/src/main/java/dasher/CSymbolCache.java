@@ -0,0 +1,263 @@
+package dasher;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of a training stream already decoded into symbols, so that retraining
+ * (e.g. after the LM parameters change, or to rebuild a snapshot) need not decode the text
+ * and map it through the {@link CAlphabetMap} again, but is just a scan over symbol numbers.
+ * <p>
+ * A cache file consists of a header identifying the alphabet and the stream - its length
+ * and a CRC32 of its bytes - followed by the symbols, in the form passed to a
+ * {@link CAlphabetMap.TrainingSink}, as variable-length integers: 0 for the start of a
+ * context-switch command (after which symbols are entered, not learnt), 1 for its end, and
+ * n+2 for symbol n. Hence most symbols take one byte. The cache is only used if the stream is unchanged;
+ * otherwise it is decoded afresh and the cache rewritten.
+ */
+public class CSymbolCache {
+	private static final int MAGIC = 0x4453594D; //"DSYM"
+	private static final int VERSION = 1;
+	/** Size of header: magic, version, alphabet key, stream length, CRC, symbol count, size of symbols in bytes */
+	private static final int HEADER_SIZE = 4+4+8+8+8+4+8;
+	/** Number of symbols passed to the sink at once when reading from the cache */
+	private static final int BLOCK_SIZE = 1<<16;
+	/** Code for the start of a context-switch command: following symbols are entered, not learnt */
+	private static final int DEFAULT_CONTEXT = 0;
+	/** Code for the end of a context-switch command: following symbols are learnt */
+	private static final int END_CONTEXT = 1;
+	/** Code for symbol 0; other symbols follow */
+	private static final int FIRST_SYMBOL = 2;
+
+	/** Length in bytes of the stream from which the cached symbols were decoded */
+	private final long m_iLength;
+	/** CRC32 of the stream from which the cached symbols were decoded */
+	private final long m_iCRC;
+	/** Number of codes in the cache */
+	private final int m_iCount;
+	/** Encoded symbols, positioned after the header */
+	private final ByteBuffer m_Body;
+
+	private CSymbolCache(long iLength, long iCRC, int iCount, ByteBuffer body) {
+		this.m_iLength = iLength;
+		this.m_iCRC = iCRC;
+		this.m_iCount = iCount;
+		this.m_Body = body;
+	}
+
+	/**
+	 * Name of file in which to cache the symbols of one of an alphabet's training streams.
+	 * @param iStream index of the stream among those for the alphabet's training file
+	 */
+	public static String fileName(CAlphIO.AlphInfo alph, int iStream) {
+		return alph.GetTrainingFile()+"."+Integer.toHexString(alph.name.hashCode())+"."+iStream+".sym";
+	}
+
+	/**
+	 * Reads the header of a cache file, and checks it was made for the specified alphabet.
+	 * @return the cache, or null if the file does not exist, could not be read, or is for
+	 * a different alphabet (or version of this format)
+	 */
+	private static CSymbolCache open(File f, CAlphIO.AlphInfo alph) {
+		if (f==null || !f.exists()) return null;
+		try {
+			FileInputStream fis = new FileInputStream(f);
+			try {
+				FileChannel ch = fis.getChannel();
+				ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				if (buf.getInt()!=MAGIC || buf.getInt()!=VERSION || buf.getLong()!=CLMSnapshot.alphabetKey(alph))
+					return null;
+				final long iLength = buf.getLong(), iCRC = buf.getLong();
+				final int iCount = buf.getInt();
+				if (buf.getLong()!=buf.remaining()) return null; //truncated
+				return new CSymbolCache(iLength, iCRC, iCount, buf.slice());
+			} finally {
+				fis.close(); //mapping remains valid
+			}
+		} catch (Exception e) {
+			//IOException, or BufferUnderflowException for a truncated file. Either way, unusable.
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes a training stream into symbols, passing them to a sink: from the cache file,
+	 * if it was made from exactly the same bytes, or else by {@link CAlphabetMap}, writing
+	 * the symbols to the cache file for next time. Either way, the stream is read to the end
+	 * and closed.
+	 * @param f Cache file to use
+	 * @return Number of bytes read (plus iOffset)
+	 */
+	static int read(CAlphabetMap map, File f, InputStream in, int iTotalBytes, int iOffset,
+			CDasherInterfaceBase.ProgressNotifier prog, CAlphabetMap.TrainingSink sink) throws IOException {
+		final CSymbolCache cache = open(f, map.m_AlphInfo);
+		if (cache!=null && cache.m_iLength<Integer.MAX_VALUE) {
+			//read the stream as far as the cache covers, and one byte more (to check it ends there)
+			final byte[] prefix = new byte[(int)cache.m_iLength+1];
+			int len=0;
+			for (int n; len<prefix.length && (n=in.read(prefix, len, prefix.length-len))!=-1; len+=n);
+			if (len==cache.m_iLength) {
+				CRC32 crc = new CRC32();
+				crc.update(prefix, 0, len);
+				if (crc.getValue()==cache.m_iCRC) {
+					in.close();
+					try {
+						cache.replay(sink, iTotalBytes, iOffset, prog);
+					} catch (ArrayIndexOutOfBoundsException e) {
+						//last code incomplete - file must have been damaged
+						f.delete();
+						throw new IOException("Symbol cache "+f+" corrupt");
+					}
+					return iOffset+len;
+				}
+			}
+			//stream has changed: decode what we've read, then the rest
+			in = new SequenceInputStream(new ByteArrayInputStream(prefix, 0, len), in);
+		}
+		final CLMSnapshot.Source src = new CLMSnapshot.Source(in);
+		final Writer w = new Writer(f, map.m_AlphInfo, sink);
+		boolean bOk=false;
+		try {
+			final int iRead = map.ReadTrainingStream(src, iTotalBytes, iOffset, prog, w);
+			w.close(src.length(), src.crc());
+			bOk=true;
+			return iRead;
+		} finally {
+			if (!bOk) w.abandon();
+		}
+	}
+
+	/** Passes all the cached symbols to a sink, a block at a time, notifying progress
+	 * (as if reading the stream) after each */
+	private void replay(CAlphabetMap.TrainingSink sink, int iTotalBytes, int iOffset,
+			CDasherInterfaceBase.ProgressNotifier prog) throws IOException {
+		final byte[] bytes = new byte[m_Body.remaining()];
+		m_Body.duplicate().get(bytes);
+		final int[] syms = new int[BLOCK_SIZE];
+		boolean bEntering=false;
+		for (int i=0, len=0, pos=0; i<m_iCount; i++) {
+			int v = bytes[pos++];
+			if (v<0) {
+				//top bit set, i.e. more bytes follow
+				v &= 0x7F;
+				for (int b, shift=7; ; shift+=7) {
+					v |= ((b=bytes[pos++]) & 0x7F) << shift;
+					if (b>=0) break;
+				}
+			}
+			if (v==DEFAULT_CONTEXT) {
+				syms[len++] = CAlphabetMap.DEFAULT_CONTEXT;
+				bEntering=true;
+			} else if (v==END_CONTEXT) bEntering=false;
+			else syms[len++] = bEntering ? ~(v-FIRST_SYMBOL) : v-FIRST_SYMBOL;
+			if (len==syms.length || i+1==m_iCount) {
+				sink.symbols(syms, len);
+				len=0;
+				if (prog!=null) prog.notifyProgress((int)((iOffset + m_iLength*(i+1)/m_iCount)*100/iTotalBytes));
+			}
+		}
+	}
+
+	/**
+	 * Sink which passes symbols on to another, and also writes them to a new cache file;
+	 * this is written to a temporary file and renamed into place by {@link #close},
+	 * so a partially-written cache is never seen.
+	 */
+	private static class Writer implements CAlphabetMap.TrainingSink {
+		private final File f;
+		private File temp;
+		private final CAlphIO.AlphInfo alph;
+		private final CAlphabetMap.TrainingSink sink;
+		private FileOutputStream fos;
+		private OutputStream out;
+		private int iCount;
+		private long iBytes;
+		/** Whether the last code written was in a context-switch command */
+		private boolean bEntering;
+
+		Writer(File f, CAlphIO.AlphInfo alph, CAlphabetMap.TrainingSink sink) {
+			this.f=f; this.alph=alph; this.sink=sink;
+			try {
+				//uniquely named, in case another thread is caching the same stream
+				temp = File.createTempFile(f.getName(), null, f.getParentFile());
+				fos = new FileOutputStream(temp);
+				out = new BufferedOutputStream(fos);
+				out.write(new byte[HEADER_SIZE]); //filled in by close()
+			} catch (IOException e) {
+				abandon(); //not fatal, we just don't cache
+			}
+		}
+
+		public void symbols(int[] syms, int len) {
+			sink.symbols(syms, len);
+			if (out==null) return;
+			try {
+				for (int i=0; i<len; i++) {
+					final int sym = syms[i];
+					if (sym==CAlphabetMap.DEFAULT_CONTEXT) {
+						write(DEFAULT_CONTEXT);
+						bEntering=true;
+						continue;
+					}
+					if (bEntering!=(sym<0)) {
+						//only symbols within a context-switch command are entered
+						assert bEntering;
+						write(END_CONTEXT);
+						bEntering=false;
+					}
+					write(FIRST_SYMBOL + (bEntering ? ~sym : sym));
+				}
+			} catch (IOException e) {
+				abandon();
+			}
+		}
+
+		private void write(int v) throws IOException {
+			for (; (v & ~0x7F)!=0; v>>>=7, iBytes++) out.write((v & 0x7F) | 0x80);
+			out.write(v);
+			iBytes++;
+			iCount++;
+		}
+
+		/** Completes the cache file, recording the stream from which the symbols were decoded */
+		void close(long iLength, long iCRC) {
+			if (out==null) return;
+			try {
+				out.flush();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(CLMSnapshot.alphabetKey(alph))
+					.putLong(iLength).putLong(iCRC).putInt(iCount).putLong(iBytes).flip();
+				FileChannel ch = fos.getChannel();
+				for (long pos=0; header.hasRemaining();) pos += ch.write(header, pos);
+				out.close();
+				out=null;
+				if (!temp.renameTo(f)) {
+					//some platforms won't rename over an existing file
+					f.delete();
+					if (!temp.renameTo(f)) temp.delete();
+				}
+			} catch (IOException e) {
+				abandon();
+			}
+		}
+
+		/** Stops writing, and deletes the incomplete file */
+		void abandon() {
+			if (fos!=null) {
+				try {fos.close();} catch (IOException e) {/*ignore*/}
+			}
+			out=null; fos=null;
+			if (temp!=null) temp.delete();
+		}
+	}
+}
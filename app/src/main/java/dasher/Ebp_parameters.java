@@ -48,6 +48,8 @@ public enum Ebp_parameters implements EParameters {
 			  BP_LM_ADAPTIVE("LMAdaptive", true, "Whether language model should learn as you enter text"),
 			  BP_CIRCLE_START("CircleStart", false, "Start on circle mode"),
 			  BP_LM_REMOTE("RemoteLM", false, "Language model is remote and responds asynchronously."),
+			  BP_LM_SHARED_BASE("LMSharedBase", false, "Keep PPM model trained on system text in a shared, memory-mapped file; learn user text on top"),
+			  BP_PREFETCH_CHILDREN("PrefetchChildren", true, "Compute probabilities in the background for nodes we are steering towards"),
 			  BP_ONE_DIMENSIONAL_MODE("OneDimensionalMode", false, "Remap x/y to radius / curve all around origin"),
 			  BP_ONE_BUTTON_RELEASE_TIME("OneButtonReleaseTime", false, "Use length of single push, not gap, for 1B-dynamic mode"),
 			  BP_CONTROL_MODE_REBUILD("ControlModeRebuild",true,"Replace control nodes that have happened with characters to left of cursor"),
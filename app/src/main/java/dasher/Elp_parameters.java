@@ -42,6 +42,10 @@ public enum Elp_parameters implements EParameters {
 	  LP_LM_UPDATE_EXCLUSION("LMUpdateExclusion", 1, "LMUpdateExclusion"),
 	  LP_LM_ALPHA("LMAlpha", 49, "LMAlpha"),
 	  LP_LM_BETA("LMBeta", 77, "LMBeta"),
+	  LP_LM_MEMORY_LIMIT("LMMemoryLimit", 16384, "Max size of language model in KB, beyond which training prunes it (0 = unlimited)"),
+	  LP_LM_CACHE_SIZE("LMCacheSize", 32768, "Memory in KB for trained language models of recently-used alphabets, beyond which they are saved to disk and freed"),
+	  LP_LM_WARM_PERCENT("LMWarmPercent", 25, "Max % of one CPU to spend training models for recently-used alphabets in the background (0 = don't)"),
+	  LP_TRAIN_THREADS("TrainThreads", 1, "Number of threads to use to train language model"),
 	  //LP_LM_MIXTURE("LMMixture", 50, "LMMixture"),
 	  LP_LINE_WIDTH("LineWidth", 1, "Width to draw crosshair and mouse line"),
 	  //LP_LM_WORD_ALPHA("WordAlpha", 50, "Alpha value for word-based model"),
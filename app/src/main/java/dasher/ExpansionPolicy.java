@@ -21,6 +21,8 @@ public abstract class ExpansionPolicy {
 	protected CDasherNode[] collapsible = new CDasherNode[8];
 	protected int nextExp=0;
 	protected int nextCol=0;
+	/** Nodes to expand this frame, in order of decreasing benefit; reused between frames */
+	private final List<CDasherNode> toExpand = new ArrayList<CDasherNode>();
 	public void pushNode(CDasherNode node, int min, int max, boolean bExp) {
 		double cost = getCost(node,min,max);
 		pushToExpand: {
@@ -65,16 +67,18 @@ public abstract class ExpansionPolicy {
 		//the following may be a bit elaborate, but should give a _total_ ordering... 
 		while (true) {
 			//first, order according to lexicographic order on display text...
-			int i = a.m_strDisplayText.compareTo(b.m_strDisplayText);
+			int i = a.getDisplayText().compareTo(b.getDisplayText());
 			if (i!=0) return i;
 			//display texts equal.
 			CDasherNode ap=a.Parent(), bp=b.Parent();
 			if (ap == bp) {
 				//happens only if original a & b were of same generation.
 				//ap cannot be null, as previous a&b were distinct, and only one node has null parent (the root)
-				for (CDasherNode ch : ap.Children())
+				for (int c=0, n=ap.ChildCount(); c<n; c++) {
+					final CDasherNode ch = ap.PeekChild(c); //a & b exist, so need not materialize others
 					if (ch==a) return -1;//a is first sibling
 					else if (ch==b) return 1; //b is first sibling
+				}
 				throw new AssertionError(); //should never happen - a & b should _both_ be among children!
 			}
 			if (ap==null) return -1;//a has no parent, i.e. is root; b has a parent, so is of younger generation
@@ -109,16 +113,19 @@ public abstract class ExpansionPolicy {
 
 		//ok, we're now within budget. However, we may still wish to "trade off" nodes
 		// against each other, in case there are any unimportant (low-cost) nodes we could collapse
-		// to make room to expand other more important (high-benefit) nodes.  
+		// to make room to expand other more important (high-benefit) nodes.
+		//Expansions are collected and done together at the end, so their probabilities can be
+		// computed in one batch; meanwhile, count the children we expect them to create.
+		int iPending=0;
 		while (nextExp>0)
 		{
 			CDasherNode nExp = expandable[nextExp-1];
 			if (nExp.m_dCost <= collapseCost) break; 
-			if (CDasherNode.currentNumNodeObjects()+nExp.ExpectedNumChildren() < m_iNodeBudget)
+			if (CDasherNode.currentNumNodeObjects()+iPending+nExp.ExpectedNumChildren() < m_iNodeBudget)
 			{
-				model.Expand(nExp);
+				toExpand.add(nExp);
+				iPending+=nExp.ExpectedNumChildren();
 		    	nextExp--;
-		    	if (nExp.ChildCount()>0) bReturnValue = true;
 		    	//...and loop.
 		    } else if (collapseIdx<nextCol
 		               && collapsible[collapseIdx].m_dCost< nExp.m_dCost)
@@ -132,6 +139,12 @@ public abstract class ExpansionPolicy {
 		    }
 		    else break; //not enough room, nothing to collapse.
 		}
+		if (!toExpand.isEmpty()) {
+			model.Expand(toExpand);
+			for (CDasherNode n : toExpand)
+				if (n.ChildCount()>0) bReturnValue = true;
+			toExpand.clear();
+		}
 		//make ready for reuse in next frame...
 		nextExp=0;
 		nextCol=0;
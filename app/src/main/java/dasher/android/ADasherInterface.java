@@ -8,7 +8,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.nio.channels.AsynchronousCloseException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -137,69 +136,6 @@ public class ADasherInterface extends CDasherInterfaceBase {
 		}
 	}
 	
-	private class Progress implements Runnable, ProgressNotifier {
-		private final String desc;
-		private int percent;
-		Progress(String desc) {
-			Lock(this.desc=desc, this.percent=0);
-		}
-		private boolean bAbortRequested;
-		//called from main Dasher thread
-		public void run() {
-			//synchronize on this??
-			if (p!=this) return; //a new training request has already superceded us...
-			Lock(desc,percent);
-			if (percent<0) p=null; //finished.
-		}
-		//Call from main Dasher thread, but waits to for training thread to respond.
-		public synchronized void abort() {
-			//bAbortRequested is also read by the thread currently doing training
-			bAbortRequested=true;
-			//wait for training thread to abort...
-			while (percent>=0)
-				try {wait();}
-				catch (InterruptedException e) {}
-		}
-		//called from Training thread
-		public void notifyProgress(int iPercent) throws AsynchronousCloseException {
-			synchronized (this) {
-				percent=iPercent;
-				if (bAbortRequested) throw new AsynchronousCloseException();
-			}
-			enqueue(this);
-		}
-	}
-	private Progress p;
-	@Override protected void train(final CAlphabetManager<?> mgr) {
-		if (Thread.currentThread()!=taskThread) {
-			enqueue(new Runnable() {
-				public void run() {train(mgr);}
-			});
-			return;
-		}
-		//1. we're on main thread, so can read p...
-		if (p!=null) p.abort();
-		//make new lock...
-		final Progress myProg = p = new Progress("Training Dasher");
-		//now we've got lock, train asynchronously...
-		new Thread() {
-			public void run() {
-				try {
-					train(mgr,myProg);
-				} catch (Throwable th) {
-					Log.e("DasherIME", "Error in training", th);
-				}
-				//completed, or aborted. Signal this...
-				synchronized(myProg) {
-					myProg.percent=-1;
-					myProg.notifyAll(); //in case someone was waiting for us to abort
-				}
-				//broadcast the unlock message (unless aborted)
-				enqueue(myProg);
-			}
-		}.start();
-	}
-	
 	@Override
 	public void StartShutdown() {
 		if (Thread.currentThread()!=taskThread) {
@@ -220,7 +156,6 @@ public class ADasherInterface extends CDasherInterfaceBase {
 			}
 			return;
 		}
-		if (p!=null) p.abort();
 		super.StartShutdown();
 	}
 	
@@ -427,6 +362,10 @@ public class ADasherInterface extends CDasherInterfaceBase {
 		}
 	}
 	
+	@Override protected File getCacheFile(String name) {
+		return new File(androidCtx.getCacheDir(), name);
+	}
+	
 	@Override public void WriteTrainFile(String filename, String s) {
 		String msg;
 		File pkgDir = GetPackageDir();
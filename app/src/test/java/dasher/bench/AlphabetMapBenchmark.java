@@ -0,0 +1,105 @@
+package dasher.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import dasher.CAlphIO;
+import dasher.CAlphabetMap;
+import dasher.CPPMLanguageModel;
+
+/**
+ * Measures throughput of mapping text to symbols, on its own and as part of
+ * {@link CAlphabetMap#TrainStream}, for a synthetic alphabet with many symbols
+ * (CJK ideographs, so none in Latin-1), and training text whose symbol frequencies
+ * follow Zipf's law.
+ * <p>
+ * Usage: <code>AlphabetMapBenchmark [symbols] [text length]</code>; defaults to
+ * 10000 symbols and 2M characters of text.
+ */
+public class AlphabetMapBenchmark {
+	private static final int REPEATS = 5;
+	/** First code point of the alphabet: CJK Unified Ideographs */
+	private static final int FIRST_CHAR = 0x4E00;
+	private static final String NAME = "Synthetic";
+
+	/** Results are written here, so they cannot be optimized away */
+	static volatile int sink;
+
+	public static void main(String[] args) throws IOException {
+		final int iSymbols = (args.length>0) ? Integer.parseInt(args[0]) : 10000;
+		final int iLength = (args.length>1) ? Integer.parseInt(args[1]) : 2000000;
+		final File dir = makeDir();
+		try {
+			writeAlphabet(new File(dir, "alphabet.synthetic.xml"), iSymbols);
+			final String text = makeText(iSymbols, iLength);
+			final BenchmarkInterface intf = new BenchmarkInterface(dir);
+			run(intf, intf.getAlphabet(NAME), text);
+		} finally {
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+
+	private static void run(BenchmarkInterface intf, CAlphIO.AlphInfo alph, String text) throws IOException {
+		final CAlphabetMap map = alph.makeMap();
+		final byte[] bytes = text.getBytes("UTF-8");
+		final int[] syms = new int[text.length()];
+		long bestMap=Long.MAX_VALUE, bestTrain=Long.MAX_VALUE;
+		for (int rep=0; rep<REPEATS; rep++) {
+			long t = System.nanoTime();
+			sink = map.GetSymbols(text, syms);
+			bestMap = Math.min(bestMap, System.nanoTime()-t);
+		}
+		CPPMLanguageModel lm=null;
+		for (int rep=0; rep<REPEATS; rep++) {
+			lm = new CPPMLanguageModel(intf, alph);
+			long t = System.nanoTime();
+			sink = map.TrainStream(lm, new ByteArrayInputStream(bytes), bytes.length, 0, null);
+			bestTrain = Math.min(bestTrain, System.nanoTime()-t);
+		}
+		System.out.println("symbols\tchars\tnodes\tmap Msym/s\ttrain Msym/s");
+		System.out.println(alph.GetNumberSymbols()+"\t"+text.length()+"\t"+lm.GetNumNodes()
+				+"\t"+String.format("%.2f", text.length()*1e3/bestMap)
+				+"\t"+String.format("%.2f", text.length()*1e3/bestTrain));
+	}
+
+	private static File makeDir() throws IOException {
+		File f = File.createTempFile("alphbench", "");
+		if (!f.delete() || !f.mkdir()) throw new IOException("Could not create "+f);
+		return f;
+	}
+
+	private static void writeAlphabet(File f, int iSymbols) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<alphabets>\n<alphabet name=\""+NAME+"\">\n");
+			w.write("<orientation type=\"LR\"/>\n<group name=\"All\" b=\"0\">\n");
+			for (int i=0; i<iSymbols; i++)
+				w.write("<s d=\"&#"+(FIRST_CHAR+i)+";\" t=\"&#"+(FIRST_CHAR+i)+";\" b=\""+(10+i%100)+"\"/>\n");
+			w.write("</group>\n</alphabet>\n</alphabets>\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	/** Text in which the i'th symbol occurs with frequency proportional to 1/(i+1) */
+	private static String makeText(int iSymbols, int iLength) {
+		final double[] cumulative = new double[iSymbols];
+		double total=0;
+		for (int i=0; i<iSymbols; i++) cumulative[i] = (total += 1.0/(i+1));
+		final Random r = new Random(42);
+		final StringBuilder sb = new StringBuilder(iLength);
+		for (int i=0; i<iLength; i++) {
+			int idx = Arrays.binarySearch(cumulative, r.nextDouble()*total);
+			if (idx<0) idx = -idx-1;
+			sb.append((char)(FIRST_CHAR+Math.min(idx, iSymbols-1)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,86 @@
+package dasher.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import dasher.CAlphIO;
+import dasher.CDasherInterfaceBase;
+import dasher.CSettingsStore;
+import dasher.EditableDocument;
+import dasher.XMLFileParser;
+
+/**
+ * Minimal, headless, DasherInterface for benchmarks: reads alphabet
+ * definitions and training text from a directory (e.g. the app's
+ * <code>assets</code>), and has no screen, input or document.
+ */
+public class BenchmarkInterface extends CDasherInterfaceBase {
+	private final File m_Dir;
+	
+	public BenchmarkInterface(File dir) {
+		super(makeSettings());
+		this.m_Dir = dir;
+		LoadData();
+	}
+	
+	private static CSettingsStore makeSettings() {
+		CSettingsStore sets = new CSettingsStore();
+		sets.LoadPersistent();
+		return sets;
+	}
+	
+	/** Get info on a named alphabet, or null if there is no such alphabet */
+	public CAlphIO.AlphInfo getAlphabet(String name) {
+		List<String> names = new ArrayList<String>();
+		m_AlphIO.GetAlphabets(names);
+		return names.contains(name) ? m_AlphIO.GetInfo(name) : null;
+	}
+	
+	/** Names of all alphabets found */
+	public List<String> getAlphabetNames() {
+		List<String> names = new ArrayList<String>();
+		m_AlphIO.GetAlphabets(names);
+		return names;
+	}
+	
+	@Override protected void CreateModules() {
+		//no input devices or filters
+	}
+	
+	@Override protected void ScanXMLFiles(XMLFileParser parser, String prefix) {
+		for (String f : m_Dir.list())
+			if (f.startsWith(prefix) && f.endsWith(".xml"))
+				try {
+					parser.ParseFile(new FileInputStream(new File(m_Dir,f)), false);
+				} catch (Exception e) {
+					Message("Could not parse "+f+": "+e, 1);
+				}
+	}
+	
+	@Override protected void GetStreams(String fname, Collection<InputStream> into) {
+		try {
+			into.add(new FileInputStream(new File(m_Dir, fname)));
+		} catch (FileNotFoundException e) {
+			//no training text, then
+		}
+	}
+	
+	/** Opens the training file for an alphabet, or returns null if it is not found */
+	public File getTrainingFile(CAlphIO.AlphInfo alph) {
+		File f = new File(m_Dir, alph.GetTrainingFile());
+		return f.exists() ? f : null;
+	}
+	
+	@Override public EditableDocument getDocument() {
+		return null;
+	}
+	
+	@Override public void Message(String msg, int severity) {
+		System.err.println(msg);
+	}
+}
@@ -0,0 +1,147 @@
+package dasher.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import dasher.CAlphIO;
+import dasher.CPPMLanguageModel;
+import dasher.CRemoteLanguageModel;
+
+/**
+ * Loopback server for {@link CRemoteLanguageModel}: answers requests from any
+ * number of clients using a PPM model for each alphabet, trained (on first use)
+ * from the alphabet's training file in the directory given.
+ * <p>
+ * Usage: <code>LMServer &lt;assets dir&gt; [port]</code>. Only accepts connections
+ * from the same machine.
+ */
+public class LMServer {
+	private final BenchmarkInterface m_Intf;
+	/** Trained models, by alphabet name. Each is only used while synchronized on it. */
+	private final Map<String,CPPMLanguageModel> m_Models = new HashMap<String,CPPMLanguageModel>();
+
+	public LMServer(BenchmarkInterface intf) {
+		this.m_Intf = intf;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<1) {
+			System.err.println("Usage: LMServer <assets dir> [port]");
+			System.exit(1);
+		}
+		final int port = (args.length>1) ? Integer.parseInt(args[1]) : CRemoteLanguageModel.DEFAULT_PORT;
+		final ServerSocket server = new ServerSocket(port, 0, InetAddress.getByName(null));
+		System.out.println("Listening on "+server.getLocalSocketAddress());
+		new LMServer(new BenchmarkInterface(new File(args[0]))).serve(server);
+	}
+
+	/** Accepts connections until the socket is closed, serving each on a thread of its own */
+	public void serve(ServerSocket server) throws IOException {
+		while (true) {
+			final Socket sock = server.accept();
+			Thread t = new Thread("LMServer "+sock.getRemoteSocketAddress()) {
+				@Override public void run() {
+					try {
+						handle(sock);
+					} catch (EOFException e) {
+						//client closed connection
+					} catch (IOException e) {
+						System.err.println(getName()+": "+e);
+					} finally {
+						try {
+							sock.close();
+						} catch (IOException e) {
+							//ignore
+						}
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** Gets the model for an alphabet, training it if necessary; or null if there is no such alphabet */
+	private synchronized CPPMLanguageModel getModel(String name) throws IOException {
+		CPPMLanguageModel lm = m_Models.get(name);
+		if (lm==null) {
+			CAlphIO.AlphInfo alph = m_Intf.getAlphabet(name);
+			if (alph==null) return null;
+			lm = new CPPMLanguageModel(m_Intf, alph);
+			File f = m_Intf.getTrainingFile(alph);
+			if (f!=null) {
+				long t = System.currentTimeMillis();
+				alph.makeMap().TrainStream(lm, new FileInputStream(f), (int)f.length(), 0, null);
+				System.out.println("Trained "+name+" in "+(System.currentTimeMillis()-t)+"ms");
+			}
+			m_Models.put(name, lm);
+		}
+		return lm;
+	}
+
+	private void handle(Socket sock) throws IOException {
+		sock.setTcpNoDelay(true);
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+		if (in.readInt()!=CRemoteLanguageModel.MAGIC) throw new IOException("bad handshake");
+		final String name = in.readUTF();
+		in.readInt(); //client's number of symbols
+		final CPPMLanguageModel lm = getModel(name);
+		if (lm==null) {
+			out.writeInt(-1);
+			out.flush();
+			return;
+		}
+		final int iSyms = lm.getAlphabet().GetNumberSymbols();
+		out.writeInt(iSyms);
+		out.flush();
+		final long[] probs = new long[iSyms+1];
+		while (true) {
+			final byte op = in.readByte();
+			if (op==CRemoteLanguageModel.OP_PROBS) {
+				final int id = in.readInt();
+				final long iNorm = in.readLong();
+				final int[] syms = readSymbols(in);
+				synchronized (lm) {
+					final Integer ctx = makeContext(lm, syms);
+					for (int i=0; i<probs.length; i++) probs[i]=0;
+					lm.GetProbs(ctx, probs, iNorm);
+				}
+				out.writeInt(id);
+				for (int i=1; i<probs.length; i++) out.writeInt((int)probs[i]);
+			} else if (op==CRemoteLanguageModel.OP_LEARN) {
+				final int[] syms = readSymbols(in);
+				final int sym = in.readUnsignedShort();
+				synchronized (lm) {
+					lm.ContextLearningSymbol(makeContext(lm, syms), sym);
+				}
+			} else
+				throw new IOException("unknown op "+op);
+			//requests are pipelined, so send responses once we've done all received
+			if (in.available()==0) out.flush();
+		}
+	}
+
+	private static int[] readSymbols(DataInputStream in) throws IOException {
+		final int[] syms = new int[in.readUnsignedByte()];
+		for (int i=0; i<syms.length; i++) syms[i] = in.readUnsignedShort();
+		return syms;
+	}
+
+	private static Integer makeContext(CPPMLanguageModel lm, int[] syms) {
+		Integer ctx = lm.EmptyContext();
+		for (int s : syms) ctx = lm.ContextWithSymbol(ctx, s);
+		return ctx;
+	}
+}
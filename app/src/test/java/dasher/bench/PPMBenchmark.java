@@ -0,0 +1,137 @@
+package dasher.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import dasher.CAlphIO;
+import dasher.CAlphabetMap;
+import dasher.CPPMLanguageModel;
+import dasher.Elp_parameters;
+
+/**
+ * Measures throughput of training a PPM language model, and of looking up
+ * contexts in the trained model (as done when building nodes), for each alphabet.
+ * Also checks that training on several threads gives an identical model to training
+ * sequentially, as it should without update exclusion (see
+ * {@link CAlphabetMap#TrainStreamParallel(CPPMLanguageModel, java.io.InputStream, int, int, dasher.CDasherInterfaceBase.ProgressNotifier, int)}).
+ * <p>
+ * Usage: <code>PPMBenchmark &lt;assets dir&gt; [alphabet name...]</code>; if no
+ * alphabets are named, uses one alphabet for each training file found.
+ */
+public class PPMBenchmark {
+	private static final int REPEATS = 5;
+	/** Number of threads with which to check parallel training */
+	private static final int THREADS = 4;
+	
+	/** Results of lookups are written here, so they cannot be optimized away */
+	static volatile int sink;
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length<1) {
+			System.err.println("Usage: PPMBenchmark <assets dir> [alphabet name...]");
+			System.exit(1);
+		}
+		BenchmarkInterface intf = new BenchmarkInterface(new File(args[0]));
+		List<CAlphIO.AlphInfo> alphs = new ArrayList<CAlphIO.AlphInfo>();
+		if (args.length>1) {
+			for (String name : Arrays.asList(args).subList(1, args.length)) {
+				CAlphIO.AlphInfo alph = intf.getAlphabet(name);
+				if (alph==null) System.err.println("No alphabet "+name);
+				else alphs.add(alph);
+			}
+		} else {
+			Set<String> files = new HashSet<String>();
+			for (String name : intf.getAlphabetNames()) {
+				CAlphIO.AlphInfo alph = intf.getAlphabet(name);
+				if (intf.getTrainingFile(alph)!=null && files.add(alph.GetTrainingFile()))
+					alphs.add(alph);
+			}
+		}
+		System.out.println("alphabet\tsymbols\tnodes\tbytes\ttrain Msym/s\tlookup Msym/s\tparallel");
+		for (CAlphIO.AlphInfo alph : alphs)
+			run(intf, alph);
+	}
+	
+	private static void run(BenchmarkInterface intf, CAlphIO.AlphInfo alph) throws IOException {
+		File f = intf.getTrainingFile(alph);
+		if (f==null) return;
+		CAlphabetMap map = alph.makeMap();
+		List<Integer> syms = new ArrayList<Integer>();
+		map.GetSymbols(syms, readFile(f));
+		int[] text = new int[syms.size()];
+		int len=0;
+		for (int s : syms) if (s>=0) text[len++]=s;
+		
+		long bestTrain=Long.MAX_VALUE, bestLookup=Long.MAX_VALUE;
+		CPPMLanguageModel lm=null;
+		for (int rep=0; rep<REPEATS; rep++) {
+			lm = new CPPMLanguageModel(intf, alph);
+			long t = System.nanoTime();
+			map.TrainStream(lm, new FileInputStream(f), (int)f.length(), 0, null);
+			bestTrain = Math.min(bestTrain, System.nanoTime()-t);
+		}
+		for (int rep=0; rep<REPEATS; rep++) {
+			long t = System.nanoTime();
+			Integer ctx = lm.EmptyContext();
+			for (int i=0; i<len; i++)
+				ctx = lm.ContextWithSymbol(ctx, text[i]);
+			bestLookup = Math.min(bestLookup, System.nanoTime()-t);
+			sink = ctx;
+		}
+		System.out.println(alph.name+"\t"+len+"\t"+lm.GetNumNodes()+"\t"+lm.GetMemory()
+				+"\t"+String.format("%.2f", len*1e3/bestTrain)
+				+"\t"+String.format("%.2f", len*1e3/bestLookup)
+				+"\t"+(parallelIdentical(intf, alph, f, text, len) ? "identical" : "DIFFERS"));
+	}
+	
+	/**
+	 * Trains one model sequentially, and one on {@link #THREADS} threads, both without
+	 * update exclusion, and checks they have the same number of nodes and make the
+	 * same predictions in every context of the text.
+	 */
+	private static boolean parallelIdentical(BenchmarkInterface intf, CAlphIO.AlphInfo alph, File f, int[] text, int len) throws IOException {
+		final long iUpdateExclusion = intf.GetLongParameter(Elp_parameters.LP_LM_UPDATE_EXCLUSION);
+		intf.SetLongParameter(Elp_parameters.LP_LM_UPDATE_EXCLUSION, 0);
+		try {
+			CAlphabetMap map = alph.makeMap();
+			CPPMLanguageModel seq = new CPPMLanguageModel(intf, alph), par = new CPPMLanguageModel(intf, alph);
+			map.TrainStream(seq, new FileInputStream(f), (int)f.length(), 0, null);
+			map.TrainStreamParallel(par, new FileInputStream(f), (int)f.length(), 0, null, THREADS);
+			if (seq.GetNumNodes()!=par.GetNumNodes()) return false;
+			final int iSyms = alph.GetNumberSymbols();
+			long[] pSeq = new long[iSyms+1], pPar = new long[iSyms+1];
+			Integer cSeq = seq.EmptyContext(), cPar = par.EmptyContext();
+			for (int i=0; i<len; i++) {
+				Arrays.fill(pSeq, 0); Arrays.fill(pPar, 0);
+				seq.GetProbs(cSeq, pSeq, 1<<16);
+				par.GetProbs(cPar, pPar, 1<<16);
+				if (!Arrays.equals(pSeq, pPar)) return false;
+				cSeq = seq.ContextWithSymbol(cSeq, text[i]);
+				cPar = par.ContextWithSymbol(cPar, text[i]);
+			}
+			return true;
+		} finally {
+			intf.SetLongParameter(Elp_parameters.LP_LM_UPDATE_EXCLUSION, iUpdateExclusion);
+		}
+	}
+	
+	private static String readFile(File f) throws IOException {
+		Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buf = new char[8192];
+			for (int n; (n=r.read(buf))>0;) sb.append(buf, 0, n);
+			return sb.toString();
+		} finally {
+			r.close();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package dasher.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import dasher.CAlphIO;
+import dasher.CAlphabetMap;
+import dasher.CDasherModel;
+import dasher.CPPMLanguageModel;
+import dasher.CProbArena;
+import dasher.Elp_parameters;
+
+/**
+ * Compares the single pass turning a language model's probabilities into the bounds of
+ * child nodes ({@link CProbArena#cumulate}), against the chain of passes it replaced:
+ * adding uniformity; in control mode, rescaling every element and redistributing the
+ * rounding remainder; making them cumulative; and copying into the arena. Both are timed
+ * given the LM's output, and also including the {@link CPPMLanguageModel#GetProbs} call
+ * producing it, with and without control mode, for contexts from each alphabet's training
+ * text. Also reports the largest difference between the bounds computed by each, and
+ * between the sizes of the child nodes (at most 1, as each rounds differently).
+ * <p>
+ * Usage: <code>ProbPipelineBenchmark &lt;assets dir&gt; [alphabet name...]</code>; if no
+ * alphabets are named, uses every alphabet with training text.
+ */
+public class ProbPipelineBenchmark {
+	private static final int REPEATS = 5;
+	/** Number of contexts (successive positions in the training text) for which to compute bounds */
+	private static final int CONTEXTS = 4096;
+	private static final long NORMALIZATION = CDasherModel.NORMALIZATION;
+
+	/** Results are written here, so they cannot be optimized away */
+	static volatile int sink;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<1) {
+			System.err.println("Usage: ProbPipelineBenchmark <assets dir> [alphabet name...]");
+			System.exit(1);
+		}
+		BenchmarkInterface intf = new BenchmarkInterface(new File(args[0]));
+		List<CAlphIO.AlphInfo> alphs = new ArrayList<CAlphIO.AlphInfo>();
+		for (String name : (args.length>1) ? Arrays.asList(args).subList(1, args.length) : intf.getAlphabetNames()) {
+			CAlphIO.AlphInfo alph = intf.getAlphabet(name);
+			if (alph==null) System.err.println("No alphabet "+name);
+			else if (intf.getTrainingFile(alph)!=null) alphs.add(alph);
+		}
+		System.out.println("alphabet\tsymbols\tcontrol\tchain ns\tfused ns\tchain+LM ns\tfused+LM ns\tbound diff\tsize diff");
+		for (CAlphIO.AlphInfo alph : alphs)
+			run(intf, alph);
+	}
+
+	private static void run(BenchmarkInterface intf, CAlphIO.AlphInfo alph) throws IOException {
+		final File f = intf.getTrainingFile(alph);
+		final CAlphabetMap map = alph.makeMap();
+		final CPPMLanguageModel lm = new CPPMLanguageModel(intf, alph);
+		map.TrainStream(lm, new FileInputStream(f), (int)f.length(), 0, null);
+		final List<Integer> syms = new ArrayList<Integer>();
+		map.GetSymbols(syms, readFile(f));
+		final List<Integer> contexts = new ArrayList<Integer>();
+		Integer ctx = lm.EmptyContext();
+		for (int s : syms) {
+			if (s<0) continue;
+			contexts.add(ctx);
+			if (contexts.size()==CONTEXTS) break;
+			ctx = lm.ContextWithSymbol(ctx, s);
+		}
+		final int iSymbols = alph.GetNumberSymbols();
+		//as CNodeCreationManager
+		final long uniformAdd = ((NORMALIZATION * intf.GetLongParameter(Elp_parameters.LP_UNIFORM)) / 1000) / iSymbols;
+		final long nonUniformNorm = NORMALIZATION - iSymbols * uniformAdd;
+		for (boolean bControl : new boolean[] {false, true}) {
+			final int len = iSymbols + (bControl ? 2 : 1);
+			final long[][] raw = new long[contexts.size()][len];
+			for (int i=0; i<raw.length; i++) lm.GetProbs(contexts.get(i), raw[i], nonUniformNorm);
+			final long[] work = new long[len];
+			final int[] out = new int[len], expected = new int[len];
+			//check they agree (to within rounding)
+			long iMaxDiff=0, iMaxSizeDiff=0;
+			for (long[] r : raw) {
+				System.arraycopy(r, 0, work, 0, len);
+				chain(work, iSymbols, alph.GetSpaceSymbol(), bControl, uniformAdd, expected);
+				fused(r, iSymbols, alph.GetSpaceSymbol(), bControl, uniformAdd, out);
+				for (int i=0; i<len; i++) iMaxDiff = Math.max(iMaxDiff, Math.abs(out[i]-expected[i]));
+				for (int i=1; i<len; i++)
+					iMaxSizeDiff = Math.max(iMaxSizeDiff, Math.abs((out[i]-out[i-1])-(expected[i]-expected[i-1])));
+			}
+			long bestChain=Long.MAX_VALUE, bestFused=Long.MAX_VALUE, bestChainLM=Long.MAX_VALUE, bestFusedLM=Long.MAX_VALUE;
+			for (int rep=0; rep<REPEATS; rep++) {
+				long t = System.nanoTime();
+				for (long[] r : raw) {
+					System.arraycopy(r, 0, work, 0, len);
+					chain(work, iSymbols, alph.GetSpaceSymbol(), bControl, uniformAdd, out);
+				}
+				bestChain = Math.min(bestChain, System.nanoTime()-t);
+				t = System.nanoTime();
+				for (long[] r : raw) {
+					System.arraycopy(r, 0, work, 0, len);
+					fused(work, iSymbols, alph.GetSpaceSymbol(), bControl, uniformAdd, out);
+				}
+				bestFused = Math.min(bestFused, System.nanoTime()-t);
+				t = System.nanoTime();
+				for (Integer c : contexts) {
+					Arrays.fill(work, 0);
+					lm.GetProbs(c, work, nonUniformNorm);
+					chain(work, iSymbols, alph.GetSpaceSymbol(), bControl, uniformAdd, out);
+				}
+				bestChainLM = Math.min(bestChainLM, System.nanoTime()-t);
+				t = System.nanoTime();
+				for (Integer c : contexts) {
+					Arrays.fill(work, 0);
+					lm.GetProbs(c, work, nonUniformNorm);
+					fused(work, iSymbols, alph.GetSpaceSymbol(), bControl, uniformAdd, out);
+				}
+				bestFusedLM = Math.min(bestFusedLM, System.nanoTime()-t);
+				sink = out[len-2];
+			}
+			final int n = contexts.size();
+			System.out.println(alph.name+"\t"+iSymbols+"\t"+bControl
+					+"\t"+bestChain/n+"\t"+bestFused/n+"\t"+bestChainLM/n+"\t"+bestFusedLM/n+"\t"+iMaxDiff+"\t"+iMaxSizeDiff);
+		}
+	}
+
+	/** The fused stage, with parameters as computed by CNodeCreationManager */
+	private static void fused(long[] probs, int iSymbols, int iSpace, boolean bControl, long uniformAdd, int[] out) {
+		long iScale = NORMALIZATION;
+		if (bControl && iSpace!=CAlphabetMap.UNDEFINED) iScale -= (probs[iSpace+1]+uniformAdd)/3;
+		CProbArena.cumulate(probs, iSymbols, out.length, uniformAdd, iScale, out, 0);
+	}
+
+	/** The chain of passes formerly used by CNodeCreationManager, modifying probs in place */
+	private static void chain(long[] probs, int iSymbols, int iSpace, boolean bControl, long uniformAdd, int[] out) {
+		for (int k = iSymbols; k >0; --k) probs[k] += uniformAdd;
+		if (bControl) {
+			final long controlSpace = probs[iSpace+1]/3;
+			long rem=NORMALIZATION - (probs[probs.length-1] = controlSpace);
+			for (int i=1; i<probs.length-1; i++)
+				rem -= (probs[i] = (probs[i]*(NORMALIZATION-controlSpace)/NORMALIZATION));
+			if (rem>=probs.length-1) {
+				final long each = rem/(probs.length-1);
+				for (int i=1; i<probs.length; i++)
+					probs[i]+=each;
+				rem -= each*(probs.length-1);
+			}
+			for (int i=probs.length-(int)rem; i<probs.length; i++, rem--) probs[i]++;
+		}
+		for (int i=1; i<probs.length; i++)
+			probs[i]+=probs[i-1];
+		for (int i=0; i<probs.length; i++)
+			out[i] = (int)probs[i];
+	}
+
+	private static String readFile(File f) throws IOException {
+		Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buf = new char[8192];
+			for (int n; (n=r.read(buf))>0;) sb.append(buf, 0, n);
+			return sb.toString();
+		} finally {
+			r.close();
+		}
+	}
+}